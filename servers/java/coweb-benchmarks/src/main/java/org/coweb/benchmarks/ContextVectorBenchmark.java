@@ -0,0 +1,82 @@
+package org.coweb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.ContextDifference;
+import org.coweb.oe.ContextVector;
+import org.coweb.oe.OperationEngineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the context vector operations on the transform path, for two
+ * vectors that differ at every active site. Idle sites have joined but never
+ * sent an op, which leaves zeros that a wide vector keeps sparse.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContextVectorBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int sites;
+
+	@Param({"100", "1000"})
+	public int history;
+
+	@Param({"0", "256"})
+	public int idle;
+
+	private ContextVector newer;
+	private ContextVector older;
+
+	@Setup
+	public void setUp() {
+		int[] a = new int[this.sites + this.idle];
+		int[] b = new int[this.sites + this.idle];
+		for (int i = 0; i < this.sites; i++) {
+			// spread the history evenly over the sites
+			a[i] = this.history / this.sites + 1;
+			b[i] = a[i] / 2;
+		}
+		this.newer = new ContextVector(a);
+		this.older = new ContextVector(b);
+	}
+
+	@Benchmark
+	public ContextDifference subtract() {
+		return this.newer.subtract(this.older);
+	}
+
+	@Benchmark
+	public int compare() {
+		return this.newer.compare(this.older);
+	}
+
+	@Benchmark
+	public boolean equals() {
+		return this.newer.equals(this.older);
+	}
+
+	@Benchmark
+	public int hashCodeOf() {
+		return this.newer.hashCode();
+	}
+
+	@Benchmark
+	public ContextVector copy() throws OperationEngineException {
+		return this.newer.copy();
+	}
+}
@@ -0,0 +1,59 @@
+package org.coweb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.MergeEngine;
+import org.coweb.oe.OperationEngineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for the transform and the sequence engine to merge the same trace
+ * of remote ops from a fresh start, engine syncs and purges included. See
+ * {@link EngineFootprint} for the memory each engine holds after the trace.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+	@Param({"transform", "sequence"})
+	public String engine;
+
+	@Param({"2", "8", "32"})
+	public int sites;
+
+	@Param({"1000", "10000"})
+	public int ops;
+
+	private Trace trace;
+	private MergeEngine fresh;
+
+	@Setup(Level.Trial)
+	public void setUpTrace() {
+		this.trace = new Trace(this.sites, this.ops, 1);
+	}
+
+	@Setup(Level.Invocation)
+	public void setUp() throws OperationEngineException {
+		this.fresh = Trace.newEngine(this.engine);
+	}
+
+	@Benchmark
+	public int replay() throws OperationEngineException {
+		return this.trace.replay(this.fresh);
+	}
+}
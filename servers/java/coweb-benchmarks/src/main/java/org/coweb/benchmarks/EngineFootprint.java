@@ -0,0 +1,52 @@
+package org.coweb.benchmarks;
+
+import org.coweb.oe.MergeEngine;
+import org.coweb.oe.OperationEngineException;
+import org.coweb.oe.SequenceEngine;
+
+/**
+ * Memory each kind of engine holds after merging the same trace as
+ * {@link EngineBenchmark}. The transform engine holds the ops its purges
+ * could not drop yet; the sequence engine holds a list element per insert,
+ * deleted ones included. The retained heap is measured after full
+ * collections, so run it with nothing else in the JVM.
+ *
+ * Usage: EngineFootprint [sites] [ops] [seed]
+ */
+public class EngineFootprint {
+
+	public static void main(String[] args) throws OperationEngineException {
+		int sites = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+		System.out.println("sites=" + sites + " ops=" + ops + " seed=" + seed);
+		Trace trace = new Trace(sites, ops, seed);
+		String[] kinds = {"transform", "sequence"};
+		for (String kind : kinds) {
+			long base = usedHeap();
+			MergeEngine engine = Trace.newEngine(kind);
+			int applied = trace.replay(engine);
+			long used = usedHeap() - base;
+			String held = engine instanceof SequenceEngine ?
+				((SequenceEngine) engine).getTombstoneCount() + " tombstones" :
+				engine.getBufferSize() + " ops in history";
+			System.out.println(kind + ": " + applied + " ops applied, " +
+					held + ", " + (used / 1024) + " KiB retained");
+			// keep the engine reachable until measured
+			if (engine.getVersion() < 0) {
+				System.out.println(engine);
+			}
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+}
@@ -0,0 +1,96 @@
+package org.coweb.benchmarks;
+
+import java.util.Arrays;
+
+import org.coweb.oe.Operation;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+
+/**
+ * Stream of remote insert ops on one topic for building and feeding the
+ * engines under test, which are always site 0. Sites 1 to sites-1 take
+ * turns sending and each op is made without seeing the last lag ops from
+ * the other sites, so the history is about as concurrent as a session with
+ * that many busy sites.
+ */
+final class OpStream {
+
+	static final String TOPIC = "coweb.sync.text.benchmark";
+	static final String VALUE = "\"x\"";
+
+	private final int sites;
+	private final int lag;
+	// ops sent by each site so far
+	private final int[] count;
+	// ops sent by each site before each of the last lag + 1 ops
+	private final int[][] before;
+	private int next = 0;
+
+	OpStream(int sites) {
+		this.sites = sites;
+		this.lag = sites - 1;
+		this.count = new int[sites];
+		this.before = new int[this.lag + 1][];
+	}
+
+	/**
+	 * Builds an engine at site 0 holding the given number of ops from this
+	 * stream.
+	 */
+	OperationEngine build(int history) throws OperationEngineException {
+		OperationEngine engine = new OperationEngine(0);
+		for (int i = 0; i < history; i++) {
+			this.pushNext(engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * Pushes the next op of the stream into an engine as a remote op.
+	 *
+	 * @return Transformed op
+	 */
+	Operation pushNext(OperationEngine engine) throws OperationEngineException {
+		int i = this.next++;
+		int site = 1 + i % (this.sites - 1);
+		this.before[i % this.before.length] = this.count.clone();
+		int[] cv = this.seen(i);
+		cv[site] = this.count[site];
+		this.count[site]++;
+		return engine.push(false, TOPIC, VALUE, "insert", i % 16, site, cv,
+				i);
+	}
+
+	/**
+	 * Tells an engine how far every sending site has got, as far as the ops
+	 * still to come from this stream allow.
+	 */
+	void syncSites(OperationEngine engine) throws OperationEngineException {
+		for (int site = 1; site < this.sites; site++) {
+			int[] cv = this.seen(this.next);
+			cv[site] = this.count[site];
+			engine.pushSyncWithSites(site, cv);
+		}
+	}
+
+	/**
+	 * Tells an engine every sending site has seen everything it processed,
+	 * so a purge may drop the whole history. Only for engines that get no
+	 * further ops from this stream.
+	 */
+	static void syncAll(OperationEngine engine, int sites)
+			throws OperationEngineException {
+		int[] cv = engine.copyContextVector().copySites();
+		for (int site = 1; site < sites; site++) {
+			engine.pushSyncWithSites(site, Arrays.copyOf(cv, cv.length));
+		}
+	}
+
+	// ops from each site that every op from index i on has seen
+	private int[] seen(int i) {
+		if (i < this.lag) {
+			return new int[this.sites];
+		}
+		return this.before[(i - this.lag) % this.before.length].clone();
+	}
+}
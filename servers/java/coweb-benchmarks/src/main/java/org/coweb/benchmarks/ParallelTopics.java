@@ -0,0 +1,107 @@
+package org.coweb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+
+/**
+ * Throughput of the parallelTopicSync session option. The same trace of
+ * remote ops over several hot topics goes once through a single
+ * partitioned engine on one thread, like a session without the option,
+ * and once through a partitioned engine per topic on a pool of threads,
+ * like a session with it. Every topic must get the same transformed ops in
+ * the same order either way. Each round runs both; the fastest round of
+ * each is reported.
+ *
+ * Whether an engine per topic is any faster depends on the cores free for
+ * the pool, which the report includes. On one core it is slower, since
+ * every topic engine takes each engine sync and runs its own purges.
+ *
+ * Usage: ParallelTopics [sites] [ops] [topics] [threads] [rounds] [seed]
+ */
+public class ParallelTopics {
+
+	public static void main(String[] args) throws Exception {
+		int sites = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int topics = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : topics;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 15;
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+
+		System.out.println("sites=" + sites + " ops=" + ops + " topics=" +
+				topics + " threads=" + threads + " rounds=" + rounds +
+				" seed=" + seed + " cores=" +
+				Runtime.getRuntime().availableProcessors());
+		Trace trace = new Trace(sites, ops, seed, topics);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			long single = Long.MAX_VALUE;
+			long parallel = Long.MAX_VALUE;
+			boolean same = true;
+			for (int r = 0; r < rounds; r++) {
+				long[] expected = new long[topics];
+				long start = System.nanoTime();
+				replaySingle(trace, expected);
+				single = Math.min(single, System.nanoTime() - start);
+
+				long[] hashes = new long[topics];
+				start = System.nanoTime();
+				replayParallel(trace, hashes, pool);
+				parallel = Math.min(parallel, System.nanoTime() - start);
+				same &= Arrays.equals(expected, hashes);
+			}
+			report("single engine", ops, single);
+			report("engine per topic", ops, parallel);
+			System.out.println("single / per topic time " +
+					String.format("%.2f", (double) single / parallel) + ", " +
+					(same ? "same ops on every topic" : "DIFFERENT ops"));
+			if (!same) {
+				System.exit(1);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void replaySingle(Trace trace, long[] hashes)
+			throws OperationEngineException {
+		OperationEngine engine = new OperationEngine(0);
+		engine.setPartitioned(true);
+		trace.replay(engine, -1, hashes);
+	}
+
+	// each topic folds into its own entry of the hashes, read after get()
+	private static void replayParallel(final Trace trace, final long[] hashes,
+			ExecutorService pool) throws InterruptedException,
+			ExecutionException {
+		List<Future<Integer>> done = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < trace.getTopicCount(); t++) {
+			final int topic = t;
+			done.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws OperationEngineException {
+					OperationEngine engine = new OperationEngine(0);
+					engine.setPartitioned(true);
+					return Integer.valueOf(trace.replay(engine, topic, hashes));
+				}
+			}));
+		}
+		for (Future<Integer> f : done) {
+			f.get();
+		}
+	}
+
+	private static void report(String mode, int ops, long nanos) {
+		long ms = Math.max(1, nanos / 1000000);
+		System.out.println(mode + ": " + ms + " ms, " + (ops * 1000L / ms) +
+				" ops/s");
+	}
+}
@@ -0,0 +1,101 @@
+package org.coweb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.ContextVector;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.coweb.oe.PurgePlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of purging a history, either all of it once every site has seen
+ * every op or all but the ops some site may still send ops concurrent with.
+ * A plain purge holds the engine lock throughout, but for the release of
+ * the purged ops with deferred reclaim. A planned purge only holds it to
+ * take the plan and to cut the history; settling the plan in between is
+ * measured on its own. The setup before each call makes the averages noisy,
+ * so compare medians from sample mode (-bm sample).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PurgeBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int sites;
+
+	@Param({"100", "1000"})
+	public int history;
+
+	@Param({"false", "true"})
+	public boolean deferred;
+
+	private OperationEngine all;
+	private OperationEngine window;
+	private PurgePlan allPlan;
+	private PurgePlan windowPlan;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws OperationEngineException {
+		this.all = new OpStream(this.sites).build(this.history);
+		OpStream.syncAll(this.all, this.sites);
+		this.all.setDeferredReclaim(this.deferred);
+		OpStream stream = new OpStream(this.sites);
+		this.window = stream.build(this.history);
+		stream.syncSites(this.window);
+		this.window.setDeferredReclaim(this.deferred);
+		this.allPlan = this.all.planPurge();
+		this.allPlan.settle();
+		this.windowPlan = this.window.planPurge();
+		this.windowPlan.settle();
+	}
+
+	@Benchmark
+	public ContextVector purgeAll() throws OperationEngineException {
+		return this.all.purge();
+	}
+
+	@Benchmark
+	public ContextVector purgeToWindow() throws OperationEngineException {
+		return this.window.purge();
+	}
+
+	@Benchmark
+	public PurgePlan planToWindow() throws OperationEngineException {
+		return this.window.planPurge();
+	}
+
+	@Benchmark
+	public PurgePlan settleToWindow() throws OperationEngineException {
+		PurgePlan plan = this.window.planPurge();
+		plan.settle();
+		return plan;
+	}
+
+	@Benchmark
+	public OperationEngine cutAll() {
+		this.all.purgeThrough(this.allPlan);
+		return this.all;
+	}
+
+	@Benchmark
+	public OperationEngine cutToWindow() {
+		this.window.purgeThrough(this.windowPlan);
+		return this.window;
+	}
+}
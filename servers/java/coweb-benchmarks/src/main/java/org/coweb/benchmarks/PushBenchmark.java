@@ -0,0 +1,70 @@
+package org.coweb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.Operation;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Steady state cost of pushing local and remote ops. The engine purges
+ * every history ops so its history stays around the given size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PushBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int sites;
+
+	@Param({"100", "1000"})
+	public int history;
+
+	private OpStream stream;
+	private OperationEngine engine;
+	private int pushed;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws OperationEngineException {
+		this.stream = new OpStream(this.sites);
+		this.engine = this.stream.build(this.history);
+		this.pushed = 0;
+	}
+
+	@Benchmark
+	public Operation pushLocal() throws OperationEngineException {
+		Operation op = this.engine.push(true, OpStream.TOPIC, OpStream.VALUE,
+				"insert", 0, 0, null, 0);
+		if (++this.pushed % this.history == 0) {
+			OpStream.syncAll(this.engine, this.sites);
+			this.engine.purge();
+		}
+		return op;
+	}
+
+	@Benchmark
+	public Operation pushRemote() throws OperationEngineException {
+		Operation op = this.stream.pushNext(this.engine);
+		if (++this.pushed % this.history == 0) {
+			this.stream.syncSites(this.engine);
+			this.engine.purge();
+		}
+		return op;
+	}
+}
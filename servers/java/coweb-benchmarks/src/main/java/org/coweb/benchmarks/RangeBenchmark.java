@@ -0,0 +1,94 @@
+package org.coweb.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.Operation;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a remote paste of some characters from a new site that saw none
+ * of the history, sent as one insert per character, as one batch of those
+ * inserts or as a single insert range. Every invocation gets a fresh engine since the transforms fill the
+ * caches on the history ops.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RangeBenchmark {
+
+	@Param({"8"})
+	public int sites;
+
+	@Param({"100"})
+	public int history;
+
+	@Param({"10", "100"})
+	public int length;
+
+	private OperationEngine engine;
+	private String text;
+	private String[] values;
+	private String[] types;
+	private int[] positions;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws OperationEngineException {
+		this.engine = new OpStream(this.sites).build(this.history);
+		StringBuilder b = new StringBuilder("\"");
+		for (int i = 0; i < this.length; i++) {
+			b.append((char) ('a' + i % 26));
+		}
+		this.text = b.append('"').toString();
+		this.values = new String[this.length];
+		Arrays.fill(this.values, OpStream.VALUE);
+		this.types = new String[this.length];
+		Arrays.fill(this.types, "insert");
+		this.positions = new int[this.length];
+		for (int i = 0; i < this.length; i++) {
+			this.positions[i] = i;
+		}
+	}
+
+	@Benchmark
+	public Operation singles() throws OperationEngineException {
+		Operation op = null;
+		int[] cv = new int[this.sites + 1];
+		for (int i = 0; i < this.length; i++) {
+			cv[this.sites] = i;
+			op = this.engine.push(false, OpStream.TOPIC, OpStream.VALUE,
+					"insert", i, this.sites, cv.clone(), this.history + i);
+		}
+		return op;
+	}
+
+	@Benchmark
+	public Operation[] batch() throws OperationEngineException {
+		return this.engine.pushBatch(OpStream.TOPIC, this.values, this.types,
+				this.positions, this.sites, new int[this.sites + 1],
+				this.history);
+	}
+
+	@Benchmark
+	public Operation range() throws OperationEngineException {
+		return this.engine.push(false, OpStream.TOPIC, this.text,
+				"insertRange", 0, this.sites, new int[this.sites + 1],
+				this.history);
+	}
+}
@@ -0,0 +1,425 @@
+package org.coweb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.coweb.oe.ContextVector;
+import org.coweb.oe.DeleteRangeOperation;
+import org.coweb.oe.MergeEngine;
+import org.coweb.oe.Operation;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.coweb.oe.SequenceEngine;
+
+/**
+ * Deterministic simulation of a coweb session for stress testing the
+ * operation engine. Sites 1 to N each run an engine and edit a list per
+ * topic with random inserts, deletes and updates. Like SessionHandler, a
+ * central server puts every op in the total order as it arrives and sends
+ * the original op on to every site, including its sender. The server also
+ * runs an engine of its own, site 0, the way the moderator does. Messages
+ * take a random delay on every link, so sites see the ops in different
+ * interleavings, but each link stays first in, first out like a bayeux
+ * connection. All sites, the server included, send engine syncs and purge
+ * their history on timers.
+ *
+ * At the end every site must hold the same lists. The run also reports ops
+ * per second, how many concurrent ops each remote op had to be transformed
+ * against and how large the histories got.
+ *
+ * With maxRange above zero, sites also insert strings of up to that many
+ * characters and delete runs of up to that many positions as range ops,
+ * one list element per character.
+ *
+ * The engine is either the operational transform engine or, with engine
+ * "sequence", the sequence CRDT engine at every site.
+ *
+ * Usage: Simulator [sites] [ops] [topics] [seed] [maxDelayMs] [maxRange]
+ *        [transform|sequence]
+ */
+public class Simulator {
+
+	// virtual milliseconds between two local ops at a site, on average
+	private static final int OP_INTERVAL = 20;
+	// virtual milliseconds between engine syncs and between purges
+	private static final int SYNC_INTERVAL = 1000;
+	private static final int PURGE_INTERVAL = 1000;
+
+	private static final String[] TYPES = {"insert", "delete", "update"};
+	private static final String[] RANGE_TYPES = {"insert", "delete",
+		"update", "insertRange", "deleteRange"};
+
+	private final Random random;
+	private final int ops;
+	private final int maxDelay;
+	private final int maxRange;
+	private final boolean sequence;
+	private final String[] topics;
+	// server at index 0, sites after it
+	private final Site[] sites;
+
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>(
+			64, new Comparator<Event>() {
+				public int compare(Event a, Event b) {
+					if (a.time != b.time) {
+						return a.time < b.time ? -1 : 1;
+					}
+					return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+				}
+			});
+	private long now = 0;
+	private long eventSeq = 0;
+	private int order = 0;
+	private int created = 0;
+
+	private long remoteOps = 0;
+	private long concurrentSum = 0;
+	private int concurrentMax = 0;
+	private long historySum = 0;
+	private long historySamples = 0;
+	private int historyMax = 0;
+
+	public Simulator(int sites, int ops, int topics, long seed, int maxDelay)
+			throws OperationEngineException {
+		this(sites, ops, topics, seed, maxDelay, 0);
+	}
+
+	public Simulator(int sites, int ops, int topics, long seed, int maxDelay,
+			int maxRange) throws OperationEngineException {
+		this(sites, ops, topics, seed, maxDelay, maxRange, false);
+	}
+
+	public Simulator(int sites, int ops, int topics, long seed, int maxDelay,
+			int maxRange, boolean sequence) throws OperationEngineException {
+		this.random = new Random(seed);
+		this.sequence = sequence;
+		this.ops = ops;
+		this.maxDelay = maxDelay;
+		this.maxRange = maxRange;
+		this.topics = new String[topics];
+		for (int i = 0; i < topics; i++) {
+			this.topics[i] = "coweb.sync.topic" + i;
+		}
+		this.sites = new Site[sites + 1];
+		for (int i = 0; i <= sites; i++) {
+			this.sites[i] = new Site(i, this.topics);
+		}
+	}
+
+	public static void main(String[] args) throws OperationEngineException {
+		int sites = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int topics = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+		int maxDelay = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+		int maxRange = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+		boolean sequence = args.length > 6 && args[6].equals("sequence");
+
+		System.out.println("sites=" + sites + " ops=" + ops + " topics=" +
+				topics + " seed=" + seed + " maxDelay=" + maxDelay +
+				" maxRange=" + maxRange + " engine=" +
+				(sequence ? "sequence" : "transform"));
+		Simulator sim = new Simulator(sites, ops, topics, seed, maxDelay,
+				maxRange, sequence);
+		if (!sim.run()) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the session until every op reached every site, then checks and
+	 * reports.
+	 *
+	 * @return True if all sites converged
+	 */
+	public boolean run() throws OperationEngineException {
+		for (int i = 0; i < this.sites.length; i++) {
+			if (i > 0) {
+				this.schedule(this.nextOpDelay(), Event.LOCAL_OP, i, null);
+			}
+			this.schedule(SYNC_INTERVAL, Event.ENGINE_SYNC, i, null);
+			this.schedule(PURGE_INTERVAL, Event.PURGE, i, null);
+		}
+
+		long start = System.nanoTime();
+		while (!this.events.isEmpty()) {
+			Event e = this.events.poll();
+			this.now = e.time;
+			switch (e.type) {
+			case Event.LOCAL_OP:
+				this.localOp(this.sites[e.site]);
+				break;
+			case Event.AT_SERVER:
+				this.atServer(e.message);
+				break;
+			case Event.AT_SITE:
+				this.atSite(this.sites[e.site], e.message);
+				break;
+			case Event.ENGINE_SYNC:
+				this.engineSync(this.sites[e.site]);
+				break;
+			case Event.PURGE:
+				this.purge(this.sites[e.site]);
+				break;
+			}
+		}
+		long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+		boolean converged = this.checkConvergence();
+		System.out.println((converged ? "converged" : "DIVERGED") + " in " +
+				ms + " ms: " + this.remoteOps + " remote ops, " +
+				(this.remoteOps * 1000 / ms) + " ops/s");
+		System.out.println("concurrent ops per remote op: mean " +
+				String.format("%.2f", (double) this.concurrentSum /
+						Math.max(1, this.remoteOps)) +
+				", max " + this.concurrentMax);
+		System.out.println("history size: mean " +
+				(this.historySum / Math.max(1, this.historySamples)) +
+				", max " + this.historyMax);
+		if (this.sequence) {
+			System.out.println("tombstones at the server: " +
+					((SequenceEngine) this.sites[0].engine).getTombstoneCount());
+		}
+		return converged;
+	}
+
+	private void localOp(Site site) throws OperationEngineException {
+		String topic = this.topics[this.random.nextInt(this.topics.length)];
+		List<String> doc = site.docs.get(topic);
+		String[] types = this.maxRange > 0 ? RANGE_TYPES : TYPES;
+		String type = doc.isEmpty() ? "insert" :
+			types[this.random.nextInt(types.length)];
+		int position = this.random.nextInt(type.startsWith("insert") ?
+				doc.size() + 1 : doc.size());
+		String value = "\"" + site.id + "." + this.created + "\"";
+		if (type.equals("delete")) {
+			value = null;
+		} else if (type.equals("insertRange")) {
+			StringBuilder b = new StringBuilder("\"");
+			for (int i = 1 + this.random.nextInt(this.maxRange); i > 0; i--) {
+				b.append((char) ('a' + this.random.nextInt(26)));
+			}
+			value = b.append('"').toString();
+		} else if (type.equals("deleteRange")) {
+			value = String.valueOf(1 + this.random.nextInt(
+					Math.min(this.maxRange, doc.size() - position)));
+		}
+
+		Operation op = site.engine.push(true, topic, value, type, position,
+				0, null, 0);
+		apply(doc, op);
+
+		Message m = new Message();
+		m.topic = topic;
+		m.value = value;
+		m.type = type;
+		m.position = position;
+		m.site = site.id;
+		m.context = op.getContextVector().copySites();
+		this.send(site, 0, Event.AT_SERVER, m);
+
+		if (++this.created < this.ops) {
+			this.schedule(this.nextOpDelay(), Event.LOCAL_OP, site.id, null);
+		}
+	}
+
+	private void atServer(Message m) throws OperationEngineException {
+		Site server = this.sites[0];
+		if (m.sync) {
+			server.engine.pushSyncWithSites(m.site, copy(m.context));
+		} else {
+			// total order on arrival, as SessionHandler does
+			m.order = this.order++;
+			this.pushRemote(server, m);
+		}
+		for (int i = 1; i < this.sites.length; i++) {
+			if (!m.sync || i != m.site) {
+				this.send(server, i, Event.AT_SITE, m);
+			}
+		}
+	}
+
+	private void atSite(Site site, Message m) throws OperationEngineException {
+		if (m.sync) {
+			site.engine.pushSyncWithSites(m.site, copy(m.context));
+		} else {
+			this.pushRemote(site, m);
+		}
+	}
+
+	private void pushRemote(Site site, Message m) throws OperationEngineException {
+		if (m.site != site.id) {
+			int concurrent = site.engine.copyContextVector().subtract(
+					new ContextVector(m.context)).size();
+			this.concurrentSum += concurrent;
+			this.concurrentMax = Math.max(this.concurrentMax, concurrent);
+			++this.remoteOps;
+		}
+		Operation op = site.engine.push(false, m.topic, m.value, m.type,
+				m.position, m.site, copy(m.context), m.order);
+		if (op != null) {
+			apply(site.docs.get(m.topic), op);
+		}
+	}
+
+	private void engineSync(Site site) throws OperationEngineException {
+		Message m = new Message();
+		m.sync = true;
+		m.site = site.id;
+		m.context = site.engine.copyContextVector().copySites();
+		if (site.id == 0) {
+			// the server sends its own engine syncs straight to the sites
+			for (int i = 1; i < this.sites.length; i++) {
+				this.send(site, i, Event.AT_SITE, m);
+			}
+		} else {
+			this.send(site, 0, Event.AT_SERVER, m);
+		}
+		if (this.created < this.ops) {
+			this.schedule(SYNC_INTERVAL, Event.ENGINE_SYNC, site.id, null);
+		}
+	}
+
+	private void purge(Site site) throws OperationEngineException {
+		int size = site.engine.getBufferSize();
+		this.historySum += size;
+		++this.historySamples;
+		this.historyMax = Math.max(this.historyMax, size);
+		site.engine.purge();
+		if (this.created < this.ops) {
+			this.schedule(PURGE_INTERVAL, Event.PURGE, site.id, null);
+		}
+	}
+
+	private boolean checkConvergence() {
+		boolean converged = true;
+		for (String topic : this.topics) {
+			List<String> expected = this.sites[0].docs.get(topic);
+			for (int i = 1; i < this.sites.length; i++) {
+				if (!this.sites[i].docs.get(topic).equals(expected)) {
+					System.out.println("site " + i + " diverged on " + topic);
+					converged = false;
+				}
+			}
+		}
+		return converged;
+	}
+
+	/**
+	 * Sends a message over the link between two sites, never overtaking
+	 * an earlier message on the same link.
+	 */
+	private void send(Site from, int to, int type, Message m) {
+		long arrival = this.now + this.random.nextInt(this.maxDelay + 1);
+		arrival = Math.max(arrival, from.linkBusy[to]);
+		from.linkBusy[to] = arrival;
+		this.events.add(new Event(arrival, this.eventSeq++, type, to, m));
+	}
+
+	private void schedule(long delay, int type, int site, Message m) {
+		this.events.add(new Event(this.now + delay, this.eventSeq++, type,
+				site, m));
+	}
+
+	private long nextOpDelay() {
+		return 1 + (long) (-Math.log(1 - this.random.nextDouble()) *
+				OP_INTERVAL * (this.sites.length - 1));
+	}
+
+	private static void apply(List<String> doc, Operation op) {
+		int position = op.getPosition();
+		switch (op.getType()) {
+		case INSERT:
+			doc.add(position, op.getValue());
+			break;
+		case DELETE:
+			doc.remove(position);
+			break;
+		case UPDATE:
+			doc.set(position, op.getValue());
+			break;
+		case INSERT_RANGE:
+			String s = op.getValue();
+			for (int i = s.length() - 2; i > 0; i--) {
+				doc.add(position, s.substring(i, i + 1));
+			}
+			break;
+		case DELETE_RANGE:
+			int[] ranges = ((DeleteRangeOperation) op).getRanges();
+			for (int i = ranges.length - 2; i >= 0; i -= 2) {
+				doc.subList(ranges[i], ranges[i + 1]).clear();
+			}
+			break;
+		}
+	}
+
+	private static int[] copy(int[] sites) {
+		return Arrays.copyOf(sites, sites.length);
+	}
+
+	/**
+	 * A simulated site with its engine and lists.
+	 */
+	private class Site {
+		final int id;
+		final MergeEngine engine;
+		final Map<String, List<String>> docs = new HashMap<String, List<String>>();
+		// arrival time of the last message sent to each site
+		final long[] linkBusy;
+
+		Site(int id, String[] topics) throws OperationEngineException {
+			this.id = id;
+			if (Simulator.this.sequence) {
+				this.engine = new SequenceEngine(id);
+			} else {
+				this.engine = new OperationEngine(id);
+			}
+			for (String topic : topics) {
+				this.docs.put(topic, new ArrayList<String>());
+			}
+			this.linkBusy = new long[Simulator.this.sites.length];
+		}
+	}
+
+	/**
+	 * An op or an engine sync on the wire.
+	 */
+	private static class Message {
+		String topic;
+		String value;
+		String type;
+		int position;
+		int site;
+		int[] context;
+		int order;
+		boolean sync = false;
+	}
+
+	private static class Event {
+		static final int LOCAL_OP = 0;
+		static final int AT_SERVER = 1;
+		static final int AT_SITE = 2;
+		static final int ENGINE_SYNC = 3;
+		static final int PURGE = 4;
+
+		final long time;
+		final long seq;
+		final int type;
+		final int site;
+		final Message message;
+
+		Event(long time, long seq, int type, int site, Message message) {
+			this.time = time;
+			this.seq = seq;
+			this.type = type;
+			this.site = site;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.coweb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.EngineState;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of serializing the engine state, as done for every late joiner, and
+ * of restoring an engine from it, either as the state array or as a binary
+ * snapshot. getStateSnapshot is the part of serializing that still holds
+ * the engine lock.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int sites;
+
+	@Param({"100", "1000"})
+	public int history;
+
+	private OperationEngine engine;
+	private Object[] state;
+	private byte[] snapshot;
+
+	@Setup
+	public void setUp() throws OperationEngineException {
+		OpStream stream = new OpStream(this.sites);
+		this.engine = stream.build(this.history);
+		stream.syncSites(this.engine);
+		this.state = this.engine.getState();
+		this.snapshot = this.engine.getSnapshot();
+	}
+
+	@Benchmark
+	public Object[] getState() {
+		return this.engine.getState();
+	}
+
+	@Benchmark
+	public EngineState getStateSnapshot() {
+		return this.engine.getStateSnapshot();
+	}
+
+	@Benchmark
+	public OperationEngine setState() throws OperationEngineException {
+		OperationEngine engine = new OperationEngine(this.sites);
+		engine.setState(this.state);
+		return engine;
+	}
+
+	@Benchmark
+	public byte[] getSnapshot() throws OperationEngineException {
+		return this.engine.getSnapshot();
+	}
+
+	@Benchmark
+	public OperationEngine setSnapshot() throws OperationEngineException {
+		OperationEngine engine = new OperationEngine(this.sites);
+		engine.setSnapshot(this.snapshot);
+		return engine;
+	}
+}
@@ -0,0 +1,186 @@
+package org.coweb.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.coweb.oe.MergeEngine;
+import org.coweb.oe.Operation;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.coweb.oe.SequenceEngine;
+
+/**
+ * Fixed trace of remote inserts, deletes and updates on one or more topics,
+ * for feeding different kinds of engine the same ops. The engines under
+ * test are site 0. The ops come in bursts. Like in {@link OpStream}, sites
+ * 1 to sites-1 take turns and each op misses the last sites-1 ops of the
+ * others in its burst. Between bursts every site catches up and sends an
+ * engine sync, so a purge can drop the burst. Positions stay within the
+ * length of the list in the op context whatever engine merges the ops.
+ * With more than one topic each op goes to a random one, and its position
+ * stays within the list of that topic.
+ */
+final class Trace {
+
+	static final String TOPIC = OpStream.TOPIC;
+
+	// ops per burst
+	private static final int SYNC_INTERVAL = 100;
+
+	private final int sites;
+	private final String[] topics;
+	// index into topics of each op
+	private final int[] keys;
+	private final String[] types;
+	private final String[] values;
+	private final int[] positions;
+	private final int[] senders;
+	private final int[][] contexts;
+	// context of the engine syncs after each burst
+	private final int[][] syncs;
+
+	Trace(int sites, int length, long seed) {
+		this(sites, length, seed, 1);
+	}
+
+	Trace(int sites, int length, long seed, int topics) {
+		this.sites = sites;
+		this.topics = new String[topics];
+		for (int t = 0; t < topics; t++) {
+			this.topics[t] = topics == 1 ? TOPIC : TOPIC + t;
+		}
+		this.keys = new int[length];
+		this.types = new String[length];
+		this.values = new String[length];
+		this.positions = new int[length];
+		this.senders = new int[length];
+		this.contexts = new int[length][];
+		this.syncs = new int[length / SYNC_INTERVAL][];
+
+		Random random = new Random(seed);
+		int lag = sites - 1;
+		int[] count = new int[sites];
+		// inserts minus deletes on each topic among the first n ops of each
+		// site
+		int[][][] growth = new int[topics][sites][length + 1];
+		int[][] before = new int[lag + 1][];
+		// ops every site has seen at the start of the burst
+		int[] cut = new int[sites];
+		for (int i = 0; i < length; i++) {
+			int site = 1 + i % (sites - 1);
+			before[i % before.length] = count.clone();
+			int[] cv = i - lag < i / SYNC_INTERVAL * SYNC_INTERVAL ?
+				cut.clone() : before[(i - lag) % before.length].clone();
+			cv[site] = count[site];
+
+			int key = topics == 1 ? 0 : random.nextInt(topics);
+			// concurrent deletes of one element only make the list longer
+			// than this
+			int size = 0;
+			for (int s = 1; s < sites; s++) {
+				size += growth[key][s][cv[s]];
+			}
+			int roll = random.nextInt(10);
+			String type = size == 0 || roll < 6 ? "insert" :
+				roll < 8 ? "delete" : "update";
+			int delta = type.equals("insert") ? 1 :
+				type.equals("delete") ? -1 : 0;
+			for (int t = 0; t < topics; t++) {
+				growth[t][site][count[site] + 1] = growth[t][site][count[site]] +
+					(t == key ? delta : 0);
+			}
+
+			this.keys[i] = key;
+			this.types[i] = type;
+			this.values[i] = type.equals("delete") ? null : OpStream.VALUE;
+			this.positions[i] = random.nextInt(
+					type.equals("insert") ? size + 1 : size);
+			this.senders[i] = site;
+			this.contexts[i] = cv;
+			count[site]++;
+
+			if ((i + 1) % SYNC_INTERVAL == 0) {
+				cut = count.clone();
+				this.syncs[i / SYNC_INTERVAL] = cut;
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty engine of a kind at site 0.
+	 *
+	 * @param engine "transform" or "sequence"
+	 */
+	static MergeEngine newEngine(String engine) throws OperationEngineException {
+		if (engine.equals("sequence")) {
+			return new SequenceEngine(0);
+		}
+		return new OperationEngine(0);
+	}
+
+	/**
+	 * Gets the number of topics the ops go to.
+	 */
+	int getTopicCount() {
+		return this.topics.length;
+	}
+
+	/**
+	 * Pushes the whole trace into an engine, with the engine syncs and a
+	 * purge after every burst, as a server would.
+	 *
+	 * @return Number of ops with an effect
+	 */
+	int replay(MergeEngine engine) throws OperationEngineException {
+		return this.replay(engine, -1, null);
+	}
+
+	/**
+	 * Pushes the ops on one topic into an engine, or all of them for topic
+	 * -1, with the engine syncs and a purge after every burst. The syncs
+	 * carry contexts of the whole trace, as they do for the engine of each
+	 * topic at a server with parallelTopicSync, so an engine for one topic
+	 * must be partitioned.
+	 *
+	 * @param hashes Hash per topic to fold the transformed ops into in
+	 *        order, or null
+	 * @return Number of ops with an effect
+	 */
+	int replay(MergeEngine engine, int topic, long[] hashes)
+			throws OperationEngineException {
+		int applied = 0;
+		for (int i = 0; i < this.types.length; i++) {
+			int key = this.keys[i];
+			if (topic < 0 || key == topic) {
+				int[] cv = this.contexts[i];
+				Operation op = engine.push(false, this.topics[key],
+						this.values[i], this.types[i], this.positions[i],
+						this.senders[i], Arrays.copyOf(cv, cv.length), i);
+				if (op != null) {
+					++applied;
+				}
+				if (hashes != null) {
+					hashes[key] = hashes[key] * 31 + hash(op);
+				}
+			}
+			if ((i + 1) % SYNC_INTERVAL == 0) {
+				int[] sync = this.syncs[i / SYNC_INTERVAL];
+				for (int s = 1; s < this.sites; s++) {
+					engine.pushSyncWithSites(s, Arrays.copyOf(sync,
+							sync.length));
+				}
+				engine.purge();
+			}
+		}
+		return applied;
+	}
+
+	// what a site applies for a transformed op
+	private static int hash(Operation op) {
+		if (op == null) {
+			return 0;
+		}
+		int h = op.getType().ordinal() * 31 + op.getPosition();
+		return h * 31 + (op.getValue() == null ? 0 : op.getValue().hashCode());
+	}
+}
@@ -0,0 +1,55 @@
+package org.coweb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.coweb.oe.Operation;
+import org.coweb.oe.OperationEngine;
+import org.coweb.oe.OperationEngineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of transforming a remote op from a new site against the whole
+ * history, none of which it has seen. The history itself is concurrent, so
+ * the transform has to upgrade the context of the history ops as it goes.
+ * Every invocation gets a fresh engine since the transform fills the caches
+ * on the history ops.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+
+	@Param({"2", "8", "32"})
+	public int sites;
+
+	@Param({"100", "1000"})
+	public int history;
+
+	private OperationEngine engine;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws OperationEngineException {
+		this.engine = new OpStream(this.sites).build(this.history);
+	}
+
+	@Benchmark
+	public Operation transformAgainstHistory() throws OperationEngineException {
+		return this.engine.push(false, OpStream.TOPIC, OpStream.VALUE,
+				"insert", 0, this.sites, new int[this.sites + 1],
+				this.history);
+	}
+}
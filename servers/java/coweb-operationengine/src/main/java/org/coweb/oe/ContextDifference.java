@@ -1,33 +1,51 @@
 package org.coweb.oe;
 
 import java.util.Arrays;
-import java.util.Vector;
 
 public class ContextDifference {
-	
-	public Vector<Integer> sites;
-	public Vector<Integer> seqs;
-	
-	
+
+	// (site, start, end) triples, end exclusive
+	private int[] ranges;
+	private int count;
+	private int size;
+
+
 	public ContextDifference() {
-		this.sites = new Vector<Integer>();
-		this.seqs = new Vector<Integer>();
+		this.ranges = new int[12];
+		this.count = 0;
+		this.size = 0;
 	}
-	
-	
+
+
 	/**
-     * Adds a range of operations to the difference.
+     * Adds a range of operations to the difference. Extends the last range
+     * instead if the new one continues it.
      *
      * @param site Integer site ID
      * @param start First integer operation sequence number, inclusive
      * @param end Last integer operation sequence number, exclusive
      */
     public void addRange(int site, int start, int end) {
-        for(int i=start; i < end; i++) {
-            this.addSiteSeq(site, i);
-        }
+    	if(start >= end) {
+    		return;
+    	}
+    	int last = (this.count - 1) * 3;
+    	if(this.count > 0 && this.ranges[last] == site &&
+    		this.ranges[last + 2] == start) {
+    		this.ranges[last + 2] = end;
+    	} else {
+    		if((this.count + 1) * 3 > this.ranges.length) {
+    			this.ranges = Arrays.copyOf(this.ranges, this.ranges.length * 2);
+    		}
+    		int i = this.count * 3;
+    		this.ranges[i] = site;
+    		this.ranges[i + 1] = start;
+    		this.ranges[i + 2] = end;
+    		++this.count;
+    	}
+    	this.size += end - start;
     }
-    
+
     /**
      * Adds a single operation to the difference.
      *
@@ -35,35 +53,101 @@ public class ContextDifference {
      * @param seq Integer sequence number
      */
     public void addSiteSeq(int site, int seq) {
-        this.sites.addElement(new Integer(site));
-        this.seqs.addElement(new Integer(seq));        
+        this.addRange(site, seq, seq + 1);
+    }
+
+    /**
+     * Gets the number of (site, start, end) ranges in the difference.
+     *
+     * @return Integer count
+     */
+    public int getRangeCount() {
+    	return this.count;
+    }
+
+    /**
+     * Gets the site ID of a range.
+     *
+     * @param i Integer index of the range
+     * @return Integer site ID
+     */
+    public int getRangeSite(int i) {
+    	return this.ranges[i * 3];
     }
-    
+
+    /**
+     * Gets the first sequence number of a range.
+     *
+     * @param i Integer index of the range
+     * @return Integer sequence number, inclusive
+     */
+    public int getRangeStart(int i) {
+    	return this.ranges[i * 3 + 1];
+    }
+
+    /**
+     * Gets the last sequence number of a range.
+     *
+     * @param i Integer index of the range
+     * @return Integer sequence number, exclusive
+     */
+    public int getRangeEnd(int i) {
+    	return this.ranges[i * 3 + 2];
+    }
+
+    /**
+     * Gets the number of operations represented in the difference.
+     *
+     * @return Integer count
+     */
+    public int size() {
+    	return this.size;
+    }
+
+    /**
+     * Gets if the difference represents no operations.
+     *
+     * @return True if empty
+     */
+    public boolean isEmpty() {
+    	return this.size == 0;
+    }
+
     /**
      * Gets the histor buffer keys for all the operations represented in this
      * context difference.
      *
      * @return Array of keys for HistoryBuffer lookups
      */
-    public String[] getHistoryBufferKeys() {
-		Vector<String> arr = new Vector<String>();
-		int l = this.seqs.size();
-        for(int i=0; i < l; i++) {
-            String key = Operation.createHistoryKey(this.sites.elementAt(i), 
-                this.seqs.elementAt(i));
-            arr.addElement(key);
+    public long[] getHistoryBufferKeys() {
+		long[] keys = new long[this.size];
+		int k = 0;
+        for(int i=0; i < this.count; i++) {
+        	int site = this.getRangeSite(i);
+        	int end = this.getRangeEnd(i);
+        	for(int seq=this.getRangeStart(i); seq < end; seq++) {
+        		keys[k++] = Operation.createHistoryKey(site, seq);
+        	}
         }
-        
-        String[] strArr = new String[arr.size()];
-        return arr.toArray(strArr);
+        return keys;
 	}
-    
+
     /**
      * Converts the contents of this context difference to a string.
      *
-     * @return All keys in the difference (for debug)
+     * @return All ranges in the difference (for debug)
      */
     public String toString() {
-        return Arrays.toString(this.getHistoryBufferKeys());
+    	StringBuffer b = new StringBuffer();
+    	b.append("[");
+    	for(int i=0; i < this.count; i++) {
+    		if(i > 0) {
+    			b.append(", ");
+    		}
+    		b.append(this.getRangeSite(i) + ":" + this.getRangeStart(i) +
+    			"-" + this.getRangeEnd(i));
+    	}
+    	b.append("]");
+        return b.toString();
     }
 }
@@ -1,32 +1,179 @@
 package org.coweb.oe;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Arrays;
 
+/**
+ * Sequence number of the newest op seen from each site. A vector at least
+ * SPARSE_WIDTH sites wide with few nonzero entries keeps only those, since
+ * in long sessions most sites are observers that never send an op; the
+ * vector switches between the two forms by itself as it changes.
+ */
 public class ContextVector {
 	
+	// width at which a mostly zero vector goes sparse
+	static final int SPARSE_WIDTH = 64;
+	
+	// dense sequence numbers indexed by site, or null while sparse
 	private int[] sites;
+	
+	// while sparse: site IDs of the stored entries in ascending order, their
+	// sequence numbers, the number of entries and the width of the vector
+	private int[] ids;
+	private int[] seqs;
+	private int count;
+	private int width;
 		
 	public ContextVector(Map<String, Object> args) throws OperationEngineException {
 		if(args.containsKey("count")) {
-			this.sites = new int[((Integer)args.get("count")).intValue()];
+			this.init(new int[((Integer)args.get("count")).intValue()]);
 		}
 		else if(args.containsKey("contextVector")) {
-			this.sites = ((ContextVector)args.get("contextVector")).copySites();
+			this.copyFrom((ContextVector)args.get("contextVector"));
 		}
 		else if(args.containsKey("sites")) {
 			int[] s = (int[])args.get("sites");
-			this.sites = Arrays.copyOf(s, s.length);
+			this.init(Arrays.copyOf(s, s.length));
 		}
 		else if(args.containsKey("state")) {
-			this.sites = (int[])args.get("state");
+			this.init((int[])args.get("state"));
 		}
 		else {
 			throw new OperationEngineException("uninitialized context vector");
 		}
 	}
 	
+	/**
+     * Creates a context vector with all sequence numbers zero.
+     *
+     * @param count Integer number of sites in the vector
+     */
+	public ContextVector(int count) {
+		if(count >= SPARSE_WIDTH) {
+			this.sparse(new int[4], new int[4], 0, count);
+		} else {
+			this.sites = new int[count];
+		}
+	}
+	
+	/**
+     * Creates a context vector from a copy of the given sequence numbers.
+     *
+     * @param sites Array of integer sequence numbers indexed by site
+     */
+	public ContextVector(int[] sites) {
+		if(!this.compact(sites)) {
+			this.sites = Arrays.copyOf(sites, sites.length);
+		}
+	}
+	
+	/**
+     * Creates an independent copy of another context vector.
+     *
+     * @param cv Context vector to copy
+     */
+	public ContextVector(ContextVector cv) {
+		this.copyFrom(cv);
+	}
+	
+	private void init(int[] sites) {
+		if(!this.compact(sites)) {
+			this.sites = sites;
+		}
+	}
+	
+	private void copyFrom(ContextVector cv) {
+		if(cv.sites == null) {
+			this.sparse(Arrays.copyOf(cv.ids, Math.max(cv.count, 4)),
+					Arrays.copyOf(cv.seqs, Math.max(cv.count, 4)), cv.count,
+					cv.width);
+		} else if(!this.compact(cv.sites)) {
+			this.sites = cv.copySites();
+		}
+	}
+	
+	private void sparse(int[] ids, int[] seqs, int count, int width) {
+		this.sites = null;
+		this.ids = ids;
+		this.seqs = seqs;
+		this.count = count;
+		this.width = width;
+	}
+	
+	/**
+	 * Goes sparse with the nonzero entries of the given sequence numbers if
+	 * there are few enough of them.
+	 *
+	 * @return True if now sparse
+	 */
+	private boolean compact(int[] sites) {
+		if(sites.length < SPARSE_WIDTH) {
+			return false;
+		}
+		int n = 0;
+		for(int i=0; i < sites.length; i++) {
+			if(sites[i] != 0 && ++n * 4 > sites.length) {
+				return false;
+			}
+		}
+		int[] ids = new int[Math.max(n, 4)];
+		int[] seqs = new int[ids.length];
+		n = 0;
+		for(int i=0; i < sites.length; i++) {
+			if(sites[i] != 0) {
+				ids[n] = i;
+				seqs[n++] = sites[i];
+			}
+		}
+		this.sparse(ids, seqs, n, sites.length);
+		return true;
+	}
+	
+	/**
+	 * Finds a site among the stored entries of a sparse vector.
+	 *
+	 * @return Index of the entry, or -(insertion point) - 1 if absent
+	 */
+	private int find(int site) {
+		return Arrays.binarySearch(this.ids, 0, this.count, site);
+	}
+	
+	/**
+	 * Gets the first site at or after the given one that may have a nonzero
+	 * sequence number, so loops can skip the gaps of a sparse vector. A dense
+	 * vector gets the given site back.
+	 *
+	 * @param site Integer site ID to start at
+	 * @return Integer site ID, or Integer.MAX_VALUE if there is none
+	 */
+	int nextSite(int site) {
+		if(this.sites != null) {
+			return site < this.sites.length ? site : Integer.MAX_VALUE;
+		}
+		int i = this.find(site);
+		if(i < 0) {
+			i = -i - 1;
+		}
+		return i < this.count ? this.ids[i] : Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Raises each entry to at least the entry for the same site in the given
+	 * context vector, and grows this vector to its size.
+	 *
+	 * @param cv Other context vector
+	 */
+	void raise(ContextVector cv) {
+		this.growTo(cv.getSize());
+		for(int site=cv.nextSite(0); site != Integer.MAX_VALUE;
+				site=cv.nextSite(site+1)) {
+			int seq = cv.getSeqForSite(site);
+			if(seq > this.getSeqForSite(site)) {
+				this.setSeqForSite(site, seq);
+			}
+		}
+	}
+	
 	/**
      * Converts the contents of this context vector sites array to a string.
      *
@@ -35,18 +182,18 @@ public class ContextVector {
 	@Override
 	public String toString() {
 		StringBuffer b = new StringBuffer();
-		b.append(Arrays.toString(this.sites));
+		b.append(Arrays.toString(this.getSites()));
 		
 		return b.toString();
 	}
 	
 	/**
-     * Serializes this context vector.
+     * Serializes this context vector. A sparse vector builds the array anew.
      *
      * @return Array of integer sequence numbers
      */
 	public int[] getState() {
-		return this.sites;
+		return this.getSites();
 	}
 	
 	
@@ -57,11 +204,7 @@ public class ContextVector {
      * @return Copy of this context vector
      */
 	public ContextVector copy() throws OperationEngineException {
-		
-		HashMap<String, Object> args = new HashMap<String, Object>();
-		args.put("contextVector", this);
-		
-		return new ContextVector(args);
+		return new ContextVector(this);
 	}
 	
 	/**
@@ -70,6 +213,9 @@ public class ContextVector {
      * @return Copy of this context vector's sites array
      */
 	public int[] copySites() {
+		if(this.sites == null) {
+			return this.getSites();
+		}
 		return Arrays.copyOf(this.sites, this.sites.length);
 	}
 	
@@ -82,6 +228,16 @@ public class ContextVector {
      */
 	public ContextDifference subtract(ContextVector cv) {
 		ContextDifference cd = new ContextDifference();
+		if(this.sites == null) {
+			// only sites with a sequence number above zero can differ
+			for(int j=0; j < this.count; j++) {
+				int b = cv.getSeqForSite(this.ids[j]);
+				if(this.seqs[j]-b > 0) {
+					cd.addRange(this.ids[j], b+1, this.seqs[j]+1);
+				}
+			}
+			return cd;
+		}
         for(int i=0; i < this.sites.length; i++) {
             int a = this.getSeqForSite(i);
             int b = cv.getSeqForSite(i);
@@ -102,6 +258,15 @@ public class ContextVector {
      */
 	public ContextDifference oldestDifference(ContextVector cv) {
 		ContextDifference cd = new ContextDifference();
+		if(this.sites == null) {
+			for(int j=0; j < this.count; j++) {
+				int b = cv.getSeqForSite(this.ids[j]);
+				if(this.seqs[j]-b > 0) {
+					cd.addSiteSeq(this.ids[j], b+1);
+				}
+			}
+			return cd;
+		}
         for(int i=0; i < this.sites.length; i++) {
             int a = this.getSeqForSite(i);
             int b = cv.getSeqForSite(i);
@@ -119,6 +284,18 @@ public class ContextVector {
      * @param count Desired integer size of the vector
      */
 	public void growTo(int count) {
+		if(this.sites == null) {
+			this.width = Math.max(this.width, count);
+			return;
+		}
+		if(count <= this.sites.length) {
+			// never shrink
+			return;
+		}
+		if(count >= SPARSE_WIDTH && this.compact(this.sites)) {
+			this.width = count;
+			return;
+		}
 		
 		//System.out.println("growTo before new count = " + count + " old array = " + this.toString());
 		int[] newSites = new int[count];
@@ -132,6 +309,22 @@ public class ContextVector {
 		//System.out.println("growTo after = " + this.toString());
 	}
 	
+	/**
+	 * Narrows the vector to the given size, dropping the entries past it.
+	 *
+	 * @param count Desired integer size of the vector
+	 */
+	void truncate(int count) {
+		if(this.sites == null) {
+			this.width = Math.min(this.width, count);
+			while(this.count > 0 && this.ids[this.count-1] >= count) {
+				--this.count;
+			}
+		} else if(count < this.sites.length) {
+			this.sites = Arrays.copyOf(this.sites, count);
+		}
+	}
+	
 	/**
      * Gets the sequence number for the given site in this context vector.
      * Grows the vector if it does not include the site yet.
@@ -140,9 +333,13 @@ public class ContextVector {
      * @return Integer sequence number for the site
      */
 	public int getSeqForSite(int site) {
-		if(this.sites.length <= site) {
+		if(this.getSize() <= site) {
             this.growTo(site+1);
         }
+		if(this.sites == null) {
+			int i = this.find(site);
+			return i < 0 ? 0 : this.seqs[i];
+		}
         return this.sites[site];
 	}
 	
@@ -154,19 +351,52 @@ public class ContextVector {
      * @param seq Integer sequence number
      */
 	public void setSeqForSite(int site, int seq) {	
-		if(this.sites.length <= site) {
+		if(this.getSize() <= site) {
             this.growTo(site+1);
         }
+		if(this.sites == null) {
+			this.setSparse(site, seq);
+			return;
+		}
         this.sites[site] = seq;
 	}
 	
+	private void setSparse(int site, int seq) {
+		int i = this.find(site);
+		if(i >= 0) {
+			this.seqs[i] = seq;
+			return;
+		}
+		if(seq == 0) {
+			return;
+		}
+		if((this.count+1) * 2 > this.width) {
+			// too full to be worth it, go dense
+			this.sites = this.getSites();
+			this.ids = null;
+			this.seqs = null;
+			this.sites[site] = seq;
+			return;
+		}
+		i = -i - 1;
+		if(this.count == this.ids.length) {
+			this.ids = Arrays.copyOf(this.ids, this.count * 2);
+			this.seqs = Arrays.copyOf(this.seqs, this.count * 2);
+		}
+		System.arraycopy(this.ids, i, this.ids, i+1, this.count-i);
+		System.arraycopy(this.seqs, i, this.seqs, i+1, this.count-i);
+		this.ids[i] = site;
+		this.seqs[i] = seq;
+		++this.count;
+	}
+	
 	/**
      * Gets the size of this context vector.
      *
      * @return Integer size
      */
 	public int getSize() {
-		return this.sites.length;
+		return this.sites == null ? this.width : this.sites.length;
 	}
 	
 	/**
@@ -178,6 +408,9 @@ public class ContextVector {
      * @return True if equal, false if not
      */
     public boolean equals(ContextVector cv) {
+        if(this.sites == null || cv.sites == null) {
+        	return this.compare(cv) == 0;
+        }
         int[] a = this.sites;
         int[] b = cv.sites;
         
@@ -192,7 +425,48 @@ public class ContextVector {
         }
         return true;
     }
-    
+
+    @Override
+    public boolean equals(Object obj) {
+    	if(!(obj instanceof ContextVector)) {
+    		return false;
+    	}
+    	return this.equals((ContextVector)obj);
+    }
+
+    /**
+     * Hashes the sequence IDs at each site consistently with equals, so
+     * trailing zeros do not contribute to the hash.
+     *
+     * @return Integer hash code
+     */
+    @Override
+    public int hashCode() {
+    	if(this.sites == null) {
+    		// same as the dense loop, with each run of zeros skipped as one
+    		// multiplication by a power of 31
+    		int h = 1;
+    		int prev = -1;
+    		for(int j=0; j < this.count; j++) {
+    			if(this.seqs[j] != 0) {
+    				h = h * pow31(this.ids[j] - prev) + this.seqs[j];
+    				prev = this.ids[j];
+    			}
+    		}
+    		return h;
+    	}
+    	int[] a = this.sites;
+    	int end = a.length;
+    	while(end > 0 && a[end-1] == 0) {
+    		--end;
+    	}
+    	int h = 1;
+    	for(int i=0; i < end; i++) {
+    		h = 31 * h + a[i];
+    	}
+    	return h;
+    }
+
     /**
      * Computes an ordered comparison of two context vectors according to the
      * sequence IDs at each site. If the vectors are of different sizes, 
@@ -204,6 +478,38 @@ public class ContextVector {
      *   other
      */
     public int compare(ContextVector cv) {
+        if(this.sites == null && cv.sites == null) {
+        	// merge the entries of both
+        	int i = 0;
+        	int j = 0;
+        	while(i < this.count || j < cv.count) {
+        		int sa = (i < this.count) ? this.ids[i] : Integer.MAX_VALUE;
+        		int sb = (j < cv.count) ? cv.ids[j] : Integer.MAX_VALUE;
+        		int va = (sa <= sb) ? this.seqs[i++] : 0;
+        		int vb = (sb <= sa) ? cv.seqs[j++] : 0;
+        		if(va < vb) {
+        			return -1;
+        		} else if(va > vb) {
+        			return 1;
+        		}
+        	}
+        	return 0;
+        }
+        if(this.sites == null || cv.sites == null) {
+        	// walk the sites either vector may have nonzero
+        	int site = Math.min(this.nextSite(0), cv.nextSite(0));
+        	while(site != Integer.MAX_VALUE) {
+        		int va = this.peek(site);
+        		int vb = cv.peek(site);
+        		if(va < vb) {
+        			return -1;
+        		} else if(va > vb) {
+        			return 1;
+        		}
+        		site = Math.min(this.nextSite(site+1), cv.nextSite(site+1));
+        	}
+        	return 0;
+        }
         int[] a = this.sites;
         int[] b = cv.sites;
         // acount for different size vectors
@@ -221,7 +527,44 @@ public class ContextVector {
     }
     
     
+    private static int pow31(int n) {
+    	int r = 1;
+    	int b = 31;
+    	while(n > 0) {
+    		if((n & 1) != 0) {
+    			r *= b;
+    		}
+    		b *= b;
+    		n >>= 1;
+    	}
+    	return r;
+    }
+    
+    /**
+     * Gets the sequence number for a site without growing the vector.
+     */
+    private int peek(int site) {
+    	if(this.sites != null) {
+    		return site < this.sites.length ? this.sites[site] : 0;
+    	}
+    	int i = this.find(site);
+    	return i < 0 ? 0 : this.seqs[i];
+    }
+    
+    /**
+     * Gets the sequence numbers indexed by site. A dense vector returns its
+     * own array and a sparse one builds a new array each time.
+     *
+     * @return Array of integer sequence numbers
+     */
 	public int[] getSites() {
+		if(this.sites == null) {
+			int[] a = new int[this.width];
+			for(int j=0; j < this.count; j++) {
+				a[this.ids[j]] = this.seqs[j];
+			}
+			return a;
+		}
 		return this.sites;
 	}
 	
@@ -2,16 +2,33 @@ package org.coweb.oe;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 
 public class ContextVectorTable {
 	
 	private ArrayList<ContextVector> cvt;
 	
+	// site whose context vector is the live one of the owning engine
+	private int ownerSite;
+	// live context vector of the owning engine; rows sharing it (the owner
+	// and any frozen sites) change without the table knowing
+	private ContextVector live = null;
+	// number of rows referencing the live context vector
+	private int liveRows = 0;
+	
+	// minimum sequence number per site among rows not referencing the live
+	// context vector, how many of those rows hold it, and whether the
+	// column needs a rescan because its last holder moved on
+	private int[] colMin = new int[0];
+	private int[] colMinCount = new int[0];
+	private boolean[] colDirty = new boolean[0];
+	private int dirtyCount = 0;
+	
 	public ContextVectorTable(ContextVector cv, int site) throws OperationEngineException {
 		this.cvt = new ArrayList<ContextVector>();
+		this.ownerSite = site;
+		this.live = cv;
 		this.growTo(site + 1);
-		this.cvt.set(site, cv);
+		this.setRow(site, cv);
 	}
 	
 	/**
@@ -64,6 +81,8 @@ public class ContextVectorTable {
     
     /**
      * Serializes the state of this context vector table for transmission.
+     * The rows are copies, so the state stays as it was when taken while
+     * the table moves on.
      *
      * @return Array of context vectors serialized as arrays
      */
@@ -74,7 +93,7 @@ public class ContextVectorTable {
         for(int i=0; i < l; i++) {
         	ContextVector cv = this.cvt.get(i);
         	
-            arr[i] = cv.getState();
+            arr[i] = cv.copySites();
         }
         return arr;
 	}
@@ -90,11 +109,13 @@ public class ContextVectorTable {
 		this.cvt = new ArrayList<ContextVector>(arr.length);
 		
 		for(int i=0; i<arr.length; i++) {
-			HashMap<String, Object> args = new HashMap<String, Object>();
-			args.put("state", arr[i]);
-			this.cvt.add(new ContextVector(args));
+			this.cvt.add(new ContextVector(arr[i]));
 		}
 		
+		// the owner row is now a plain copy until the engine installs its
+		// live context vector again
+		this.live = null;
+		this.rebuildColumns();
 	}
 	
 	/**
@@ -107,18 +128,30 @@ public class ContextVectorTable {
      */
     public void growTo(int count) throws OperationEngineException {
     	int l = cvt.size();
+    	if(count <= l) {
+    		return;
+    	}
     	
     	// grow all context vectors
         for(int i=0; i < l; i++) {
             this.cvt.get(i).growTo(count);
         }
         
+        // rows set from longer vectors may already hold values for the new
+        // sites, so scan them when next needed
+        this.colMin = Arrays.copyOf(this.colMin, count);
+        this.colMinCount = Arrays.copyOf(this.colMinCount, count);
+        this.colDirty = Arrays.copyOf(this.colDirty, count);
+        for(int s=l; s < count; s++) {
+        	this.colDirty[s] = true;
+        	++this.dirtyCount;
+        }
+        
         // add new vectors of proper size
         for(int j=l; j < count; j++) {
-        	HashMap<String, Object>args = new HashMap<String, Object>();
-        	args.put("count", count);
-            ContextVector cv = new ContextVector(args);
+        	ContextVector cv = new ContextVector(count);
             this.cvt.add(cv);
+            this.replaceInColumns(null, cv);
         }
     }
 	
@@ -156,7 +189,58 @@ public class ContextVectorTable {
             // make sure the given cv is of the right size too
             cv.growTo(site+1);
         }
-        this.cvt.set(site, cv);
+        if(site == this.ownerSite && cv != this.live) {
+        	// the owning engine replaced its live context vector
+        	this.cvt.set(site, cv);
+        	this.live = cv;
+        	this.rebuildColumns();
+        } else {
+        	this.setRow(site, cv);
+        }
+	}
+
+	/**
+	 * Raises single entries in the row of a site, as reported by a delta
+	 * engine sync. Entries not listed stay as they are and no entry goes
+	 * down, so a delta arriving after newer news from the site does no harm.
+	 * Costs time proportional to the number of entries given.
+	 *
+	 * @param site Integer site ID of the row
+	 * @param changes Pairs of site ID and sequence number
+	 * @throws OperationEngineException
+	 */
+	public void raiseSites(int site, int[] changes) throws OperationEngineException {
+		int max = site;
+		for(int i=0; i < changes.length; i += 2) {
+			max = Math.max(max, changes[i]);
+		}
+		this.growTo(max + 1);
+		ContextVector row = this.cvt.get(site);
+		if(row == this.live) {
+			// the site was frozen, give it a row of its own
+			ContextVector cv = row.copy();
+			for(int i=0; i < changes.length; i += 2) {
+				if(changes[i+1] > cv.getSeqForSite(changes[i])) {
+					cv.setSeqForSite(changes[i], changes[i+1]);
+				}
+			}
+			this.updateWithContextVector(site, cv);
+			return;
+		}
+		for(int i=0; i < changes.length; i += 2) {
+			int s = changes[i];
+			int o = row.getSeqForSite(s);
+			if(changes[i+1] <= o) {
+				continue;
+			}
+			row.setSeqForSite(s, changes[i+1]);
+			if(!this.colDirty[s] && o == this.colMin[s] &&
+					--this.colMinCount[s] == 0) {
+				// last holder of the minimum moved on, rescan when needed
+				this.colDirty[s] = true;
+				++this.dirtyCount;
+			}
+		}
 	}
 
 	/**
@@ -184,27 +268,241 @@ public class ContextVectorTable {
      * @return Minium context vector
      */
 	public ContextVector getMinimumContextVector() throws OperationEngineException {
+		return this.getMinimumContextVector(true);
+	}
+	
+	/**
+     * Gets the context vector with the minimum sequence number for each site
+     * among the context vectors in the table, optionally leaving out the rows
+     * that reference the live context vector of the owning engine. Gets null
+     * if there are no rows to take the minimum over.
+	 * @throws OperationEngineException 
+     *
+     * @param includeLive True to include the owner and its frozen sites
+     * @return Minium context vector
+     */
+	public ContextVector getMinimumContextVector(boolean includeLive) throws OperationEngineException {
 		// if table is empty, abort
         if(this.cvt == null || this.cvt.size() == 0) {
             return null;
         }
-
-        // start with first context vector as a guess of which is minimum
-        ContextVector mcv = this.cvt.get(0).copy();
+        if(!includeLive && this.liveRows == this.cvt.size()) {
+        	return null;
+        }
+        
         int l = this.cvt.size();
+        if(this.dirtyCount > 0) {
+        	for(int site=0; site < l; site++) {
+        		if(this.colDirty[site]) {
+        			this.scanColumn(site);
+        		}
+        	}
+        	this.dirtyCount = 0;
+        }
         
-        for(int i=1; i < l; i++) {
-            ContextVector cv = this.cvt.get(i);
-            // cvt has to equal the max vector size contained within
-            for(int site = 0; site < l; site++) {
-                int seq = cv.getSeqForSite(site);
-                int min = mcv.getSeqForSite(site);
-                if(seq < min) {
-                    // take smaller of the two sequences numbers for each site
-                    mcv.setSeqForSite(site, seq);
-                }
-            }
+        ContextVector mcv = new ContextVector(l);
+        for(int site=0; site < l; site++) {
+        	int min = this.colMin[site];
+        	if(includeLive && this.liveRows > 0) {
+        		// fold in the rows that track the engine as it advances
+        		min = Math.min(min, this.live.getSeqForSite(site));
+        	}
+        	mcv.setSeqForSite(site, min);
         }
         return mcv;
 	}
+	
+	/**
+	 * Stores a row, keeping the per-site minimums up to date.
+	 *
+	 * @param site Integer site ID
+	 * @param cv Context vector instance
+	 */
+	private void setRow(int site, ContextVector cv) {
+		ContextVector old = this.cvt.set(site, cv);
+		if(old == this.live) {
+			--this.liveRows;
+			old = null;
+		}
+		if(cv == this.live) {
+			++this.liveRows;
+			this.replaceInColumns(old, null);
+		} else {
+			this.replaceInColumns(old, cv);
+		}
+	}
+	
+	/**
+	 * Updates the per-site minimums for a static row replacing another. Either
+	 * row may be null when a row is only added or only removed.
+	 *
+	 * @param oldCv Row leaving the static set or null
+	 * @param newCv Row entering the static set or null
+	 */
+	private void replaceInColumns(ContextVector oldCv, ContextVector newCv) {
+		int l = this.colMin.length;
+		for(int site=nextSite(oldCv, newCv, 0); site < l;
+				site=nextSite(oldCv, newCv, site+1)) {
+			if(this.colDirty[site]) {
+				continue;
+			}
+			int o = (oldCv == null) ? Integer.MAX_VALUE : oldCv.getSeqForSite(site);
+			int n = (newCv == null) ? Integer.MAX_VALUE : newCv.getSeqForSite(site);
+			if(o == n) {
+				continue;
+			}
+			if(newCv != null && n < this.colMin[site]) {
+				this.colMin[site] = n;
+				this.colMinCount[site] = 1;
+			} else if(newCv != null && n == this.colMin[site]) {
+				++this.colMinCount[site];
+			} else if(oldCv != null && o == this.colMin[site] &&
+					--this.colMinCount[site] == 0) {
+				// last holder of the minimum moved on, rescan when needed
+				this.colDirty[site] = true;
+				++this.dirtyCount;
+			}
+		}
+	}
+	
+	/**
+	 * Copies the rows that do not share the live context vector of the
+	 * owning engine, each as wide as the table, so their minimum can be
+	 * found without the lock that guards the engine.
+	 *
+	 * @return Copies of the sequence numbers of the rows in site order
+	 */
+	public int[][] copyStaticRows() {
+		int l = this.cvt.size();
+		int[][] rows = new int[l - this.liveRows][];
+		int j = 0;
+		for(int i=0; i < l; i++) {
+			ContextVector cv = this.cvt.get(i);
+			if(cv != this.live) {
+				rows[j++] = Arrays.copyOf(cv.getSites(), l);
+			}
+		}
+		return rows;
+	}
+	
+	/**
+	 * Tells if a site shares the live context vector of the owning engine.
+	 *
+	 * @param site Integer site ID
+	 * @return True if frozen, false if not or if the table has no row for it
+	 */
+	public boolean isFrozen(int site) {
+		return site != this.ownerSite && site < this.cvt.size() &&
+			this.cvt.get(site) == this.live;
+	}
+	
+	/**
+	 * Drops the trailing sites that are frozen and have a zero sequence
+	 * number in every row, narrowing the table and all of its rows. Zero
+	 * entries compare the same as missing ones, so no op is ordered
+	 * differently for it. Sites with an entry above zero stay, since other
+	 * engines still hold it.
+	 *
+	 * @param keep Integer width never to go below
+	 * @return Integer width of the table after
+	 */
+	public int retireSites(int keep) {
+		int l = this.cvt.size();
+		int w = l;
+		for(int i=0; i < l; i++) {
+			w = Math.max(w, this.cvt.get(i).getSize());
+		}
+		int before = w;
+		while(w > keep && (w > l || this.cvt.get(w-1) == this.live) &&
+				this.isZeroColumn(w-1)) {
+			--w;
+		}
+		if(w == before) {
+			return l;
+		}
+		for(int i=0; i < l; i++) {
+			this.cvt.get(i).truncate(w);
+		}
+		if(w < l) {
+			// every row dropped was a reference to the live vector
+			this.cvt.subList(w, l).clear();
+			this.liveRows -= l - w;
+			for(int site=w; site < l; site++) {
+				if(this.colDirty[site]) {
+					--this.dirtyCount;
+				}
+			}
+			this.colMin = Arrays.copyOf(this.colMin, w);
+			this.colMinCount = Arrays.copyOf(this.colMinCount, w);
+			this.colDirty = Arrays.copyOf(this.colDirty, w);
+		}
+		return this.cvt.size();
+	}
+	
+	private boolean isZeroColumn(int site) {
+		for(int i=0, l=this.cvt.size(); i < l; i++) {
+			ContextVector cv = this.cvt.get(i);
+			if(cv.getSize() > site && cv.getSeqForSite(site) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the next site at or after the given one where two rows may differ,
+	 * skipping sites that are zero in both. A missing row differs from the
+	 * other everywhere.
+	 */
+	private static int nextSite(ContextVector a, ContextVector b, int site) {
+		if(a == null || b == null) {
+			return site;
+		}
+		return Math.min(a.nextSite(site), b.nextSite(site));
+	}
+	
+	/**
+	 * Recomputes the minimum of one site over all static rows.
+	 *
+	 * @param site Integer site ID
+	 */
+	private void scanColumn(int site) {
+		int min = Integer.MAX_VALUE;
+		int count = 0;
+		for(int i=0, l=this.cvt.size(); i < l; i++) {
+			ContextVector cv = this.cvt.get(i);
+			if(cv == this.live) {
+				continue;
+			}
+			int seq = cv.getSeqForSite(site);
+			if(seq < min) {
+				min = seq;
+				count = 1;
+			} else if(seq == min) {
+				++count;
+			}
+		}
+		this.colMin[site] = min;
+		this.colMinCount[site] = count;
+		this.colDirty[site] = false;
+	}
+	
+	/**
+	 * Recounts the rows referencing the live context vector and marks every
+	 * site minimum for a rescan.
+	 */
+	private void rebuildColumns() {
+		int l = this.cvt.size();
+		this.liveRows = 0;
+		for(int i=0; i < l; i++) {
+			if(this.cvt.get(i) == this.live) {
+				++this.liveRows;
+			}
+		}
+		this.colMin = new int[l];
+		this.colMinCount = new int[l];
+		this.colDirty = new boolean[l];
+		Arrays.fill(this.colDirty, true);
+		this.dirtyCount = l;
+	}
 }
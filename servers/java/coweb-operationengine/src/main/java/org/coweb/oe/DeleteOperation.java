@@ -5,8 +5,22 @@ import java.util.Map;
 public class DeleteOperation extends Operation {
 
 	protected DeleteOperation(Map<String, Object> args) throws OperationEngineException {
-		super(args);
-		this.type = "delete";
+		super(OperationType.DELETE, args);
+	}
+	
+	protected DeleteOperation(int siteId, int seqId, ContextVector contextVector,
+			String key, String value, int position, int order, boolean local) {
+		super(OperationType.DELETE, siteId, seqId, contextVector, key, value,
+				position, order, local);
+	}
+	
+	protected DeleteOperation(DeleteOperation op) {
+		super(op);
+	}
+	
+	@Override
+	public Operation copy() {
+		return new DeleteOperation(this);
 	}
 	
 	
@@ -21,11 +35,10 @@ public class DeleteOperation extends Operation {
 		if(!this.key.equals(op.key)) {
             return this;
         }
-        if(this.position > op.position) {
-            --this.position;
-        } else if(this.position == op.position) {
+        if(op.deletes(this.position)) {
             return null;
         }
+        this.position -= op.deletedBelow(this.position);
         return this;
 	}
 	
@@ -50,7 +63,7 @@ public class DeleteOperation extends Operation {
             return this;
         }
         if(this.position >= op.position) {
-            ++this.position;
+            this.position += op.getLength();
         }
         
         return this;
@@ -0,0 +1,234 @@
+package org.coweb.oe;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Deletes a run of positions. The value is the deleted content as a JSON
+ * string or array, or just a JSON integer count, and gives the length of the
+ * run. An insert landing inside the run splits it, since the inserted values
+ * must survive, so the op keeps the positions it deletes as a list of runs.
+ * The position of the op is the start of the first run. The runs go into the
+ * serialized state after the order.
+ */
+public class DeleteRangeOperation extends Operation {
+
+	// deleted positions as sorted, disjoint pairs of start (inclusive) and
+	// end (exclusive), never adjacent
+	private int[] ranges;
+
+	protected DeleteRangeOperation(Map<String, Object> args) throws OperationEngineException {
+		super(OperationType.DELETE_RANGE, args);
+		if(this.ranges == null) {
+			this.initRanges();
+		}
+	}
+
+	protected DeleteRangeOperation(int siteId, int seqId,
+			ContextVector contextVector, String key, String value,
+			int position, int order, boolean local) throws OperationEngineException {
+		super(OperationType.DELETE_RANGE, siteId, seqId, contextVector, key,
+				value, position, order, local);
+		this.initRanges();
+	}
+
+	protected DeleteRangeOperation(DeleteRangeOperation op) {
+		super(op);
+		this.ranges = op.ranges;
+	}
+
+	private void initRanges() throws OperationEngineException {
+		int[] ranges = { this.position,
+				this.position + Operation.getRangeLength(this.value) };
+		this.ranges = ranges;
+	}
+
+	@Override
+	public Operation copy() {
+		return new DeleteRangeOperation(this);
+	}
+
+	/**
+	 * Serializes the operation, with the runs it deletes as a ninth element.
+	 *
+	 * @return Array in the format of {@link Operation#getState} plus runs
+	 */
+	@Override
+	public Object[] getState() {
+		Object[] arr = Arrays.copyOf(super.getState(), 9);
+		arr[8] = this.getRanges();
+		return arr;
+	}
+
+	@Override
+	public void setState(Object[] arr) throws OperationEngineException {
+		super.setState(arr);
+		if(arr.length < 9 || arr[8] == null) {
+			this.initRanges();
+		} else if(arr[8] instanceof int[]) {
+			this.setRanges(this.getRangesOf((int[])arr[8]));
+		} else {
+			Object[] objs = (Object[])arr[8];
+			int[] ranges = new int[objs.length];
+			for(int i=0; i < objs.length; i++) {
+				ranges[i] = ((Number)objs[i]).intValue();
+			}
+			this.setRanges(this.getRangesOf(ranges));
+		}
+	}
+
+	private int[] getRangesOf(int[] ranges) throws OperationEngineException {
+		if(ranges.length == 0 || ranges.length % 2 != 0) {
+			throw new OperationEngineException("malformed delete ranges");
+		}
+		return Arrays.copyOf(ranges, ranges.length);
+	}
+
+	void setRanges(int[] ranges) {
+		this.ranges = ranges;
+		this.position = ranges[0];
+	}
+
+	/**
+	 * Gets the positions this op deletes, in the context it was last
+	 * transformed into.
+	 *
+	 * @return Copy of the sorted, disjoint pairs of start (inclusive) and
+	 *         end (exclusive) positions
+	 */
+	public int[] getRanges() {
+		return Arrays.copyOf(this.ranges, this.ranges.length);
+	}
+
+	/**
+	 * Gets the number of positions deleted.
+	 *
+	 * @return Integer count
+	 */
+	@Override
+	public int getLength() {
+		int n = 0;
+		for(int i=0; i < this.ranges.length; i += 2) {
+			n += this.ranges[i+1] - this.ranges[i];
+		}
+		return n;
+	}
+
+	@Override
+	protected int deletedBelow(int position) {
+		int n = 0;
+		for(int i=0; i < this.ranges.length && this.ranges[i] < position; i += 2) {
+			n += Math.min(this.ranges[i+1], position) - this.ranges[i];
+		}
+		return n;
+	}
+
+	@Override
+	protected boolean deletes(int position) {
+		for(int i=0; i < this.ranges.length && this.ranges[i] <= position; i += 2) {
+			if(position < this.ranges[i+1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected int[] getDeletedRanges() {
+		return this.ranges;
+	}
+
+	/**
+	 * Transforms this delete range to include the effect of an insert or
+	 * insert range. Runs at or after the insert move up by its length, and a
+	 * run the insert lands inside is split around it.
+	 *
+	 * @param op Insert to include in this op
+	 * @return This instance
+	 */
+	public Operation transformWithInsert(Operation op) {
+		if(!this.key.equals(op.key)) {
+			return this;
+		}
+		int q = op.position;
+		int m = op.getLength();
+		int[] r = this.ranges;
+		int[] out = new int[r.length + 2];
+		int n = 0;
+		for(int i=0; i < r.length; i += 2) {
+			if(r[i] >= q) {
+				out[n++] = r[i] + m;
+				out[n++] = r[i+1] + m;
+			} else if(r[i+1] <= q) {
+				out[n++] = r[i];
+				out[n++] = r[i+1];
+			} else {
+				out[n++] = r[i];
+				out[n++] = q;
+				out[n++] = q + m;
+				out[n++] = r[i+1] + m;
+			}
+		}
+		this.setRanges(n == out.length ? out : Arrays.copyOf(out, n));
+		return this;
+	}
+
+	/**
+	 * Transforms this delete range to include the effect of a delete or
+	 * delete range. Positions the other op deleted already drop out, and the
+	 * rest move down by the number of positions it deleted below them.
+	 *
+	 * @param op Delete to include in this op
+	 * @return This instance or null if the other op deleted every position
+	 */
+	public Operation transformWithDelete(Operation op) {
+		if(!this.key.equals(op.key)) {
+			return this;
+		}
+		int[] r = this.ranges;
+		int[] s = op.getDeletedRanges();
+		int[] out = new int[r.length + s.length];
+		int n = 0;
+		// s runs wholly before the current point and their total length
+		int j = 0;
+		int below = 0;
+		for(int i=0; i < r.length; i += 2) {
+			int cur = r[i];
+			while(cur < r[i+1]) {
+				while(j < s.length && s[j+1] <= cur) {
+					below += s[j+1] - s[j];
+					j += 2;
+				}
+				if(j < s.length && s[j] <= cur) {
+					// already deleted
+					cur = Math.min(s[j+1], r[i+1]);
+					continue;
+				}
+				int end = (j < s.length) ? Math.min(r[i+1], s[j]) : r[i+1];
+				if(n > 0 && out[n-1] == cur - below) {
+					// joins the previous run now the gap between is gone
+					out[n-1] = end - below;
+				} else {
+					out[n++] = cur - below;
+					out[n++] = end - below;
+				}
+				cur = end;
+			}
+		}
+		if(n == 0) {
+			return null;
+		}
+		this.setRanges(Arrays.copyOf(out, n));
+		return this;
+	}
+
+	/**
+	 * No-op. Update has no effect on a delete.
+	 *
+	 * @param op Update to include in this op
+	 * @return This instance
+	 */
+	public Operation transformWithUpdate(Operation op) {
+		return this;
+	}
+}
@@ -0,0 +1,108 @@
+package org.coweb.oe;
+
+import java.util.Collection;
+
+/**
+ * Snapshot of the state of a merge engine, taken by
+ * {@link MergeEngine#getStateSnapshot}. For an
+ * {@link OperationEngine} taking it only copies the
+ * context vector table and shares the history copy-on-write, so it is cheap
+ * to take under the engine lock. Turning it into the getState array or a
+ * binary snapshot can then happen without the lock while the engine keeps
+ * processing ops.
+ *
+ * The ops in the history are immutable but for their place in the total
+ * order, which a local op learns once when the server echoes it. A snapshot
+ * serialized after that shows the order, as would any snapshot taken later.
+ */
+public final class EngineState {
+
+	private final int[][] rows;
+	private final Collection<Operation> ops;
+	private final int siteId;
+	private final int[] frozen;
+	private final long version;
+	// state built when taken, for engines without a history
+	private final Object[] state;
+
+	EngineState(int[][] rows, Collection<Operation> ops, int siteId,
+			int[] frozen, long version) {
+		this.rows = rows;
+		this.ops = ops;
+		this.siteId = siteId;
+		this.frozen = frozen;
+		this.version = version;
+		this.state = null;
+	}
+
+	EngineState(Object[] state, long version) {
+		this.rows = null;
+		this.ops = null;
+		this.siteId = -1;
+		this.frozen = null;
+		this.version = version;
+		this.state = state;
+	}
+
+	/**
+	 * Gets the engine version the snapshot was taken at.
+	 *
+	 * @return Version number, see {@link OperationEngine#getVersion}
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Gets the number of ops in the history.
+	 *
+	 * @return Integer count
+	 */
+	public int getOperationCount() {
+		return this.ops == null ? 0 : this.ops.size();
+	}
+
+	/**
+	 * Tells if the state has the binary snapshot form of
+	 * {@link EngineStateCodec}, which only the state of an
+	 * {@link OperationEngine} has.
+	 *
+	 * @return True if encode works
+	 */
+	public boolean isEncodable() {
+		return this.state == null;
+	}
+
+	/**
+	 * Builds the state in the format returned by getState of the engine.
+	 *
+	 * @return Engine state array
+	 */
+	public Object[] toArray() {
+		if (this.state != null) {
+			return this.state;
+		}
+		Object[] ops = new Object[this.ops.size()];
+		int i = 0;
+		for (Operation op : this.ops) {
+			ops[i++] = op.getState();
+		}
+		Object[] ret = { this.rows, ops, Integer.valueOf(this.siteId),
+				this.frozen };
+		return ret;
+	}
+
+	/**
+	 * Encodes the state as a binary snapshot, see {@link EngineStateCodec}.
+	 *
+	 * @throws OperationEngineException
+	 * @return Snapshot bytes
+	 */
+	public byte[] encode() throws OperationEngineException {
+		if (this.state != null) {
+			throw new OperationEngineException(
+					"engine state has no binary snapshot form");
+		}
+		return EngineStateCodec.encode(this.toArray());
+	}
+}
@@ -0,0 +1,311 @@
+package org.coweb.oe;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of the engine state returned by
+ * {@link OperationEngine#getState}, for seeding late joiners. Integers are
+ * written as varints, op keys are written once in a table and referenced by
+ * index, and op contexts are written as their distance below the newest
+ * context vector in the table, which keeps them to a byte or two per site.
+ *
+ * <p>Layout of version 1: magic "COE", version byte, site ID, frozen sites,
+ * context vector table rows, key table, then the ops, each as type, key
+ * index, value, position, seqId, siteId, order and context. Delete ranges
+ * add their runs at the end.
+ */
+public final class EngineStateCodec {
+
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'C', 'O', 'E' };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private EngineStateCodec() {
+	}
+
+	/**
+	 * Encodes engine state.
+	 *
+	 * @param state Array in the format returned by OperationEngine.getState
+	 * @throws OperationEngineException
+	 * @return Snapshot bytes
+	 */
+	public static byte[] encode(Object[] state) throws OperationEngineException {
+		int[][] cvt = (int[][]) state[0];
+		Object[] ops = (Object[]) state[1];
+		int siteId = ((Number) state[2]).intValue();
+		int[] frozen = (int[]) state[3];
+
+		Writer out = new Writer();
+		out.bytes(MAGIC);
+		out.raw(VERSION);
+		out.varint(siteId);
+		out.ints(frozen);
+		out.varint(cvt.length);
+		for (int[] row : cvt) {
+			out.ints(row);
+		}
+		int[] base = EngineStateCodec.newest(cvt);
+
+		// key table in order of first use
+		Map<String, Integer> keys = new HashMap<String, Integer>();
+		List<String> keyList = new ArrayList<String>();
+		for (Object o : ops) {
+			String key = (String) ((Object[]) o)[1];
+			if (!keys.containsKey(key)) {
+				keys.put(key, Integer.valueOf(keyList.size()));
+				keyList.add(key);
+			}
+		}
+		out.varint(keyList.size());
+		for (String key : keyList) {
+			out.string(key);
+		}
+
+		out.varint(ops.length);
+		for (Object o : ops) {
+			Object[] op = (Object[]) o;
+			out.raw(OperationType.fromName((String) op[0]).ordinal());
+			out.varint(keys.get((String) op[1]).intValue());
+			out.string((String) op[2]);
+			out.zigzag(((Number) op[3]).intValue());
+			out.varint(((Number) op[5]).intValue());
+			out.varint(((Number) op[6]).intValue());
+			out.zigzag(op.length >= 8 ? ((Number) op[7]).intValue() :
+				Operation.infinity);
+			int[] cv = (int[]) op[4];
+			out.varint(cv.length);
+			for (int i = 0; i < cv.length; i++) {
+				out.zigzag((i < base.length ? base[i] : 0) - cv[i]);
+			}
+			if (op.length >= 9) {
+				out.ints((int[]) op[8]);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a snapshot made by encode.
+	 *
+	 * @param data Snapshot bytes
+	 * @throws OperationEngineException if the data is not a well formed
+	 *         snapshot of a known version
+	 * @return Array in the format returned by OperationEngine.getState
+	 */
+	public static Object[] decode(byte[] data) throws OperationEngineException {
+		Reader in = new Reader(data);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (in.raw() != MAGIC[i]) {
+				throw new OperationEngineException("not an engine snapshot");
+			}
+		}
+		int version = in.raw();
+		if (version != VERSION) {
+			throw new OperationEngineException(
+				"unsupported engine snapshot version " + version);
+		}
+		int siteId = in.varint();
+		int[] frozen = in.ints();
+		int[][] cvt = new int[in.length()][];
+		for (int i = 0; i < cvt.length; i++) {
+			cvt[i] = in.ints();
+		}
+		int[] base = EngineStateCodec.newest(cvt);
+
+		String[] keys = new String[in.length()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = in.string();
+		}
+
+		OperationType[] types = OperationType.values();
+		Object[] ops = new Object[in.length()];
+		for (int i = 0; i < ops.length; i++) {
+			int type = in.raw();
+			if (type >= types.length) {
+				throw new OperationEngineException("unknown operation type: " +
+					type);
+			}
+			int index = in.varint();
+			if (index < 0 || index >= keys.length) {
+				throw new OperationEngineException("unknown key index: " +
+					index);
+			}
+			String key = keys[index];
+			String value = in.string();
+			int position = in.zigzag();
+			int seqId = in.varint();
+			int site = in.varint();
+			int order = in.zigzag();
+			int[] cv = new int[in.length()];
+			for (int s = 0; s < cv.length; s++) {
+				cv[s] = (s < base.length ? base[s] : 0) - in.zigzag();
+			}
+			Object[] op = { types[type].getName(), key, value,
+					Integer.valueOf(position), cv, Integer.valueOf(seqId),
+					Integer.valueOf(site), Integer.valueOf(order) };
+			if (types[type] == OperationType.DELETE_RANGE) {
+				op = Arrays.copyOf(op, 9);
+				op[8] = in.ints();
+			}
+			ops[i] = op;
+		}
+		if (in.remaining() != 0) {
+			throw new OperationEngineException("trailing bytes in snapshot");
+		}
+		Object[] state = { cvt, ops, Integer.valueOf(siteId), frozen };
+		return state;
+	}
+
+	/**
+	 * Highest sequence number per site over all rows, which is at or above
+	 * the context of every op in the history.
+	 */
+	private static int[] newest(int[][] cvt) {
+		int l = 0;
+		for (int[] row : cvt) {
+			l = Math.max(l, row.length);
+		}
+		int[] max = new int[l];
+		for (int[] row : cvt) {
+			for (int i = 0; i < row.length; i++) {
+				max[i] = Math.max(max[i], row[i]);
+			}
+		}
+		return max;
+	}
+
+	private static class Writer {
+		private byte[] data = new byte[256];
+		private int pos = 0;
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(this.data, this.pos);
+		}
+
+		private void ensure(int n) {
+			if (this.pos + n > this.data.length) {
+				this.data = Arrays.copyOf(this.data,
+						Math.max(this.data.length * 2, this.pos + n));
+			}
+		}
+
+		void raw(int b) {
+			this.ensure(1);
+			this.data[this.pos++] = (byte) b;
+		}
+
+		void bytes(byte[] b) {
+			this.ensure(b.length);
+			System.arraycopy(b, 0, this.data, this.pos, b.length);
+			this.pos += b.length;
+		}
+
+		void varint(int v) {
+			this.ensure(5);
+			while ((v & ~0x7F) != 0) {
+				this.data[this.pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			this.data[this.pos++] = (byte) v;
+		}
+
+		void zigzag(int v) {
+			this.varint((v << 1) ^ (v >> 31));
+		}
+
+		void ints(int[] a) {
+			this.varint(a.length);
+			for (int v : a) {
+				this.varint(v);
+			}
+		}
+
+		// length + 1, so that 0 stands for null
+		void string(String s) {
+			if (s == null) {
+				this.varint(0);
+				return;
+			}
+			byte[] b = s.getBytes(UTF8);
+			this.varint(b.length + 1);
+			this.bytes(b);
+		}
+	}
+
+	private static class Reader {
+		private final byte[] data;
+		private int pos = 0;
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		int remaining() {
+			return this.data.length - this.pos;
+		}
+
+		int raw() throws OperationEngineException {
+			if (this.pos >= this.data.length) {
+				throw new OperationEngineException("truncated engine snapshot");
+			}
+			return this.data[this.pos++] & 0xFF;
+		}
+
+		int varint() throws OperationEngineException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = this.raw();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new OperationEngineException("malformed varint in snapshot");
+		}
+
+		// count of items that take at least a byte each
+		int length() throws OperationEngineException {
+			int n = this.varint();
+			if (n < 0 || n > this.remaining()) {
+				throw new OperationEngineException("bad length in snapshot: " +
+					n);
+			}
+			return n;
+		}
+
+		int zigzag() throws OperationEngineException {
+			int v = this.varint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		int[] ints() throws OperationEngineException {
+			int[] a = new int[this.length()];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = this.varint();
+			}
+			return a;
+		}
+
+		String string() throws OperationEngineException {
+			int l = this.varint();
+			if (l == 0) {
+				return null;
+			}
+			--l;
+			if (l < 0 || l > this.remaining()) {
+				throw new OperationEngineException("truncated engine snapshot");
+			}
+			String s = new String(this.data, this.pos, l, UTF8);
+			this.pos += l;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.coweb.oe;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * History buffer storing operations in a hash table keyed by their packed
+ * site ID and sequence number.
+ */
+public class HashHistoryBuffer extends HistoryBuffer {
+
+	private OperationMap ops = null;
+	// per site, lowest and highest sequence number that may still be
+	// stored; ops skipped by the engine leave gaps in between
+	private int[] oldest = new int[0];
+	private int[] newest = new int[0];
+
+	public HashHistoryBuffer() {
+		this.ops = new OperationMap();
+		this.size = 0;
+	}
+
+	@Override
+	public Operation get(int site, int seq) {
+		return this.ops.get(Operation.createHistoryKey(site, seq));
+	}
+
+	@Override
+	protected void put(Operation op) {
+		this.ops.put(Operation.createHistoryKey(op.siteId, op.seqId), op);
+		if(op.siteId >= this.oldest.length) {
+			int l = this.oldest.length;
+			this.oldest = Arrays.copyOf(this.oldest, op.siteId + 1);
+			Arrays.fill(this.oldest, l, this.oldest.length, Integer.MAX_VALUE);
+			this.newest = Arrays.copyOf(this.newest, op.siteId + 1);
+		}
+		this.oldest[op.siteId] = Math.min(this.oldest[op.siteId], op.seqId);
+		this.newest[op.siteId] = Math.max(this.newest[op.siteId], op.seqId);
+	}
+
+	@Override
+	protected Operation delete(int site, int seq) {
+		if(site < this.oldest.length && seq == this.oldest[site]) {
+			this.oldest[site] = seq + 1;
+		}
+		return this.ops.remove(Operation.createHistoryKey(site, seq));
+	}
+
+	@Override
+	public Operation getOldest(int site, int seq) {
+		if(site >= this.oldest.length) {
+			return null;
+		}
+		int first = this.oldest[site];
+		int last = this.newest[site];
+		for(int i=Math.max(seq + 1, first); i <= last; i++) {
+			Operation op = this.get(site, i);
+			if(op != null) {
+				if(i > first && seq < first) {
+					// nothing is stored below, so the next scan starts here
+					this.oldest[site] = i;
+				}
+				return op;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected int deleteThrough(int site, int seq) {
+		if(site >= this.oldest.length || seq < this.oldest[site]) {
+			return 0;
+		}
+		int count = 0;
+		int first = this.oldest[site];
+		int last = Math.min(seq, this.newest[site]);
+		for(int i=first; i <= last; i++) {
+			Operation op = this.delete(site, i);
+			if(op != null) {
+				op.immutable = false;
+				++count;
+			}
+		}
+		this.oldest[site] = seq + 1;
+		return count;
+	}
+
+	@Override
+	protected Collection<Operation> getOperations() {
+		return this.ops.values();
+	}
+
+	@Override
+	protected void clear() {
+		this.ops.clear();
+		this.oldest = new int[0];
+		this.newest = new int[0];
+	}
+}
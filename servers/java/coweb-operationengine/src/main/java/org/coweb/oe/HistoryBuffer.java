@@ -1,38 +1,151 @@
 package org.coweb.oe;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Vector;
 import java.util.Stack;
 import java.util.Arrays;
 import java.util.Comparator;
 
-import java.util.logging.Logger;
+/**
+ * Stores the operations an engine has processed so that concurrent remote
+ * operations can be transformed against them. Subclasses decide how the
+ * operations are indexed by site ID and sequence number.
+ */
+public abstract class HistoryBuffer {
 
+	protected static final Comparator<Operation> orderComparator =
+		new Comparator<Operation>() {
+			public int compare(Operation a, Operation b) {
+				return a.compareByOrder(b);
+			}
+		};
 
-public class HistoryBuffer {
-	
-	private static final Logger log = Logger.getLogger(HistoryBuffer.class
-			.getName());
-	
-	private HashMap<String, Operation> ops = null;
-	private int size = 0;
+	protected static final Comparator<Operation> contextComparator =
+		new Comparator<Operation>() {
+			public int compare(Operation a, Operation b) {
+				return a.compareByContext(b);
+			}
+		};
+
+	protected int size = 0;
 
-	public HistoryBuffer() {
-		this.ops = new HashMap<String, Operation>();
-		this.size = 0;
-	}
-	
 	@Override
 	public String toString() {
 		StringBuffer b = new StringBuffer();
-		b.append("{ops : " + this.ops);
+		b.append("{ops : " + this.getOperations());
 		b.append(",size : " + this.size);
 		b.append("}");
-		
+
 		return b.toString();
 	}
-	
+
+	/**
+     * Gets the operation with the given site ID and sequence number.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @return Operation or null if it is not in the history
+     */
+	public abstract Operation get(int site, int seq);
+
+	/**
+     * Stores an operation under its site ID and sequence number, replacing
+     * any operation already stored there.
+     *
+     * @param op Operation to store
+     */
+	protected abstract void put(Operation op);
+
+	/**
+     * Removes the operation with the given site ID and sequence number.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @return Removed operation or null if it was not in the history
+     */
+	protected abstract Operation delete(int site, int seq);
+
+	/**
+     * Gets the oldest operation from a site newer than the given sequence
+     * number.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @return Operation or null if the history holds no newer op from the site
+     */
+	public abstract Operation getOldest(int site, int seq);
+
+	/**
+     * Removes all operations from a site up to and including the given
+     * sequence number. Removed operations become mutable again, possibly
+     * only once reclaim has run.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @return Integer count of removed operations
+     */
+	protected abstract int deleteThrough(int site, int seq);
+
+	/**
+     * Like deleteThrough, given how many operations it removes. Storage
+     * that defers removals can then cut them off without reading them. The
+     * default counts them anyway.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @param count Integer count of stored operations to remove
+     * @return Integer count of removed operations
+     */
+	protected int deleteThrough(int site, int seq, int count) {
+		return this.deleteThrough(site, seq);
+	}
+
+	/**
+     * Gets all operations in the history in no particular order.
+     *
+     * @return Independent collection of the stored operations
+     */
+	protected abstract Collection<Operation> getOperations();
+
+	/**
+     * Removes all operations from the underlying storage.
+     */
+	protected abstract void clear();
+
+	/**
+     * Finishes the removals of earlier removeThrough calls that the
+     * storage deferred, releasing the removed operations. Unlike the other
+     * methods it may run on any thread, concurrently with the thread
+     * processing ops. The default has nothing to finish.
+     */
+	public void reclaim() {
+	}
+
+	/**
+     * Gets the operations in the history as they are now. Later changes to
+     * the history do not show in the returned collection, so it can be read
+     * without holding the lock that guards the engine. The default copies
+     * the references; subclasses may share their storage copy-on-write.
+     *
+     * @return Unmodifiable collection of the stored operations
+     */
+	public Collection<Operation> snapshot() {
+		return this.getOperations();
+	}
+
+	/**
+     * Gets the operations in the history for a reader that is done with them
+     * before the history is next purged. Until then it can be read without
+     * holding the lock that guards the engine, while operations are added.
+     * Unlike a snapshot it does not make later removals copy the storage.
+     * The default copies the references.
+     *
+     * @return Unmodifiable collection of the stored operations
+     */
+	public Collection<Operation> view() {
+		return this.getOperations();
+	}
+
 	/**
      * Serializes the history buffer contents to seed a remote instance.
      *
@@ -40,16 +153,14 @@ public class HistoryBuffer {
      */
 	public Object[] getState() {
 		Vector<Object[]> v = new Vector<Object[]>();
-		Operation op = null;
-		
-		for(String key : this.ops.keySet()) {
-			op = this.ops.get(key);
+
+		for(Operation op : this.getOperations()) {
 			v.addElement(op.getState());
 		}
-		
+
 		return v.toArray();
 	}
-	
+
 	/**
      * Unserializes history buffer contents to initialize this instance.
      *
@@ -58,7 +169,7 @@ public class HistoryBuffer {
 	public void setState(Object[] arr) {
 		// reset internals
         this.size = 0;
-        this.ops.clear();
+        this.clear();
         for(int i=0; i < arr.length; i++) {
             // restore operations
             Operation op = null;
@@ -69,81 +180,64 @@ public class HistoryBuffer {
             catch(OperationEngineException e) { ; }
         }
 	}
-	
+
 	/**
      * Retrieves all of the operations represented by the given context
      * differences from the history buffer. Sorts them by total order, placing
      * any ops with an unknown place in the order (i.e., local ops) at the end
-     * sorted by their sequence IDs. Throws an exception when a requested 
+     * sorted by their sequence IDs. Throws an exception when a requested
      * operation is missing from the history.
      *
      * @param cd  Context difference object
-	 * @throws OperationEngineException 
+	 * @throws OperationEngineException
      * @return Sorted operations
-     */ 
+     */
 	public Stack<Operation> getOpsForDifference(ContextDifference cd) throws OperationEngineException {
-		// get the ops
-        String[] keys = cd.getHistoryBufferKeys();
-        
-        Vector<Operation> opsStack = new Vector<Operation>();
-        int l = keys.length;
-        String key;
-        Operation op;
-        
-        for(int i=0; i < l; i++) {
-        	log.info("key = " + keys[i]);
-            key = keys[i];
-            op = this.ops.get(key);
-            if(op == null) {
-                throw new OperationEngineException("missing op for context diff: i=" + i + 
-                    " key=" + key + " keys=" + keys.toString());
+		// get the ops, walking the ranges without materializing keys
+        Operation[] arr = new Operation[cd.size()];
+
+        int k = 0;
+        for(int r=0, rl=cd.getRangeCount(); r < rl; r++) {
+            int site = cd.getRangeSite(r);
+            int end = cd.getRangeEnd(r);
+            for(int seq=cd.getRangeStart(r); seq < end; seq++, k++) {
+                arr[k] = this.get(site, seq);
+                if(arr[k] == null) {
+                    throw new OperationEngineException("missing op for context diff: i=" + k +
+                        " key=" + site + "," + seq + " keys=" + cd);
+                }
             }
-            opsStack.addElement(op);
         }
-        
-        // sort by total order
-        Operation[] arr = new Operation[opsStack.size()];
-        arr = opsStack.toArray(arr);
-        Arrays.sort(arr, new Comparator<Operation>() {
-        	public int compare(Operation a, Operation b) {
-        		return a.compareByOrder(b);
-        	}
-        });
-        
-        Stack<Operation> stack = new Stack<Operation>();
-        stack.addAll(Arrays.asList(arr));
-        
-        return stack;
+
+        return HistoryBuffer.sortByOrder(arr);
 	}
-	
+
 	/**
      * Adds a local operation to the history.
      *
      * @param op Local operation to add
      */
 	public void addLocal(Operation op) {
-		String key = Operation.createHistoryKey(op.siteId, op.seqId);
-        this.ops.put(key, op);
+        this.put(op);
         // make sure ops in the history never change
         op.immutable = true;
         ++this.size;
 	}
-	
+
 	/**
-     * Adds a received operation to the history. If the operation already 
-     * exists in the history, simply updates its order attribute. If not, 
-     * adds it. Throws an exception if the op does not include its place in 
+     * Adds a received operation to the history. If the operation already
+     * exists in the history, simply updates its order attribute. If not,
+     * adds it. Throws an exception if the op does not include its place in
      * the total order or if the op with the same key already has an assigned
      * place in the total order.
      *
      * @param op Received operation to add
-	 * @throws OperationEngineException 
+	 * @throws OperationEngineException
      */
 	public void addRemote(Operation op) throws OperationEngineException {
-		String key = Operation.createHistoryKey(op.siteId, op.seqId);
-        Operation eop = this.ops.get(key);
-        
-        if(op.order == Operation.infinity) { 
+        Operation eop = this.get(op.siteId, op.seqId);
+
+        if(op.order == Operation.infinity) {
             // remote op must have order set by server
             throw new OperationEngineException("remote op missing total order");
         } else if(eop != null) {
@@ -157,12 +251,12 @@ public class HistoryBuffer {
             eop.order = op.order;
         } else {
             // add new remote op to history
-            this.ops.put(key, op);
+            this.put(op);
             op.immutable = true;
             ++this.size;
         }
 	}
-	
+
 	/**
      * Removes and returns an operation in the history.
      *
@@ -170,17 +264,47 @@ public class HistoryBuffer {
      * @return Removed operation
      */
 	public Operation remove(Operation op) {
-		String key = Operation.createHistoryKey(op.siteId, op.seqId);
-		
-		op = this.ops.remove(key);
-		
+		op = this.delete(op.siteId, op.seqId);
+
         // no longer in the history, so allow mutation
 		op.immutable = false;
-        
+
         --this.size;
         return op;
 	}
-	
+
+	/**
+     * Removes all operations from a site up to and including the given
+     * sequence number. Costs time proportional to the number of operations
+     * removed.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @return Integer count of removed operations
+     */
+	public int removeThrough(int site, int seq) {
+		int count = this.deleteThrough(site, seq);
+		this.size -= count;
+		return count;
+	}
+
+	/**
+     * Like removeThrough, for a caller that knows how many operations from
+     * the site are stored up to the sequence number, such as from a view
+     * taken since ops up to there were last added or removed. Storage that
+     * defers removals then does not read the operations it removes.
+     *
+     * @param site Integer site ID
+     * @param seq Integer sequence number
+     * @param count Integer count of stored operations to remove
+     * @return Integer count of removed operations
+     */
+	public int removeThrough(int site, int seq, int count) {
+		count = this.deleteThrough(site, seq, count);
+		this.size -= count;
+		return count;
+	}
+
 	/**
      * Gets the number of operations in the history.
      *
@@ -189,28 +313,39 @@ public class HistoryBuffer {
 	public int getCount() {
 		return this.size;
 	}
-	
-	
+
+
 	/**
      * Gets all operations in the history buffer sorted by context.
      *
      * @return Sorted operations
      */
 	public Stack<Operation> getContextSortedOperations() {
-		
-		Collection<Operation> collection = this.ops.values();
+
+		Collection<Operation> collection = this.getOperations();
 		Operation[] arr = new Operation[collection.size()];
 		arr = collection.toArray(arr);
-		
-		Arrays.sort(arr, new Comparator<Operation>() {
-			public int compare(Operation a, Operation b) {
-				return a.compareByContext(b);
-			}
-		});
-		
+
+		Arrays.sort(arr, HistoryBuffer.contextComparator);
+
 		Stack<Operation> stack = new Stack<Operation>();
 		stack.addAll(Arrays.asList(arr));
-		
+
 		return stack;
 	}
+
+	/**
+     * Sorts operations by their place in the total order.
+     *
+     * @param arr Operations to sort in place
+     * @return Sorted operations
+     */
+	protected static Stack<Operation> sortByOrder(Operation[] arr) {
+        Arrays.sort(arr, HistoryBuffer.orderComparator);
+
+        Stack<Operation> stack = new Stack<Operation>();
+        stack.addAll(Arrays.asList(arr));
+
+        return stack;
+	}
 }
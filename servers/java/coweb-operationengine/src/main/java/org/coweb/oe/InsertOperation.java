@@ -5,8 +5,34 @@ import java.util.Map;
 public class InsertOperation extends Operation {
 	
 	protected InsertOperation(Map<String, Object> args) throws OperationEngineException {
-		super(args);
-		this.type = "insert";
+		super(OperationType.INSERT, args);
+	}
+	
+	protected InsertOperation(int siteId, int seqId, ContextVector contextVector,
+			String key, String value, int position, int order, boolean local) {
+		super(OperationType.INSERT, siteId, seqId, contextVector, key, value,
+				position, order, local);
+	}
+	
+	protected InsertOperation(InsertOperation op) {
+		super(op);
+	}
+	
+	protected InsertOperation(OperationType type, Map<String, Object> args)
+			throws OperationEngineException {
+		super(type, args);
+	}
+	
+	protected InsertOperation(OperationType type, int siteId, int seqId,
+			ContextVector contextVector, String key, String value,
+			int position, int order, boolean local) {
+		super(type, siteId, seqId, contextVector, key, value, position,
+				order, local);
+	}
+	
+	@Override
+	public Operation copy() {
+		return new InsertOperation(this);
 	}
 	
 	/**
@@ -23,7 +49,7 @@ public class InsertOperation extends Operation {
 
         if(this.position > op.position || 
             (this.position == op.position && this.siteId <= op.siteId)) {
-            ++this.position;
+            this.position += op.getLength();
         }
         return this;
 	}
@@ -38,9 +64,7 @@ public class InsertOperation extends Operation {
 		if (!this.key.equals(op.key)) {
 			return this;
 		}
-		if (this.position > op.position) {
-			--this.position;
-		}
+		this.position -= op.deletedBelow(this.position);
 		return this;
 	}
 	
@@ -0,0 +1,48 @@
+package org.coweb.oe;
+
+import java.util.Map;
+
+/**
+ * Inserts several values at one position, such as the characters of a
+ * string typed or pasted in one go. The value is a JSON string, whose
+ * characters are inserted, or a JSON array, whose elements are. Other ops
+ * only ever move the whole range, so it transforms like an insert; the ops
+ * it is included in shift by its length instead of by one.
+ */
+public class InsertRangeOperation extends InsertOperation {
+
+	private int length;
+
+	protected InsertRangeOperation(Map<String, Object> args) throws OperationEngineException {
+		super(OperationType.INSERT_RANGE, args);
+		this.length = Operation.getRangeLength(this.value);
+	}
+
+	protected InsertRangeOperation(int siteId, int seqId,
+			ContextVector contextVector, String key, String value,
+			int position, int order, boolean local) throws OperationEngineException {
+		super(OperationType.INSERT_RANGE, siteId, seqId, contextVector, key,
+				value, position, order, local);
+		this.length = Operation.getRangeLength(value);
+	}
+
+	protected InsertRangeOperation(InsertRangeOperation op) {
+		super(op);
+		this.length = op.length;
+	}
+
+	@Override
+	public Operation copy() {
+		return new InsertRangeOperation(this);
+	}
+
+	/**
+	 * Gets the number of values inserted.
+	 *
+	 * @return Integer count
+	 */
+	@Override
+	public int getLength() {
+		return this.length;
+	}
+}
@@ -0,0 +1,232 @@
+package org.coweb.oe;
+
+/**
+ * Merges the concurrent operations of the sites in a session. Every op is
+ * made in the context of the state at its site; an engine works out the
+ * effect of the op on the state here, which the caller then applies.
+ * {@link OperationEngine} does this by operational transformation against
+ * the concurrent ops in its history; {@link SequenceEngine} places every
+ * element of a list by a unique ID and needs no history. All sites of a
+ * session must run the same kind of engine.
+ *
+ * Engines are not thread safe, callers must serialize access.
+ */
+public interface MergeEngine {
+
+	/**
+	 * Gets the site ID of this engine.
+	 *
+	 * @return Integer site ID
+	 */
+	int getSiteId();
+
+	/**
+	 * Creates an operation object for this engine. Local ops get the next
+	 * sequence number for this site and the current context; remote ops
+	 * come with their site and context.
+	 *
+	 * @param local True if the op originated locally, false if not
+	 * @param key Operation key
+	 * @param value Operation value
+	 * @param type Type of operation: update, insert, delete, insertRange,
+	 *        deleteRange
+	 * @param position Operation integer position
+	 * @param site Integer site ID where a remote op originated. Ignored for
+	 *        local operations which adopt the local site ID.
+	 * @param cv Operation context. Ignored for local operations which adopt
+	 *        the local site context.
+	 * @param order Place of the operation in the total order. Ignored for
+	 *        local operations which are not yet assigned a place.
+	 * @throws OperationEngineException
+	 * @return Subclass instance matching the given type
+	 */
+	Operation createOp(boolean local, String key, String value, String type,
+			int position, int site, int[] cv, int order)
+			throws OperationEngineException;
+
+	/**
+	 * Creates an operation and pushes it into the engine, see createOp.
+	 *
+	 * @throws OperationEngineException
+	 * @return Op to apply to the local state, or null if it has no effect
+	 */
+	Operation push(boolean local, String key, String value, String type,
+			int position, int site, int[] cv, int order)
+			throws OperationEngineException;
+
+	/**
+	 * Creates the operations of a batch that a remote site made on one
+	 * topic one after the other, with nothing received in between, and
+	 * pushes them into the engine. Only the first op comes with a context;
+	 * every later op has the context of the one before plus that op. The
+	 * engine may take the batch in one go, such as by noting the context of
+	 * the site once.
+	 *
+	 * @param key Operation key of all the ops
+	 * @param values Operation values
+	 * @param types Types of the operations
+	 * @param positions Operation integer positions
+	 * @param site Integer site ID where the ops originated
+	 * @param cv Context of the first op
+	 * @param order Place of the first op in the total order, the others
+	 *        follow it
+	 * @throws OperationEngineException
+	 * @return Ops to apply to the local state in order, null for the ones
+	 *         the engine already processed or that have no effect
+	 */
+	Operation[] pushBatch(String key, String[] values, String[] types,
+			int[] positions, int site, int[] cv, int order)
+			throws OperationEngineException;
+
+	/**
+	 * Processes a local operation, which has already been applied to the
+	 * local state.
+	 *
+	 * @param op Local operation
+	 * @throws OperationEngineException
+	 * @return The operation
+	 */
+	Operation pushLocalOp(Operation op) throws OperationEngineException;
+
+	/**
+	 * Processes a remote operation.
+	 *
+	 * @param op Remote operation
+	 * @throws OperationEngineException
+	 * @return Op to apply to the local state, or null if the engine already
+	 *         processed the op or its effect is nothing
+	 */
+	Operation pushRemoteOp(Operation op) throws OperationEngineException;
+
+	/**
+	 * Counts an operation in the context of the engine without merging it,
+	 * such as an update on a last-writer-wins topic.
+	 *
+	 * @param op Local or remote operation
+	 * @throws OperationEngineException
+	 * @return False if the engine already processed the op
+	 */
+	boolean skipOp(Operation op) throws OperationEngineException;
+
+	/**
+	 * Tells if the engine has already processed an operation.
+	 *
+	 * @param op Operation to check
+	 * @return True if processed
+	 */
+	boolean hasProcessedOp(Operation op);
+
+	/**
+	 * Makes a copy of the context of the local state.
+	 *
+	 * @throws OperationEngineException
+	 * @return Copy of the context vector for the local site
+	 */
+	ContextVector copyContextVector() throws OperationEngineException;
+
+	/**
+	 * Processes an engine synchronization event.
+	 *
+	 * @param site Integer site ID of where the sync originated
+	 * @param sites Array form of the context vector sent by the site
+	 * @throws OperationEngineException
+	 */
+	void pushSyncWithSites(int site, int[] sites)
+			throws OperationEngineException;
+
+	/**
+	 * Processes a delta engine synchronization event.
+	 *
+	 * @param site Integer site ID of where the sync originated
+	 * @param changes Pairs of site ID and sequence number
+	 * @throws OperationEngineException
+	 */
+	void pushSyncDelta(int site, int[] changes)
+			throws OperationEngineException;
+
+	/**
+	 * Drops what the engine no longer needs to merge the ops still to come.
+	 *
+	 * @throws OperationEngineException
+	 * @return Context all sites have reached, or null if the purge did not
+	 *         run
+	 */
+	ContextVector purge() throws OperationEngineException;
+
+	/**
+	 * Releases what earlier purges dropped, if the engine defers that. May
+	 * run without the lock that guards the engine.
+	 */
+	void reclaim();
+
+	/**
+	 * Gets the number of operations the engine holds to merge later ones.
+	 *
+	 * @return Integer count
+	 */
+	int getBufferSize();
+
+	/**
+	 * Stops waiting for a site that left before purging.
+	 *
+	 * @param site Integer ID of the site to freeze
+	 * @throws OperationEngineException
+	 */
+	void freezeSite(int site) throws OperationEngineException;
+
+	/**
+	 * Waits for a site again, before the first op of a new site.
+	 *
+	 * @param site Integer ID of the site to thaw
+	 * @throws OperationEngineException
+	 */
+	void thawSite(int site) throws OperationEngineException;
+
+	/**
+	 * Tells if a site is frozen, see freezeSite.
+	 *
+	 * @param site Integer ID of the site
+	 * @return True if frozen
+	 */
+	boolean isFrozen(int site);
+
+	/**
+	 * Drops trailing sites that left without an op from the contexts.
+	 *
+	 * @return Integer width of the contexts after
+	 */
+	int retireSites();
+
+	/**
+	 * Gets the state of this engine to seed a new instance at a late
+	 * joining site.
+	 *
+	 * @return Array of serialized state
+	 */
+	Object[] getState();
+
+	/**
+	 * Takes a snapshot of the state that later changes to the engine do not
+	 * affect, so the state can be built from it without the engine lock.
+	 *
+	 * @return Snapshot of the engine state
+	 */
+	EngineState getStateSnapshot();
+
+	/**
+	 * Sets the state of this engine to state from getState of another
+	 * instance.
+	 *
+	 * @param arr Array in the format returned by getState
+	 * @throws OperationEngineException
+	 */
+	void setState(Object[] arr) throws OperationEngineException;
+
+	/**
+	 * Gets the version of the engine state, which grows every time the
+	 * state returned by getState changes.
+	 *
+	 * @return Version number
+	 */
+	long getVersion();
+}
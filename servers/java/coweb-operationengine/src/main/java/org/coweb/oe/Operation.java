@@ -1,9 +1,7 @@
 package org.coweb.oe;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
 
 
 public abstract class Operation {
@@ -11,7 +9,7 @@ public abstract class Operation {
 	protected final static int infinity = 99999999;
 	protected int siteId;
 	protected int seqId;
-	protected String type = null;
+	protected OperationType type = null;
 	protected boolean local = false;
 	protected ContextVector contextVector = null;
 	protected String key = null;
@@ -19,31 +17,114 @@ public abstract class Operation {
 	protected int position;
 	protected int order;
 	protected boolean immutable;
-	protected Vector<Operation> xCache = null;
+	protected TransformCache xCache = null;
 	
 	public static Operation createOperationFromType(String type, Map<String, Object> args) throws OperationEngineException  {
 		
-		Operation op = null;
-		
-		if(type.equals("insert")) {
-			op = new InsertOperation(args);
-		}
-		else if(type.equals("delete")) {
-			op = new DeleteOperation(args);
+		switch(OperationType.fromName(type)) {
+		case INSERT:
+			return new InsertOperation(args);
+		case DELETE:
+			return new DeleteOperation(args);
+		case UPDATE:
+			return new UpdateOperation(args);
+		case INSERT_RANGE:
+			return new InsertRangeOperation(args);
+		case DELETE_RANGE:
+			return new DeleteRangeOperation(args);
 		}
-		else if(type.equals("update")) {
-			op = new UpdateOperation(args);
+		
+		throw new OperationEngineException("unknown operation type: " + type);
+	}
+	
+	/**
+	 * Creates an operation of the given type without going through a map of
+	 * named arguments. See {@link #Operation(OperationType, Map)} for the
+	 * meaning of the parameters.
+	 *
+	 * @throws OperationEngineException
+	 * @return Subclass instance matching the given type
+	 */
+	public static Operation createOperation(OperationType type, int siteId,
+			int seqId, ContextVector contextVector, String key, String value,
+			int position, int order, boolean local) throws OperationEngineException {
+		
+		switch(type) {
+		case INSERT:
+			return new InsertOperation(siteId, seqId, contextVector, key,
+					value, position, order, local);
+		case DELETE:
+			return new DeleteOperation(siteId, seqId, contextVector, key,
+					value, position, order, local);
+		case UPDATE:
+			return new UpdateOperation(siteId, seqId, contextVector, key,
+					value, position, order, local);
+		case INSERT_RANGE:
+			return new InsertRangeOperation(siteId, seqId, contextVector, key,
+					value, position, order, local);
+		case DELETE_RANGE:
+			return new DeleteRangeOperation(siteId, seqId, contextVector, key,
+					value, position, order, local);
 		}
 		
-		return op;
+		throw new OperationEngineException("unknown operation type: " + type);
 	}
 	
+	/**
+	 * Restores an operation from the array returned by getState.
+	 *
+	 * @param state Array in the format returned by getState
+	 * @throws OperationEngineException
+	 * @return Subclass instance matching the type in the state
+	 */
 	public static Operation createOperationFromState(Object[] state) throws OperationEngineException {
-		return null;
+		Map<String, Object> args = new HashMap<String, Object>();
+		args.put("state", state);
+		return Operation.createOperationFromType((String)state[0], args);
+	}
+	
+	/**
+	 * Packs a site ID and sequence number into a single primitive key for
+	 * history buffer lookups. The site occupies the high 32 bits and the
+	 * sequence number the low 32 bits.
+	 *
+	 * @param site Integer site ID
+	 * @param seq Integer sequence number
+	 * @return Long history key
+	 */
+	public static long createHistoryKey(int site, int seq) {
+		return ((long)site << 32) | (seq & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Gets the site ID packed into a history key.
+	 *
+	 * @param key Long history key
+	 * @return Integer site ID
+	 */
+	public static int getSiteFromHistoryKey(long key) {
+		return (int)(key >>> 32);
+	}
+	
+	/**
+	 * Gets the sequence number packed into a history key.
+	 *
+	 * @param key Long history key
+	 * @return Integer sequence number
+	 */
+	public static int getSeqFromHistoryKey(long key) {
+		return (int)key;
 	}
 	
-	public static String createHistoryKey(int site, int seq) {
-		return new Integer(site).toString() + "," + new Integer(seq).toString();
+	/**
+	 * Formats a history key as "site,seq" (for debug).
+	 *
+	 * @param key Long history key
+	 * @return String form of the key
+	 */
+	public static String historyKeyToString(long key) {
+		return Operation.getSiteFromHistoryKey(key) + "," + 
+			Operation.getSeqFromHistoryKey(key);
 	}
 	
 	@Override
@@ -80,12 +161,12 @@ public abstract class Operation {
      *            If undefined, computed from the context vector and site ID.
      *        <li>immutable True if the op cannot be changed, most likely because
 	 *            it is in a history buffer somewhere to this instance
+	 * @param type Operation type of the subclass
 	 * @throws OperationEngineException 
      */
-	@SuppressWarnings("unchecked")
-	protected Operation(Map<String, Object> args) throws OperationEngineException {
+	protected Operation(OperationType type, Map<String, Object> args) throws OperationEngineException {
+		this.type = type;
 		if(args == null) {
-			this.type = null;
 			return;
 		}
 			
@@ -118,7 +199,7 @@ public abstract class Operation {
 			}
 			
 			if(args.containsKey("xCache")) {
-				this.xCache = (Vector<Operation>)args.get("xCache");
+				this.xCache = (TransformCache)args.get("xCache");
 			}
 			else {
 				this.xCache = null;
@@ -130,17 +211,187 @@ public abstract class Operation {
 		this.immutable = false;
 		
 		if(this.xCache == null) {
-			this.xCache = new Vector<Operation>();
+			this.xCache = new TransformCache();
 		}
 	}
 	
+	/**
+	 * Initializes an operation from individual values.
+	 *
+	 * @param type Operation type of the subclass
+	 * @param siteId Integer site ID where the op originated
+	 * @param seqId Integer sequence number of the op at its originating site
+	 * @param contextVector Context in which the op occurred
+	 * @param key Name of the property the op affected
+	 * @param value Value of the op
+	 * @param position Integer position of the op in a linear collection
+	 * @param order Integer sequence number of the op in the total op order
+	 *        across all sites or {@link #infinity} if not yet known
+	 * @param local True if the op originated at this site
+	 */
+	protected Operation(OperationType type, int siteId, int seqId,
+			ContextVector contextVector, String key, String value,
+			int position, int order, boolean local) {
+		this.type = type;
+		this.siteId = siteId;
+		this.seqId = seqId;
+		this.contextVector = contextVector;
+		this.key = key;
+		this.value = value;
+		this.position = position;
+		this.order = order;
+		this.local = local;
+		this.immutable = false;
+		this.xCache = new TransformCache();
+	}
+	
+	/**
+	 * Initializes a mutable copy of another operation. The copy gets its own
+	 * context vector but shares the transform cache of the original.
+	 *
+	 * @param op Operation to copy
+	 */
+	protected Operation(Operation op) {
+		this.type = op.type;
+		this.siteId = op.siteId;
+		this.seqId = op.seqId;
+		this.contextVector = new ContextVector(op.contextVector);
+		this.key = op.key;
+		this.value = op.value;
+		this.position = op.position;
+		this.order = op.order;
+		this.local = op.local;
+		this.immutable = false;
+		this.xCache = op.xCache;
+	}
+	
 	
+	/**
+	 * Transforms this operation to include the effect of a delete or a
+	 * delete range.
+	 */
 	public abstract Operation transformWithDelete(Operation op);
 	
+	/**
+	 * Transforms this operation to include the effect of an insert or an
+	 * insert range.
+	 */
 	public abstract Operation transformWithInsert(Operation op);
 	
 	public abstract Operation transformWithUpdate(Operation op);
 	
+	/**
+	 * Gets the number of positions this op inserts or deletes. Ops other
+	 * than ranges cover a single position.
+	 *
+	 * @return Integer count
+	 */
+	public int getLength() {
+		return 1;
+	}
+	
+	/**
+	 * Counts the positions below the given one that this delete removes.
+	 * Only meaningful for deletes and delete ranges.
+	 *
+	 * @param position Integer position
+	 * @return Integer count
+	 */
+	protected int deletedBelow(int position) {
+		return (this.position < position) ? 1 : 0;
+	}
+	
+	/**
+	 * Tells if this delete removes the given position. Only meaningful for
+	 * deletes and delete ranges.
+	 *
+	 * @param position Integer position
+	 * @return True if removed
+	 */
+	protected boolean deletes(int position) {
+		return this.position == position;
+	}
+	
+	/**
+	 * Gets the positions this delete removes as sorted, disjoint pairs of
+	 * start (inclusive) and end (exclusive). Only meaningful for deletes and
+	 * delete ranges.
+	 *
+	 * @return Array of start and end positions, not to be modified
+	 */
+	protected int[] getDeletedRanges() {
+		int[] ranges = { this.position, this.position + 1 };
+		return ranges;
+	}
+	
+	/**
+	 * Gets the number of positions a range op covers from its value: the
+	 * characters of a JSON string, the elements of a JSON array or a JSON
+	 * integer giving the count.
+	 *
+	 * @param value JSON-encoded value of the op
+	 * @throws OperationEngineException If the value is none of those or
+	 *         covers no positions
+	 * @return Integer count
+	 */
+	static int getRangeLength(String value) throws OperationEngineException {
+		int n = -1;
+		String v = (value == null) ? "" : value.trim();
+		if(v.startsWith("\"")) {
+			n = 0;
+			for(int i=1; i < v.length() && v.charAt(i) != '"'; i++) {
+				if(v.charAt(i) == '\\') {
+					// an escape is one character, unicode escapes included
+					i += (i+1 < v.length() && v.charAt(i+1) == 'u') ? 5 : 1;
+				}
+				++n;
+			}
+		} else if(v.startsWith("[")) {
+			n = 0;
+			int depth = 0;
+			boolean inString = false;
+			boolean empty = true;
+			for(int i=1; i < v.length() && depth >= 0; i++) {
+				char c = v.charAt(i);
+				if(inString) {
+					if(c == '\\') {
+						++i;
+					} else if(c == '"') {
+						inString = false;
+					}
+					continue;
+				}
+				if(c == '"') {
+					inString = true;
+				} else if(c == '[' || c == '{') {
+					++depth;
+				} else if(c == ']' || c == '}') {
+					--depth;
+					continue;
+				} else if(c == ',' && depth == 0) {
+					++n;
+				}
+				if(!Character.isWhitespace(c)) {
+					empty = false;
+				}
+			}
+			if(!empty) {
+				++n;
+			}
+		} else {
+			try {
+				n = Integer.parseInt(v);
+			} catch(NumberFormatException e) {
+				n = -1;
+			}
+		}
+		if(n <= 0) {
+			throw new OperationEngineException("range op needs a nonempty " +
+					"string, array or count as its value: " + value);
+		}
+		return n;
+	}
+	
 	
 	/**
      * Serializes the operation as an array of values for transmission.
@@ -151,7 +402,7 @@ public abstract class Operation {
 	public Object[] getState() {
 		 // use an array to minimize the wire format
         Object[] arr = {
-        		this.type, 
+        		this.type.getName(), 
         		this.key, 
         		this.value, 
         		this.position, 
@@ -172,63 +423,47 @@ public abstract class Operation {
 	 * @throws OperationEngineException 
      */
 	public void setState(Object[] arr) throws OperationEngineException {
-		if(!((String)arr[0]).equals(this.type)) {
+		if(OperationType.fromName((String)arr[0]) != this.type) {
             throw new OperationEngineException("setState invoked with state from wrong op type");
         } else if(this.immutable) {
             throw new OperationEngineException("op is immutable");
         }
 		
-        // name args as required by constructor
+        // name args as required by constructor; numbers may come back from
+        // JSON as longs and the context vector as an object array
         this.key = (String)arr[1];
         this.value = (String)arr[2];
-        this.position = ((Integer)arr[3]).intValue();
-        
-        HashMap<String, Object> args = new HashMap<String, Object>();
-        args.put("state", (Object[])arr[4]);
+        this.position = ((Number)arr[3]).intValue();
         
-        this.contextVector = new ContextVector(args);
+        if(arr[4] instanceof int[]) {
+        	this.contextVector = new ContextVector((int[])arr[4]);
+        } else {
+        	Object[] sites = (Object[])arr[4];
+        	this.contextVector = new ContextVector(sites.length);
+        	for(int i=0; i < sites.length; i++) {
+        		this.contextVector.setSeqForSite(i,
+        				((Number)sites[i]).intValue());
+        	}
+        }
         
-        this.seqId = ((Integer)arr[5]).intValue();
-        this.siteId = ((Integer)arr[6]).intValue();
+        this.seqId = ((Number)arr[5]).intValue();
+        this.siteId = ((Number)arr[6]).intValue();
         
         if(arr.length >= 8) {
-        	this.order = ((Integer)arr[7]).intValue();
+        	this.order = ((Number)arr[7]).intValue();
         } else {
         	this.order = Operation.infinity;
         }
 	}
 	
 	/**
-     * Makes a copy of this operation object. Takes a shortcut and returns
-     * a ref to this instance if the op is marked as mutable.
+     * Makes a mutable copy of this operation object sharing its transform
+     * cache.
 	 * @throws OperationEngineException 
      *
      * @return Operation object
      */
-	public Operation copy() throws OperationEngineException {
-		HashMap<String, Object> args = new HashMap<String, Object>();
-		
-	    args.put("siteId", new Integer(this.siteId));
-	    args.put("seqId", new Integer(this.seqId));
-	    args.put("contextVector", this.contextVector.copy());
-	    args.put("key", this.key);
-	    args.put("value", this.value);
-	    args.put("position", new Integer(this.position));
-	    args.put("order", new Integer(this.order));
-	    args.put("local", new Boolean(this.local));
-	    args.put("xCache", this.xCache);
-	   
-	    Operation op;
-	    try {
-	    	op = Operation.createOperationFromType(this.type, args);
-	    }
-	    catch(OperationEngineException e) {
-	    	e.printStackTrace();
-	    	op = null;
-	    }
-	    
-	    return op;
-	}
+	public abstract Operation copy() throws OperationEngineException;
 	
 	/**
      * Gets a version of the given operation previously transformed into the
@@ -241,18 +476,8 @@ public abstract class Operation {
      */
 	public Operation getFromCache(ContextVector cv) throws OperationEngineException {
 		// check if the cv is a key in the xCache
-        Vector<Operation> cache = this.xCache;
-        int l = cache.size();
-        Operation xop;
-           
-        for(int i=0; i<l; i++) {
-            xop = cache.elementAt(i);
-            if(xop.contextVector.equals(cv)) {
-                return xop.copy();
-            }
-        }
-        
-        return null;
+        Operation xop = this.xCache.get(cv);
+        return (xop == null) ? null : xop.copy();
 	}
 	
 	/**
@@ -263,29 +488,13 @@ public abstract class Operation {
 	 * @throws OperationEngineException 
      */
 	public void addToCache(int siteCount) throws OperationEngineException {
-		// pull some refs local
-        Vector<Operation> cache = this.xCache;
-        Operation cop = this.copy();
+		Operation cop = this.copy();
 
-        // mark copy as immutable
+        // mark copy as immutable so its context vector is a stable cache key
         cop.immutable = true;
 
-        // add a copy of this transformed op to the history
-        cache.addElement(cop);
-
-        // check the count of cached ops against number of sites - 1
-        int diff = cache.size() - (siteCount-1);
-        if(diff > 0) {
-            // if overflow, remove oldest op(s)
-        	Operation[] arr = new Operation[cache.size()];
-			arr = cache.toArray(arr);
-        	Operation[] newArr = Arrays.copyOf(arr, diff);
-        	
-        	cache.removeAllElements();
-        	for(int i=0; i<newArr.length; i++) {
-        		cache.addElement(newArr[i]);
-        	}        	
-        }
+        // evict the least recently used copies on overflow
+        this.xCache.put(cop, siteCount);
 	}
 	
 	/**
@@ -363,14 +572,18 @@ public abstract class Operation {
         }
     	
     	Operation rv = null;
-    	if(op.type.equals("delete")) {
+    	switch(op.type) {
+    	case DELETE:
+    	case DELETE_RANGE:
     		rv = this.transformWithDelete(op);
-    	}
-    	else if(op.type.equals("insert")) {
+    		break;
+    	case INSERT:
+    	case INSERT_RANGE:
     		rv = this.transformWithInsert(op);
-    	}
-    	else if(op.type.equals("update")) {
+    		break;
+    	case UPDATE:
     		rv = this.transformWithUpdate(op);
+    		break;
     	}
     	
     	if(rv != null) {
@@ -396,6 +609,10 @@ public abstract class Operation {
         this.contextVector.setSeqForSite(op.siteId, op.seqId);
 	}
 	
+	public OperationType getType() {
+		return this.type;
+	}
+
 	public int getSiteId() {
 		return this.siteId;
 	}
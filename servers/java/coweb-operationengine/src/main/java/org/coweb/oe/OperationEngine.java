@@ -1,16 +1,29 @@
 package org.coweb.oe;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Stack;
 
-public class OperationEngine {
+public class OperationEngine implements MergeEngine {
 
 	private int siteId;
 	private ContextVector cv = null;
 	private ContextVectorTable cvt = null;
 	private HistoryBuffer hb = null;
 	private int siteCount = 1;
+	// transform cache lookups and hits since the engine was created
+	private long cacheLookups = 0;
+	private long cacheHits = 0;
+	// index of the history by op key when transforms are partitioned by key
+	private TopicIndex topics = null;
+	// bumped on every change to the state returned by getState
+	private long version = 0;
+	// leave releasing purged ops to reclaim
+	private boolean deferReclaim = false;
+	// number of times compactSites renumbered the sites
+	private int siteEpoch = 0;
 
 	/**
      * Controls the operational transformation algorithm. Provides a public
@@ -20,13 +33,49 @@ public class OperationEngine {
      * @param siteId Unique integer site ID for this engine instance
      */
 	public OperationEngine(int siteId) throws OperationEngineException {
+		this(siteId, new SiteHistoryBuffer());
+	}
+
+	/**
+     * Controls the operational transformation algorithm using the given
+     * history buffer implementation to store processed operations.
+     *
+     * @param siteId Unique integer site ID for this engine instance
+     * @param hb Empty history buffer for this engine instance
+     */
+	public OperationEngine(int siteId, HistoryBuffer hb) throws OperationEngineException {
 		this.siteId = siteId;
 
-		HashMap<String, Object>args = new HashMap<String, Object>();
-		args.put("count", siteId + 1);
-		this.cv = new ContextVector(args);
+		this.cv = new ContextVector(siteId + 1);
 		this.cvt = new ContextVectorTable(this.cv, siteId);
-		this.hb = new HistoryBuffer();
+		this.hb = hb;
+	}
+
+	/**
+	 * Turns on partitioning of transforms by operation key (collab topic).
+	 * Ops only affect ops with the same key, so when partitioned a remote op
+	 * is transformed against the concurrent ops with its key and merely
+	 * includes the others in its context. The engine keeps a single context
+	 * vector either way. Must be set before the engine processes any ops.
+	 *
+	 * @param partitioned True to partition transforms by key
+	 * @throws OperationEngineException If the history is not empty
+	 */
+	public void setPartitioned(boolean partitioned) throws OperationEngineException {
+		if (this.hb.getCount() != 0) {
+			throw new OperationEngineException(
+					"cannot change partitioning with ops in the history");
+		}
+		this.topics = partitioned ? new TopicIndex() : null;
+	}
+
+	/**
+	 * Gets if transforms are partitioned by operation key.
+	 *
+	 * @return True if partitioned
+	 */
+	public boolean isPartitioned() {
+		return this.topics != null;
 	}
 	
 	@Override
@@ -37,6 +86,7 @@ public class OperationEngine {
 		b.append(",ContextVectorTable : " + this.cvt);
 		b.append(",HistoryBuffer : " + this.hb);
 		b.append(",siteCount : " + this.siteCount);
+		b.append(",transformCacheHitRate : " + this.getTransformCacheHitRate());
 		b.append("}");
 		
 		return b.toString();
@@ -48,14 +98,24 @@ public class OperationEngine {
      * @return {Object[]} Array or serialized state
      */
 	public Object[] getState() {
+		return this.getStateSnapshot().toArray();
+	}
 
+	/**
+	 * Takes a snapshot of the state of this engine that later changes to
+	 * the engine do not affect. Taking it copies the context vector table
+	 * and shares the history buffer copy-on-write; building the state array
+	 * or binary snapshot from it is left to the caller, who need not hold
+	 * the engine lock for that.
+	 *
+	 * @return Snapshot of the engine state
+	 */
+	public EngineState getStateSnapshot() {
 		int[] frozen = this.cvt.getEquivalents(this.cv,
 				this.siteId);
 
-		Object[] ret = { this.cvt.getState(), this.hb.getState(), new Integer(this.siteId),
-				frozen };
-
-		return ret;
+		return new EngineState(this.cvt.getState(), this.hb.snapshot(),
+				this.siteId, frozen, this.version);
 	}
 
 	/**
@@ -67,6 +127,21 @@ public class OperationEngine {
 	public void setState(Object[] arr) throws OperationEngineException {
 		this.cvt.setState((int[][])arr[0]);
 		this.hb.setState((Object[])arr[1]);
+		if (this.topics != null) {
+			this.topics.clear();
+			Operation[] ops = this.hb.getOperations().toArray(new Operation[0]);
+			Arrays.sort(ops, new Comparator<Operation>() {
+				public int compare(Operation a, Operation b) {
+					if (a.siteId != b.siteId) {
+						return (a.siteId < b.siteId) ? -1 : 1;
+					}
+					return (a.seqId < b.seqId) ? -1 : (a.seqId > b.seqId) ? 1 : 0;
+				}
+			});
+			for (Operation op : ops) {
+				this.topics.add(op);
+			}
+		}
 
 		this.cv = this.cvt.getContextVector(((Integer)arr[2]).intValue());
 
@@ -81,6 +156,40 @@ public class OperationEngine {
 		for (int i = 0; i < frozen.length; i++) {
 			this.freezeSite(frozen[i]);
 		}
+		++this.version;
+	}
+
+	/**
+	 * Gets the version of the engine state. It grows every time an op, an
+	 * engine sync, a purge or a change of the participating sites alters
+	 * what getState returns, so callers can cache the state or a snapshot
+	 * of it until the version moves.
+	 *
+	 * @return Version number
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Gets the state of this engine as a compact binary snapshot. See
+	 * {@link EngineStateCodec}.
+	 * 
+	 * @throws OperationEngineException
+	 * @return Snapshot bytes
+	 */
+	public byte[] getSnapshot() throws OperationEngineException {
+		return EngineStateCodec.encode(this.getState());
+	}
+
+	/**
+	 * Sets the state of this engine from a snapshot made by getSnapshot.
+	 * 
+	 * @param data Snapshot bytes
+	 * @throws OperationEngineException
+	 */
+	public void setSnapshot(byte[] data) throws OperationEngineException {
+		this.setState(EngineStateCodec.decode(data));
 	}
 
 	/**
@@ -116,30 +225,50 @@ public class OperationEngine {
 	 */
 	public Operation createOp(boolean local, String key, String value,
 			String type, int position, int site, int[] cv, int order) throws OperationEngineException {
-		Map<String, Object> args = new HashMap<String, Object>();
+		OperationType opType = OperationType.fromName(type);
 		if (local) {
-			args.put("key", key);
-			args.put("position", new Integer(position));
-			args.put("value", value);
-			args.put("siteId", new Integer(this.siteId));
-			args.put("contextVector", this.copyContextVector());
-			args.put("local", true);
+			ContextVector contextVector = this.copyContextVector();
+			return Operation.createOperation(opType, this.siteId,
+					contextVector.getSeqForSite(this.siteId) + 1,
+					contextVector, key, value, position, Operation.infinity,
+					true);
 		} else {
 			// build cv from raw sites array
-			HashMap<String, Object> map = new HashMap<String, Object>();
-			map.put("sites", cv);
-			ContextVector contextVector = new ContextVector(map);
-
-			args.put("key", key);
-			args.put("position", new Integer(position));
-			args.put("value", value);
-			args.put("siteId", new Integer(site));
-			args.put("contextVector", contextVector);
-			args.put("order", order);
-			args.put("local", false);
+			ContextVector contextVector = new ContextVector(cv);
+			return Operation.createOperation(opType, site,
+					contextVector.getSeqForSite(site) + 1, contextVector, key,
+					value, position, order, false);
 		}
+	}
 
-		return Operation.createOperationFromType(type, args);
+	/**
+	 * Creates a local operation in a context wider than the one of this
+	 * engine. A partitioned engine that only processes the ops for some keys
+	 * can stamp its local ops with the context of the whole session, which
+	 * also covers ops with other keys and local ops created by other engines
+	 * for the same site.
+	 * 
+	 * @param key Operation key
+	 * @param value Operation value
+	 * @param type Type of operation: update, insert, delete
+	 * @param position Operation integer position
+	 * @param context Context of the session, merged with the context of this
+	 *        engine
+	 * @throws OperationEngineException 
+	 * @return Subclass instance matching the given type
+	 */
+	public Operation createOpInContext(String key, String value, String type,
+			int position, ContextVector context) throws OperationEngineException {
+		if (this.topics == null) {
+			throw new OperationEngineException(
+				"wider contexts need a partitioned engine");
+		}
+		OperationType opType = OperationType.fromName(type);
+		ContextVector contextVector = new ContextVector(context);
+		contextVector.raise(this.cv);
+		return Operation.createOperation(opType, this.siteId,
+				contextVector.getSeqForSite(this.siteId) + 1, contextVector,
+				key, value, position, Operation.infinity, true);
 	}
 
 	/**
@@ -160,6 +289,42 @@ public class OperationEngine {
 		}
 	}
 
+	/**
+	 * Processes a batch of remote operations, see
+	 * {@link MergeEngine#pushBatch}. Each op is transformed like in
+	 * pushRemoteOp, but the context vector table only takes the context of
+	 * the last op, which covers the ones before it.
+	 * @throws OperationEngineException 
+	 */
+	public Operation[] pushBatch(String key, String[] values, String[] types,
+			int[] positions, int site, int[] cv, int order)
+			throws OperationEngineException {
+		Operation[] tops = new Operation[types.length];
+		int[] context = Arrays.copyOf(cv, Math.max(cv.length, site + 1));
+		Operation last = null;
+		for (int i = 0; i < types.length; i++) {
+			Operation op = this.createOp(false, key, values[i], types[i],
+					positions[i], site, context, order + i);
+			context[site] = op.getSeqId();
+			if (this.hasProcessedOp(op)) {
+				this.hb.addRemote(op);
+				continue;
+			}
+			tops[i] = this.transformRemoteOp(op);
+			this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
+			this.hb.addRemote(op);
+			if (this.topics != null) {
+				this.topics.add(op);
+			}
+			last = op;
+		}
+		if (last != null) {
+			this.cvt.updateWithOperation(last);
+		}
+		++this.version;
+		return tops;
+	}
+
 	/**
 	 * Procceses a local operation and adds it to the history buffer.
 	 * 
@@ -171,6 +336,10 @@ public class OperationEngine {
 		this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
 		// add to history buffer
 		this.hb.addLocal(op);
+		if (this.topics != null) {
+			this.topics.add(op);
+		}
+		++this.version;
 		return op;
 	}
 
@@ -190,32 +359,85 @@ public class OperationEngine {
 		if (this.hasProcessedOp(op)) {
 			// let the history buffer track the total order for the op
 			this.hb.addRemote(op);
+			++this.version;
 			// engine has already processed this op so ignore it
 			return null;
-		} else if (this.cv.equals(op.getContextVector())) {
-			// no transform needed
-			// make a copy so return value is independent of input
-			top = op.copy();
-		} else {
-			// transform needed to upgrade context
-			ContextDifference cd = this.cv.subtract(op.getContextVector());
-			// make the original op immutable
-			op.setImmutable(true);
-			// top is a transformed copy of the original
-			top = this._transform(op, cd);
 		}
+		top = this.transformRemoteOp(op);
 
 		// update local context vector with the original op
 		this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
 		// store original op
 		this.hb.addRemote(op);
+		if (this.topics != null) {
+			this.topics.add(op);
+		}
 		// update context vector table with original op
 		this.cvt.updateWithOperation(op);
+		++this.version;
 
 		// return the transformed op
 		return top;
 	}
 
+	/**
+	 * Transforms a remote operation the engine has not processed yet to
+	 * include the concurrent ops in the history buffer.
+	 *
+	 * @return New, transformed operation object or null if its effect is
+	 *         nothing
+	 */
+	private Operation transformRemoteOp(Operation op)
+			throws OperationEngineException {
+		if (this.cv.equals(op.getContextVector())) {
+			// no transform needed
+			// make a copy so return value is independent of input
+			return op.copy();
+		}
+		// transform needed to upgrade context
+		ContextDifference cd = this.cv.subtract(op.getContextVector());
+		if (this.topics != null) {
+			// only ops with the same key can affect this one
+			cd = this.topics.filter(cd, op.key);
+		}
+		// make the original op immutable
+		op.setImmutable(true);
+		if (cd.isEmpty()) {
+			// no concurrent op with the same key
+			return op.copy();
+		}
+		// top is a transformed copy of the original
+		return this._transform(op, cd);
+	}
+
+	/**
+	 * Accounts for an operation kept out of the history buffer, such as an
+	 * update on a last-writer-wins topic. The context vector moves past the
+	 * op so sequence numbers stay in step with the other sites, but no later
+	 * op is ever transformed against it. Only a partitioned engine can skip
+	 * ops, since it only looks for ops on the same topic in the history.
+	 *
+	 * @param op Local or remote operation
+	 * @throws OperationEngineException If the engine is not partitioned
+	 * @return False if the engine already processed the op
+	 */
+	public boolean skipOp(Operation op) throws OperationEngineException {
+		if (this.topics == null) {
+			throw new OperationEngineException(
+					"only a partitioned engine can skip ops");
+		}
+		if (this.hasProcessedOp(op)) {
+			return false;
+		}
+		this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
+		if (!op.local) {
+			// the sender has seen everything in the op context
+			this.cvt.updateWithOperation(op);
+		}
+		++this.version;
+		return true;
+	}
+
 	/**
 	 * Processes an engine synchronization event.
 	 * 
@@ -226,6 +448,7 @@ public class OperationEngine {
 	public void pushSync(int site, ContextVector cv) throws OperationEngineException {
 		// update the context vector table
 		this.cvt.updateWithContextVector(site, cv);
+		++this.version;
 	}
 
 	/**
@@ -237,12 +460,23 @@ public class OperationEngine {
 	 */
 	public void pushSyncWithSites(int site, int[] sites) throws OperationEngineException {
 		// build a context vector from raw site data
-		HashMap<String, Object> args = new HashMap<String, Object>();
-		args.put("sites",sites);
-		ContextVector cv = new ContextVector(args);
+		ContextVector cv = new ContextVector(sites);
 		this.pushSync(site, cv);
 	}
 
+	/**
+	 * Processes a delta engine synchronization event, which lists only the
+	 * context vector entries that changed at the site since its last one.
+	 * 
+	 * @param site Integer site ID of where the sync originated
+	 * @param changes Pairs of site ID and sequence number
+	 * @throws OperationEngineException 
+	 */
+	public void pushSyncDelta(int site, int[] changes) throws OperationEngineException {
+		this.cvt.raiseSites(site, changes);
+		++this.version;
+	}
+
 	/**
 	 * Runs the garbage collection algorithm over the history buffer.
 	 * @throws OperationEngineException 
@@ -264,44 +498,163 @@ public class OperationEngine {
 			return null;
 		}
 
-		Operation min_op = null;
-		ContextDifference cd = this.cv.oldestDifference(mcv);
-		Stack<Operation> ops = this.hb.getOpsForDifference(cd);
-		while (ops.size() > 0) {
-			// get an op from the list we have yet to process
-			Operation curr = ops.pop();
-			// if we haven't picked a minimum op yet OR
-			// the current op is before the minimum op in context
-			if (min_op == null || curr.compareByContext(min_op) == -1) {
-				// compute the oldest difference between the document state
-				// and the current op
-				cd = this.cv.oldestDifference(curr.getContextVector());
-				// add the operations in this difference to the list to process
-				ops.addAll(this.hb.getOpsForDifference(cd));
-				// make the current op the new minimum
-				min_op = curr;
+		int[] bound = this.getPurgeBound(mcv);
+		this.lowerPurgeBound(bound);
+		this.purgeThrough(bound);
+		return mcv;
+	}
+
+	/**
+	 * Takes a plan for a purge like {@link OperationEngine#purge} that does
+	 * most of its work without the engine lock. Taking it only copies the
+	 * context vector table and takes a view of the history. The caller
+	 * settles the plan without the lock, on its own or with the plans of
+	 * other engines sharing a bound, and carries it out with
+	 * {@link OperationEngine#purgeThrough(PurgePlan)} under the lock again.
+	 *
+	 * @return Purge plan
+	 */
+	public PurgePlan planPurge() {
+		return new PurgePlan(this.hb.view(), this.cvt.copyStaticRows(),
+				this.cv.copySites());
+	}
+
+	/**
+	 * Finds how far back each site's ops can go: an op is still needed if a
+	 * future remote op might not include it (above the minimum context) or
+	 * if some op we keep might need its context upgraded past it. The
+	 * latter lowers the bound further, see lowerPurgeBound.
+	 */
+	private int[] getPurgeBound(ContextVector mcv) {
+		int l = this.cv.getSize();
+		int[] bound = new int[l];
+		for (int site = 0; site < l; site++) {
+			bound[site] = Math.min(mcv.getSeqForSite(site),
+					this.cv.getSeqForSite(site));
+		}
+		return bound;
+	}
+
+	/**
+	 * Lowers a purge bound until no operation kept in the history buffer
+	 * has a context below it. Ops from one site have growing contexts, so
+	 * only the oldest kept op from each site constrains the bound. Engines
+	 * sharing one session can run this in turn on a common bound until none
+	 * of them lowers it any more.
+	 * 
+	 * @param bound Highest sequence number per site that may be purged,
+	 *        lowered in place
+	 * @return True if any entry of the bound was lowered
+	 */
+	public boolean lowerPurgeBound(int[] bound) {
+		int l = bound.length;
+		boolean changed = false;
+		boolean lowered = true;
+		while (lowered) {
+			lowered = false;
+			for (int site = 0; site < l; site++) {
+				Operation oldest = this.hb.getOldest(site, bound[site]);
+				if (oldest == null) {
+					continue;
+				}
+				ContextVector ocv = oldest.getContextVector();
+				for (int s = 0; s < l; s++) {
+					int seq = ocv.getSeqForSite(s);
+					if (seq < bound[s]) {
+						bound[s] = seq;
+						lowered = true;
+						changed = true;
+					}
+				}
 			}
 		}
+		return changed;
+	}
 
-		// get history buffer contents sorted by context dependencies
-		ops = this.hb.getContextSortedOperations();
-		// remove keys until we hit the min
-		for (int i = 0; i < ops.size(); i++) {
-			Operation op = ops.elementAt(i);
-			// if there is no minimum op OR
-			// if this op is not the minimium
-			if (min_op == null
-					|| (min_op.getSiteId() != op.getSiteId() || min_op
-							.getSeqId() != op.getSeqId())) {
-				// remove operation from history buffer
-				this.hb.remove(op);
-			} else {
-				// don't remove any more ops with context greater than or
-				// equal to the minimum
-				break;
+	/**
+	 * Drops the ops at or below a purge bound from the oldest end of each
+	 * site in the history buffer.
+	 * 
+	 * @param bound Highest sequence number per site to purge
+	 */
+	public void purgeThrough(int[] bound) {
+		for (int site = 0; site < bound.length; site++) {
+			if (this.hb.removeThrough(site, bound[site]) > 0) {
+				if (this.topics != null) {
+					this.topics.removeThrough(site, bound[site]);
+				}
+				++this.version;
 			}
 		}
-		return mcv;
+		if (!this.deferReclaim) {
+			this.hb.reclaim();
+		}
+	}
+
+	/**
+	 * Carries out a purge plan taken from this engine once it settled. Ops
+	 * added since the plan was taken have contexts at or above the minimum
+	 * context, so only the oldest op kept from each site is checked against
+	 * the bound again. Should that lower the bound after all, the purge
+	 * falls back to {@link OperationEngine#purgeThrough(int[])}, which
+	 * counts the ops it drops.
+	 *
+	 * @param plan Settled plan from planPurge
+	 */
+	public void purgeThrough(PurgePlan plan) {
+		int[] bound = plan.getBound().clone();
+		int[] counts = plan.getCounts();
+		if (this.lowerPurgeBound(bound)) {
+			this.purgeThrough(bound);
+			return;
+		}
+		for (int site = 0; site < bound.length; site++) {
+			if (counts[site] > 0 && this.hb.removeThrough(site, bound[site],
+					counts[site]) > 0) {
+				if (this.topics != null) {
+					this.topics.removeThrough(site, bound[site]);
+				}
+				++this.version;
+			}
+		}
+		if (!this.deferReclaim) {
+			this.hb.reclaim();
+		}
+	}
+
+	/**
+	 * Leaves the release of purged ops to {@link OperationEngine#reclaim}
+	 * instead of doing it during the purge. A purge then only cuts the ops
+	 * off the history, which keeps the time it holds the engine lock short,
+	 * and reclaim releases them later without the lock.
+	 *
+	 * @param defer True to defer releasing purged ops
+	 */
+	public void setDeferredReclaim(boolean defer) {
+		this.deferReclaim = defer;
+		if (!defer) {
+			this.hb.reclaim();
+		}
+	}
+
+	/**
+	 * Releases the ops cut off by earlier purges. Unlike the rest of the
+	 * engine it is safe to call from any thread, without holding the lock
+	 * the engine is used under. Only needed with deferred reclaim.
+	 */
+	public void reclaim() {
+		this.hb.reclaim();
+	}
+
+	/**
+	 * Gets the minimum context of the sites tracked in the context vector
+	 * table, leaving out this engine and the sites frozen to it.
+	 * 
+	 * @throws OperationEngineException
+	 * @return Minimum context vector or null if there are no such sites
+	 */
+	public ContextVector getMinimumRemoteContextVector() throws OperationEngineException {
+		return this.cvt.getMinimumContextVector(false);
 	}
 
 	/**
@@ -345,6 +698,7 @@ public class OperationEngine {
 			this.cvt.updateWithContextVector(site, this.cv);
 			// one less site participating now
 			this.siteCount--;
+			++this.version;
 		}
 	}
 
@@ -364,11 +718,189 @@ public class OperationEngine {
 		// get the minimum context vector
 		ContextVector cv = this.cvt.getMinimumContextVector();
 		// grow it to include the site if needed
-		cv.growTo(site);
+		cv.growTo(site + 1);
 		// use it as the initial context of the site
 		this.cvt.updateWithContextVector(site, cv);
 		// one more site participating now
 		this.siteCount++;
+		++this.version;
+	}
+
+	/**
+	 * Tells if a site is frozen, see freezeSite.
+	 * 
+	 * @param site Integer ID of the site
+	 * @return True if frozen
+	 */
+	public boolean isFrozen(int site) {
+		return this.cvt.isFrozen(site);
+	}
+
+	/**
+	 * Narrows the context vectors by dropping the trailing sites that are
+	 * frozen and never had an op seen from them. Site IDs are handed out from
+	 * the lowest free one, so once a crowd of observers leaves the top IDs are
+	 * often such sites. A retired site that comes back is added again as the
+	 * vectors grow. This needs no other engine to follow; dropping the
+	 * entries of sites that sent ops does, see compactSites.
+	 * 
+	 * @return Integer width of the context vector table after
+	 */
+	public int retireSites() {
+		int before = this.cv.getSize();
+		int width = this.cvt.retireSites(this.siteId + 1);
+		if (this.cv.getSize() != before) {
+			++this.version;
+		}
+		return width;
+	}
+
+	/**
+	 * Plans a compaction that drops the entries of sites that left. A site
+	 * can go once it is frozen, every site has seen all of its ops, none of
+	 * them is left in the history and every op kept has seen them all too:
+	 * its entry is then the same in every context this engine holds and in
+	 * every context still to come. Only an engine that knows the context of
+	 * every site, such as the server's, can tell; it applies the plan itself
+	 * and sends it to the others.
+	 * 
+	 * @throws OperationEngineException
+	 * @return Compaction to the next site epoch, or null if no site can go
+	 */
+	public SiteCompaction planSiteCompaction() throws OperationEngineException {
+		boolean[] retired = this.findRetiredSites(new int[0]);
+		int[] mapping = new int[retired.length];
+		int next = 0;
+		for (int site = 0; site < retired.length; site++) {
+			mapping[site] = retired[site] ? -1 : next++;
+		}
+		if (next == retired.length) {
+			return null;
+		}
+		return new SiteCompaction(this.siteEpoch + 1, mapping,
+				this.cvt.getMinimumContextVector().copySites());
+	}
+
+	/**
+	 * Renumbers the sites by a compaction, narrowing the context vector
+	 * table, the context of this engine and the contexts of the ops in the
+	 * history. It first purges what every site had seen when the compaction
+	 * was planned, which drops the ops that still need the entries of the
+	 * dropped sites. The site ID of this engine may move down too. Every
+	 * engine in the session must apply the compaction at the same place in
+	 * the total order.
+	 * 
+	 * @param compaction Compaction from planSiteCompaction
+	 * @throws OperationEngineException If the compaction is not for the next
+	 *         epoch, or drops this site or a site this engine still needs
+	 */
+	public void compactSites(SiteCompaction compaction)
+			throws OperationEngineException {
+		if (compaction.getEpoch() != this.siteEpoch + 1) {
+			throw new OperationEngineException("compaction to site epoch " +
+					compaction.getEpoch() + " at epoch " + this.siteEpoch);
+		}
+		int[] seen = compaction.getSeen();
+		int[] bound = new int[this.cv.getSize()];
+		for (int site = 0; site < bound.length; site++) {
+			bound[site] = Math.min(this.cv.getSeqForSite(site),
+					seqForSite(seen, site));
+		}
+		this.lowerPurgeBound(bound);
+		this.purgeThrough(bound);
+
+		boolean[] retired = this.findRetiredSites(seen);
+		for (int site = 0; site < compaction.getWidth(); site++) {
+			if (compaction.drops(site) &&
+					(site >= retired.length || !retired[site])) {
+				throw new OperationEngineException("site " + site +
+						" cannot be retired yet");
+			}
+		}
+
+		int[][] rows = this.cvt.getState();
+		int[][] newRows = new int[compaction.remapSite(rows.length)][];
+		ArrayList<Integer> frozen = new ArrayList<Integer>();
+		for (int site = 0; site < rows.length; site++) {
+			int to = compaction.remapSite(site);
+			if (to < 0) {
+				continue;
+			}
+			newRows[to] = compaction.remapSites(rows[site]);
+			if (this.cvt.isFrozen(site)) {
+				frozen.add(Integer.valueOf(to));
+			}
+		}
+		Object[] ops = this.hb.getState();
+		for (int i = 0; i < ops.length; i++) {
+			Object[] op = ((Object[]) ops[i]).clone();
+			op[4] = compaction.remapSites((int[]) op[4]);
+			op[6] = Integer.valueOf(compaction.remapSite(
+					((Number) op[6]).intValue()));
+			ops[i] = op;
+		}
+		int[] frozenSites = new int[frozen.size()];
+		for (int i = 0; i < frozenSites.length; i++) {
+			frozenSites[i] = frozen.get(i).intValue();
+		}
+
+		this.siteId = compaction.remapSite(this.siteId);
+		this.cv = new ContextVector(this.siteId + 1);
+		this.cvt = new ContextVectorTable(this.cv, this.siteId);
+		Object[] state = { newRows, ops, Integer.valueOf(this.siteId),
+				frozenSites };
+		this.setState(state);
+		this.siteEpoch = compaction.getEpoch();
+	}
+
+	/**
+	 * Gets the site epoch of the engine, the number of compactions it
+	 * applied. Contexts made at an earlier epoch must be translated by the
+	 * compactions since before this engine takes them.
+	 * 
+	 * @return Integer epoch
+	 */
+	public int getSiteEpoch() {
+		return this.siteEpoch;
+	}
+
+	/**
+	 * Marks the sites a compaction may drop, by site ID up to the widest
+	 * context the engine holds. Every site has seen at least the given
+	 * context, whatever the context vector table still says.
+	 */
+	private boolean[] findRetiredSites(int[] seen) {
+		int[][] rows = this.cvt.getState();
+		int width = Math.max(rows.length, this.cv.getSize());
+		for (int[] row : rows) {
+			width = Math.max(width, row.length);
+		}
+		int[] live = Arrays.copyOf(this.cv.copySites(), width);
+		boolean[] retired = new boolean[width];
+		for (int site = 0; site < width; site++) {
+			retired[site] = site != this.siteId &&
+				(site >= rows.length || this.cvt.isFrozen(site));
+			for (int i = 0; retired[site] && i < rows.length; i++) {
+				retired[site] = Math.max(seqForSite(rows[i], site),
+						seqForSite(seen, site)) == live[site];
+			}
+		}
+		for (Operation op : this.hb.getOperations()) {
+			if (op.siteId < width) {
+				retired[op.siteId] = false;
+			}
+			int[] sites = op.getContextVector().getSites();
+			for (int site = 0; site < width; site++) {
+				if (retired[site] && seqForSite(sites, site) != live[site]) {
+					retired[site] = false;
+				}
+			}
+		}
+		return retired;
+	}
+
+	private static int seqForSite(int[] sites, int site) {
+		return site < sites.length ? sites[site] : 0;
 	}
 
 	/**
@@ -381,84 +913,153 @@ public class OperationEngine {
 	};
 
 	/**
-	 * Executes a recursive step in the operation transformation control
-	 * algorithm. This method assumes it will NOT be called if no transformation
-	 * is needed in order to reduce the number of operation copies needed.
+	 * Executes the operation transformation control algorithm. This method
+	 * assumes it will NOT be called if no transformation is needed in order
+	 * to reduce the number of operation copies needed.
+	 * 
+	 * Upgrading the context of a previously applied op so it can be
+	 * transformed against the given op is itself a transform. Rather than
+	 * recursing for each of those, pending transforms are kept on an explicit
+	 * stack of frames so deep concurrent histories cannot overflow the thread
+	 * stack. Sub-transforms computed during this call are memoized by op and
+	 * target context so each is done at most once.
 	 * 
 	 * @param op Operation to transform
 	 * @param cd Context vector difference between the given
-	 *        op and the document state at the time of this recursive call
+	 *        op and the document state at the time of this call
 	 * @throws OperationEngineException 
 	 * @return A new operation, including the effects of all
 	 *          of the operations in the context difference or null if the
 	 *          operation can have no further effect on the document state
 	 */
 	private Operation _transform(Operation op, ContextDifference cd) throws OperationEngineException {
-		// get all ops for context different from history buffer sorted by
-		// context dependencies
-		Stack<Operation> ops = this.hb.getOpsForDifference(cd);
+		Stack<TransformFrame> frames = new Stack<TransformFrame>();
+		HashMap<TransformKey, Operation> memo = new HashMap<TransformKey, Operation>();
+		// copy the incoming operation to avoid disturbing the history buffer
+		// when the op comes from our history buffer
+		frames.push(new TransformFrame(op.copy(), this.hb.getOpsForDifference(cd)));
+
+		// result of the most recently finished frame, if any
+		boolean returned = false;
+		Operation result = null;
 		Operation xop = null;
-		ContextDifference xcd = null;
 		Operation cxop = null;
 		Operation cop = null;
 
-		// xcd, xop, cxop, cop, i, l;
-		// copy the incoming operation to avoid disturbing the history buffer
-		// when the op comes from our history buffer during a recursive step
-		op = op.copy();
-		// iterate over all operations in the difference
-
-		for (int i = 0; i < ops.size(); i++) {
-			// xop is the previously applied op
-			xop = ops.elementAt(i);
-			if (!op.getContextVector().equals(xop.getContextVector())) {
-				// see if we've cached a transform of this op in the desired
-				// context to avoid recursion
-				cxop = xop.getFromCache(op.getContextVector());
-				// cxop = null;
-				if (cxop != null) {
-					xop = cxop;
-				} else {
-					// transform needed to upgrade context of xop to op
-					xcd = op.getContextVector()
-							.subtract(xop.getContextVector());
-					if (xcd.sites == null || xcd.sites.size() == 0) {
-						throw new OperationEngineException(
-								"transform produced empty context diff");
+		while (true) {
+			TransformFrame frame = frames.peek();
+			if (returned) {
+				// the frame above this one upgraded the context of the
+				// current xop to that of the frame op
+				returned = false;
+				xop = frame.ops.elementAt(frame.i);
+				if (result != null && this.topics != null) {
+					// only ops with the same key were included; the others
+					// have no effect so the result holds in the full context
+					OperationEngine.raiseContext(result,
+							frame.op.getContextVector());
+				}
+				memo.put(frame.pending, result);
+				frame.pending = null;
+				if (result == null) {
+					// xop was invalidated by a previous op during the
+					// transform so it has no effect on the current op;
+					// upgrade context immediately and continue with
+					// the next one
+					frame.op.upgradeContextTo(xop);
+					// @todo: see null below
+					frame.i++;
+					continue;
+				}
+				// now only deal with the copy
+				xop = result;
+			} else {
+				if (frame.i >= frame.ops.size()) {
+					// all ops in the difference included; op is always a
+					// copy because we never started a frame if no transform
+					// was needed
+					frames.pop();
+					if (frames.isEmpty()) {
+						return frame.op;
 					}
-					// we'll get a copy back from the recursion
-					cxop = this._transform(xop, xcd);
-					if (cxop == null) {
-						// xop was invalidated by a previous op during the
-						// transform so it has no effect on the current op;
-						// upgrade context immediately and continue with
-						// the next one
-						op.upgradeContextTo(xop);
-						// @todo: see null below
-						continue;
+					returned = true;
+					result = frame.op;
+					continue;
+				}
+				// xop is the previously applied op
+				xop = frame.ops.elementAt(frame.i);
+				if (this.topics != null) {
+					// ops with other keys in the context of xop have no
+					// effect on op, so include them in its context directly
+					OperationEngine.raiseContext(frame.op, xop.getContextVector());
+				}
+				if (!frame.op.getContextVector().equals(xop.getContextVector())) {
+					// see if we've cached a transform of this op in the
+					// desired context to avoid another frame
+					cxop = xop.getFromCache(frame.op.getContextVector());
+					++this.cacheLookups;
+					if (cxop != null) {
+						++this.cacheHits;
+						xop = cxop;
+					} else {
+						TransformKey key = new TransformKey(xop,
+								frame.op.getContextVector());
+						if (memo.containsKey(key)) {
+							cxop = memo.get(key);
+							if (cxop == null) {
+								frame.op.upgradeContextTo(xop);
+								frame.i++;
+								continue;
+							}
+							xop = cxop.copy();
+						} else {
+							// transform needed to upgrade context of xop to op
+							ContextDifference xcd = frame.op.getContextVector()
+									.subtract(xop.getContextVector());
+							if (xcd.isEmpty()) {
+								throw new OperationEngineException(
+										"transform produced empty context diff");
+							}
+							if (this.topics != null) {
+								xcd = this.topics.filter(xcd, xop.key);
+							}
+							if (xcd.isEmpty()) {
+								// xop lacks only ops with other keys
+								xop = xop.copy();
+								OperationEngine.raiseContext(xop,
+										frame.op.getContextVector());
+							} else {
+								// resume this frame once we have a copy of
+								// xop in the context of op
+								frame.pending = key;
+								frames.push(new TransformFrame(xop.copy(),
+										this.hb.getOpsForDifference(xcd)));
+								continue;
+							}
+						}
 					}
-					// now only deal with the copy
-					xop = cxop;
 				}
 			}
-			if (!op.getContextVector().equals(xop.getContextVector())) {
+			if (!frame.op.getContextVector().equals(xop.getContextVector())) {
 				throw new OperationEngineException("context vectors unequal after upgrade");
 			}
 			// make a copy of the op as is before transform
-			cop = op.copy();
+			cop = frame.op.copy();
 			// transform op to include xop now that contexts match IT(op, xop)
-			op = op.transformWith(xop);
-			if (op == null) {
-				// op target was deleted by another earlier op so return now
-				// do not continue because no further transforms have any
-				// meaning on this op
-				// @todo: i bet we want to remove this shortcut if we're
-				// deep in recursion when we find a dead op; instead cache it
-				// so we don't come down here again
-				return null;
+			frame.op = frame.op.transformWith(xop);
+			if (frame.op == null) {
+				// op target was deleted by another earlier op so finish the
+				// frame now; no further transforms have any meaning on this op
+				frames.pop();
+				if (frames.isEmpty()) {
+					return null;
+				}
+				returned = true;
+				result = null;
+				continue;
 			}
 			// cache the transformed op
-			op.addToCache(this.siteCount);
+			frame.op.addToCache(this.siteCount);
 
 			// do a symmetric transform on a copy of xop too while we're here
 			xop = xop.copy();
@@ -466,13 +1067,82 @@ public class OperationEngine {
 			if (xop != null) {
 				xop.addToCache(this.siteCount);
 			}
+			frame.i++;
 		}
-		// op is always a copy because we never entered this method if no
-		// transform was needed
-		return op;
 	}
-	
+
+	/**
+	 * Raises each entry in the context of an op to at least the entry for the
+	 * same site in the given context.
+	 *
+	 * @param op Mutable operation
+	 * @param cv Context to include
+	 */
+	private static void raiseContext(Operation op, ContextVector cv) {
+		op.getContextVector().raise(cv);
+	}
+
 	public int getSiteId() {
 		return this.siteId;
 	}
+
+	/**
+	 * Gets the fraction of transform cache lookups that found a previously
+	 * transformed op since this engine was created.
+	 *
+	 * @return Hit rate between 0 and 1, or 0 if there were no lookups
+	 */
+	public double getTransformCacheHitRate() {
+		if (this.cacheLookups == 0) {
+			return 0;
+		}
+		return (double) this.cacheHits / this.cacheLookups;
+	}
+
+	/**
+	 * Pending transform of one op in the context difference of another.
+	 */
+	private static class TransformFrame {
+		// copy of the op being transformed
+		Operation op;
+		// ops it must include, in total order
+		Stack<Operation> ops;
+		// index in ops of the next op to include
+		int i = 0;
+		// memo key of the sub-transform this frame waits on, if any
+		TransformKey pending = null;
+
+		TransformFrame(Operation op, Stack<Operation> ops) {
+			this.op = op;
+			this.ops = ops;
+		}
+	}
+
+	/**
+	 * Identifies an original op transformed into a particular context.
+	 */
+	private static class TransformKey {
+		private final long key;
+		private final ContextVector cv;
+
+		TransformKey(Operation op, ContextVector cv) throws OperationEngineException {
+			this.key = Operation.createHistoryKey(op.getSiteId(), op.getSeqId());
+			// snapshot the context since the op holding it keeps changing
+			this.cv = cv.copy();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TransformKey)) {
+				return false;
+			}
+			TransformKey other = (TransformKey) obj;
+			return this.key == other.key && this.cv.equals(other.cv);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (this.key ^ (this.key >>> 32)) * 31 + this.cv.hashCode();
+		}
+	}
 }
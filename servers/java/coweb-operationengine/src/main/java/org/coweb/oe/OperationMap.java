@@ -0,0 +1,181 @@
+package org.coweb.oe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Open addressing hash table mapping history keys (see
+ * {@link Operation#createHistoryKey}) to operations. Keys stay primitive
+ * longs so lookups in the history buffer never box or build strings.
+ */
+class OperationMap {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Operation[] values;
+	private int size = 0;
+	private int mask;
+
+	public OperationMap() {
+		this.allocate(MIN_CAPACITY);
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer b = new StringBuffer();
+		b.append("{");
+		boolean first = true;
+		for(int i=0; i < this.values.length; i++) {
+			if(this.values[i] == null) {
+				continue;
+			}
+			if(!first) {
+				b.append(", ");
+			}
+			b.append(Operation.historyKeyToString(this.keys[i]));
+			b.append("=");
+			b.append(this.values[i]);
+			first = false;
+		}
+		b.append("}");
+
+		return b.toString();
+	}
+
+	/**
+	 * Gets the operation stored under the given key.
+	 *
+	 * @param key History key
+	 * @return Operation or null if the key is not in the map
+	 */
+	public Operation get(long key) {
+		int i = this.indexOf(key);
+		return (i == -1) ? null : this.values[i];
+	}
+
+	/**
+	 * Stores an operation under the given key, replacing any operation
+	 * already stored under it.
+	 *
+	 * @param key History key
+	 * @param op Operation to store
+	 * @return Operation previously stored under the key or null
+	 */
+	public Operation put(long key, Operation op) {
+		int i = this.slot(key);
+		while(this.values[i] != null) {
+			if(this.keys[i] == key) {
+				Operation old = this.values[i];
+				this.values[i] = op;
+				return old;
+			}
+			i = (i + 1) & this.mask;
+		}
+		this.keys[i] = key;
+		this.values[i] = op;
+		++this.size;
+		// keep the load factor under one half
+		if(this.size * 2 > this.values.length) {
+			this.rehash(this.values.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the operation stored under the given key.
+	 *
+	 * @param key History key
+	 * @return Removed operation or null if the key is not in the map
+	 */
+	public Operation remove(long key) {
+		int i = this.indexOf(key);
+		if(i == -1) {
+			return null;
+		}
+		Operation old = this.values[i];
+		this.values[i] = null;
+		--this.size;
+
+		// shift back entries in the probe run so lookups never stop early
+		int gap = i;
+		int j = (i + 1) & this.mask;
+		while(this.values[j] != null) {
+			int home = this.slot(this.keys[j]);
+			if(((j - home) & this.mask) >= ((j - gap) & this.mask)) {
+				this.keys[gap] = this.keys[j];
+				this.values[gap] = this.values[j];
+				this.values[j] = null;
+				gap = j;
+			}
+			j = (j + 1) & this.mask;
+		}
+		return old;
+	}
+
+	/**
+	 * Removes all operations from the map.
+	 */
+	public void clear() {
+		this.allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Gets the number of operations in the map.
+	 *
+	 * @return Integer count
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Gets all operations in the map in no particular order.
+	 *
+	 * @return Independent collection of the stored operations
+	 */
+	public Collection<Operation> values() {
+		ArrayList<Operation> list = new ArrayList<Operation>(this.size);
+		for(int i=0; i < this.values.length; i++) {
+			if(this.values[i] != null) {
+				list.add(this.values[i]);
+			}
+		}
+		return list;
+	}
+
+	private int indexOf(long key) {
+		int i = this.slot(key);
+		while(this.values[i] != null) {
+			if(this.keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	private int slot(long key) {
+		// mix the site and seq halves before masking
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & this.mask;
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new Operation[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		Operation[] oldValues = this.values;
+		this.allocate(capacity);
+		for(int i=0; i < oldValues.length; i++) {
+			if(oldValues[i] != null) {
+				this.put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.coweb.oe;
+
+/**
+ * Kinds of operations the engine can transform. Each kind carries the name
+ * used for it in serialized operation state and coweb sync messages.
+ */
+public enum OperationType {
+	INSERT("insert"),
+	DELETE("delete"),
+	UPDATE("update"),
+	INSERT_RANGE("insertRange"),
+	DELETE_RANGE("deleteRange");
+
+	private final String name;
+
+	private OperationType(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the name of this operation type as used on the wire.
+	 *
+	 * @return String type name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+
+	/**
+	 * Gets the operation type with the given wire name.
+	 *
+	 * @param name String type name: insert, delete, update, insertRange or
+	 *        deleteRange
+	 * @throws OperationEngineException If the name is not a known type
+	 * @return Matching operation type
+	 */
+	public static OperationType fromName(String name) throws OperationEngineException {
+		if("insert".equals(name)) {
+			return INSERT;
+		} else if("delete".equals(name)) {
+			return DELETE;
+		} else if("update".equals(name)) {
+			return UPDATE;
+		} else if("insertRange".equals(name)) {
+			return INSERT_RANGE;
+		} else if("deleteRange".equals(name)) {
+			return DELETE_RANGE;
+		}
+		throw new OperationEngineException("unknown operation type: " + name);
+	}
+}
@@ -0,0 +1,213 @@
+package org.coweb.oe;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Purge of an {@link OperationEngine} split so that most of it runs without
+ * the engine lock. Taking the plan with {@link OperationEngine#planPurge}
+ * under the lock only copies the context vector table and takes a view of
+ * the history. Without the lock the plan then finds the minimum context,
+ * lowers the purge bound to the contexts of the ops kept and counts the ops
+ * to drop. Under the lock again,
+ * {@link OperationEngine#purgeThrough(PurgePlan)} checks the oldest op kept
+ * from each site and cuts the others off without reading them.
+ *
+ * The view of the history lasts until the next purge, so a plan must be
+ * carried out or dropped before the engine is purged again.
+ */
+public final class PurgePlan {
+
+	private static final Comparator<Operation> seqComparator =
+		new Comparator<Operation>() {
+			public int compare(Operation a, Operation b) {
+				return (a.seqId < b.seqId) ? -1 : (a.seqId > b.seqId) ? 1 : 0;
+			}
+		};
+
+	private final Collection<Operation> ops;
+	// rows of the context vector table not sharing the engine context, all
+	// as wide as the table
+	private final int[][] rows;
+	// context of the engine
+	private final int[] live;
+	// ops of each site in ascending sequence order, built on first use
+	private Operation[][] bySite = null;
+	// highest sequence number per site to purge, once settled
+	private int[] bound = null;
+	// ops at or below the bound per site, once settled
+	private int[] counts = null;
+
+	PurgePlan(Collection<Operation> ops, int[][] rows, int[] live) {
+		this.ops = ops;
+		this.rows = rows;
+		this.live = live;
+	}
+
+	/**
+	 * Gets the minimum context of the remote sites, leaving out the engine
+	 * and the sites frozen to it, like
+	 * {@link OperationEngine#getMinimumRemoteContextVector}.
+	 *
+	 * @return Minimum sequence number per site or null if there are no such
+	 *         sites
+	 */
+	public int[] getMinimumRemoteContext() {
+		if (this.rows.length == 0) {
+			return null;
+		}
+		int[] min = this.rows[0].clone();
+		for (int i = 1; i < this.rows.length; i++) {
+			for (int site = 0; site < min.length; site++) {
+				min[site] = Math.min(min[site], this.rows[i][site]);
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Gets the bound the plan settled on.
+	 *
+	 * @return Highest sequence number per site to purge, or null until the
+	 *         plan settled
+	 */
+	public int[] getBound() {
+		return this.bound;
+	}
+
+	/**
+	 * Gets the number of ops the plan drops from each site.
+	 *
+	 * @return Integer count per site, or null until the plan settled
+	 */
+	public int[] getCounts() {
+		return this.counts;
+	}
+
+	/**
+	 * Lowers a purge bound until no op of the plan has a context below it,
+	 * like {@link OperationEngine#lowerPurgeBound} does for the ops in the
+	 * engine. Plans of engines sharing one session can run this in turn on
+	 * a common bound until none of them lowers it any more.
+	 *
+	 * @param bound Highest sequence number per site that may be purged,
+	 *        lowered in place
+	 * @return True if any entry of the bound was lowered
+	 */
+	public boolean lowerBound(int[] bound) {
+		Operation[][] bySite = this.getOpsBySite();
+		int l = bound.length;
+		boolean changed = false;
+		boolean lowered = true;
+		while (lowered) {
+			lowered = false;
+			for (int site = 0; site < Math.min(l, bySite.length); site++) {
+				Operation[] ops = bySite[site];
+				int i = firstAbove(ops, bound[site]);
+				if (i == ops.length) {
+					continue;
+				}
+				ContextVector ocv = ops[i].getContextVector();
+				for (int s = 0; s < l; s++) {
+					int seq = seqForSite(ocv, s);
+					if (seq < bound[s]) {
+						bound[s] = seq;
+						lowered = true;
+						changed = true;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Settles on the bound {@link OperationEngine#purge} would purge the
+	 * engine through.
+	 */
+	public void settle() {
+		int[] bound = this.live.clone();
+		int[] mcv = this.getMinimumRemoteContext();
+		for (int site = 0; mcv != null && site < bound.length; site++) {
+			bound[site] = Math.min(bound[site],
+					site < mcv.length ? mcv[site] : 0);
+		}
+		this.lowerBound(bound);
+		this.settle(bound);
+	}
+
+	/**
+	 * Settles on a bound to purge through, as lowered by this plan and the
+	 * plans of any other engines sharing it, and counts the ops below.
+	 *
+	 * @param bound Highest sequence number per site to purge
+	 */
+	public void settle(int[] bound) {
+		Operation[][] bySite = this.getOpsBySite();
+		this.bound = bound.clone();
+		this.counts = new int[bound.length];
+		for (int site = 0; site < Math.min(bound.length, bySite.length);
+				site++) {
+			this.counts[site] = firstAbove(bySite[site], bound[site]);
+		}
+	}
+
+	private Operation[][] getOpsBySite() {
+		if (this.bySite != null) {
+			return this.bySite;
+		}
+		int[] n = new int[0];
+		for (Operation op : this.ops) {
+			if (op.siteId >= n.length) {
+				n = Arrays.copyOf(n, op.siteId + 1);
+			}
+			++n[op.siteId];
+		}
+		Operation[][] bySite = new Operation[n.length][];
+		for (int site = 0; site < n.length; site++) {
+			bySite[site] = new Operation[n[site]];
+			n[site] = 0;
+		}
+		boolean sorted = true;
+		for (Operation op : this.ops) {
+			Operation[] ops = bySite[op.siteId];
+			int i = n[op.siteId]++;
+			ops[i] = op;
+			sorted &= i == 0 || ops[i - 1].seqId < op.seqId;
+		}
+		if (!sorted) {
+			for (Operation[] ops : bySite) {
+				Arrays.sort(ops, seqComparator);
+			}
+		}
+		this.bySite = bySite;
+		return bySite;
+	}
+
+	/**
+	 * Index of the first op with a sequence number above seq, which is also
+	 * the number of ops at or below it.
+	 */
+	private static int firstAbove(Operation[] ops, int seq) {
+		int lo = 0;
+		int hi = ops.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ops[mid].seqId <= seq) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Reads an entry of a context without growing it, which would change an
+	 * op the engine may be reading under its lock.
+	 */
+	private static int seqForSite(ContextVector cv, int site) {
+		return site < cv.getSize() ? cv.getSeqForSite(site) : 0;
+	}
+}
@@ -0,0 +1,601 @@
+package org.coweb.oe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merge engine that keeps a replicated list per op key in the style of the
+ * Replicated Growable Array (RGA) sequence CRDT, instead of transforming
+ * ops against a history.
+ *
+ * Every list element carries the ID of the insert that made it: a stamp
+ * that is one more than the sum of the insert context, which is larger than
+ * the stamp of anything the insert could have seen, and the site ID to break
+ * ties. Deleted elements stay in the list as tombstones. An op names a
+ * position in the list as it was in the op context, which the engine finds
+ * by counting only the elements visible in that context. An insert goes
+ * right after the element before its position, past any elements with a
+ * larger ID, which are later concurrent inserts at the same place; every
+ * site ends up with the same order whatever order it gets the ops in.
+ * Concurrent deletes of one element all take effect once, and concurrent
+ * updates leave the value of the update with the largest ID.
+ *
+ * No op is ever transformed and nothing waits for the other sites, so engine
+ * syncs and purges do nothing. The price is the tombstones, which are never
+ * dropped, and a walk of the list for every op. Values are not kept, only
+ * element IDs; the caller applies the ops to its own state.
+ */
+public class SequenceEngine implements MergeEngine {
+
+	private int siteId;
+	private ContextVector cv = null;
+	// replicated list per op key
+	private Map<String, Sequence> sequences = new HashMap<String, Sequence>();
+	// bumped on every change to the state returned by getState
+	private long version = 0;
+
+	/**
+	 * Creates an engine with empty lists.
+	 *
+	 * @param siteId Unique integer site ID for this engine instance
+	 */
+	public SequenceEngine(int siteId) throws OperationEngineException {
+		this.siteId = siteId;
+		this.cv = new ContextVector(siteId + 1);
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer b = new StringBuffer();
+		b.append("{siteId : " + this.siteId);
+		b.append(",ContextVector : " + this.cv);
+		b.append(",keys : " + this.sequences.size());
+		b.append(",tombstones : " + this.getTombstoneCount());
+		b.append("}");
+
+		return b.toString();
+	}
+
+	public int getSiteId() {
+		return this.siteId;
+	}
+
+	public Operation createOp(boolean local, String key, String value,
+			String type, int position, int site, int[] cv, int order) throws OperationEngineException {
+		OperationType opType = OperationType.fromName(type);
+		if (local) {
+			ContextVector contextVector = this.copyContextVector();
+			return Operation.createOperation(opType, this.siteId,
+					contextVector.getSeqForSite(this.siteId) + 1,
+					contextVector, key, value, position, Operation.infinity,
+					true);
+		} else {
+			ContextVector contextVector = new ContextVector(cv);
+			return Operation.createOperation(opType, site,
+					contextVector.getSeqForSite(site) + 1, contextVector, key,
+					value, position, order, false);
+		}
+	}
+
+	public Operation push(boolean local, String key, String value, String type,
+			int position, int site, int[] cv, int order) throws OperationEngineException {
+		Operation op = this.createOp(local, key, value, type, position, site,
+				cv, order);
+		if (local) {
+			return this.pushLocalOp(op);
+		} else {
+			return this.pushRemoteOp(op);
+		}
+	}
+
+	/**
+	 * Adds the effect of a batch of remote operations to the lists, one op
+	 * after the other, see {@link MergeEngine#pushBatch}.
+	 *
+	 * @throws OperationEngineException If a position is out of range in the
+	 *         op context
+	 * @return Copies of the ops with their positions in the list at the
+	 *         time, null for ones that change nothing
+	 */
+	public Operation[] pushBatch(String key, String[] values, String[] types,
+			int[] positions, int site, int[] cv, int order)
+			throws OperationEngineException {
+		Operation[] tops = new Operation[types.length];
+		int[] context = Arrays.copyOf(cv, Math.max(cv.length, site + 1));
+		for (int i = 0; i < types.length; i++) {
+			tops[i] = this.push(false, key, values[i], types[i], positions[i],
+					site, context, order + i);
+			++context[site];
+		}
+		return tops;
+	}
+
+	/**
+	 * Adds the effect of a local operation to the lists. Its position is in
+	 * the current list.
+	 *
+	 * @param op Local operation
+	 * @throws OperationEngineException If the position is out of range
+	 * @return Reference to the passed op
+	 */
+	public Operation pushLocalOp(Operation op) throws OperationEngineException {
+		this.merge(op, true);
+		this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
+		++this.version;
+		return op;
+	}
+
+	/**
+	 * Adds the effect of a remote operation to the lists.
+	 *
+	 * @param op Remote operation
+	 * @throws OperationEngineException If the position is out of range in
+	 *         the op context
+	 * @return Copy of the op with its position in the current list, or null
+	 *         if the engine already processed the op or it changes nothing
+	 */
+	public Operation pushRemoteOp(Operation op) throws OperationEngineException {
+		if (this.hasProcessedOp(op)) {
+			return null;
+		}
+		Operation top = this.merge(op, this.cv.equals(op.getContextVector()));
+		this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
+		++this.version;
+		return top;
+	}
+
+	public boolean skipOp(Operation op) throws OperationEngineException {
+		if (this.hasProcessedOp(op)) {
+			return false;
+		}
+		this.cv.setSeqForSite(op.getSiteId(), op.getSeqId());
+		++this.version;
+		return true;
+	}
+
+	public boolean hasProcessedOp(Operation op) {
+		return this.cv.getSeqForSite(op.getSiteId()) >= op.getSeqId();
+	}
+
+	public ContextVector copyContextVector() throws OperationEngineException {
+		return this.cv.copy();
+	}
+
+	/**
+	 * Does nothing, since no op waits on the other sites.
+	 */
+	public void pushSyncWithSites(int site, int[] sites) {
+	}
+
+	/**
+	 * Does nothing, since no op waits on the other sites.
+	 */
+	public void pushSyncDelta(int site, int[] changes) {
+	}
+
+	/**
+	 * Does nothing, since there is no history. Tombstones are kept.
+	 *
+	 * @return Null as the purge never runs
+	 */
+	public ContextVector purge() {
+		return null;
+	}
+
+	public void reclaim() {
+	}
+
+	/**
+	 * Gets the number of ops held, which is always zero.
+	 *
+	 * @return Zero
+	 */
+	public int getBufferSize() {
+		return 0;
+	}
+
+	/**
+	 * Gets the number of deleted elements still in the lists.
+	 *
+	 * @return Integer count
+	 */
+	public int getTombstoneCount() {
+		int n = 0;
+		for (Sequence seq : this.sequences.values()) {
+			n += seq.size - seq.live;
+		}
+		return n;
+	}
+
+	public void freezeSite(int site) {
+	}
+
+	public void thawSite(int site) {
+	}
+
+	public boolean isFrozen(int site) {
+		return false;
+	}
+
+	public int retireSites() {
+		return this.cv.getSize();
+	}
+
+	/**
+	 * Gets the state of this engine to seed a new instance: the context
+	 * vector, the site ID and, for every key, the key and the elements of its
+	 * list as runs of integers. Each element is its stamp, site and sequence
+	 * number, the stamp and site of the update its value came from, the
+	 * number of deletes of it and the site and sequence number of each.
+	 *
+	 * @return Array of serialized state
+	 */
+	public Object[] getState() {
+		Object[] lists = new Object[this.sequences.size()];
+		int i = 0;
+		for (Map.Entry<String, Sequence> e : this.sequences.entrySet()) {
+			Object[] list = { e.getKey(), e.getValue().toArray() };
+			lists[i++] = list;
+		}
+		Object[] ret = { this.cv.copySites(), Integer.valueOf(this.siteId),
+				lists };
+		return ret;
+	}
+
+	/**
+	 * Builds the state right away, as the lists are not copy-on-write.
+	 *
+	 * @return Snapshot of the engine state
+	 */
+	public EngineState getStateSnapshot() {
+		return new EngineState(this.getState(), this.version);
+	}
+
+	public void setState(Object[] arr) throws OperationEngineException {
+		this.cv = new ContextVector((int[]) arr[0]);
+		this.cv.growTo(this.siteId + 1);
+		this.sequences.clear();
+		Object[] lists = (Object[]) arr[2];
+		for (int i = 0; i < lists.length; i++) {
+			Object[] list = (Object[]) lists[i];
+			this.sequences.put((String) list[0],
+					Sequence.fromArray((int[]) list[1]));
+		}
+		++this.version;
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Adds the effect of an op to the list for its key.
+	 *
+	 * @param op Operation
+	 * @param current True if the op context is the current list
+	 * @return Copy of the op with its position in the current list, or null
+	 *         if it changes nothing
+	 */
+	private Operation merge(Operation op, boolean current) throws OperationEngineException {
+		Sequence seq = this.sequences.get(op.key);
+		if (seq == null) {
+			seq = new Sequence();
+			this.sequences.put(op.key, seq);
+		}
+		int[] context = op.getContextVector().copySites();
+		int stamp = 1;
+		for (int i = 0; i < context.length; i++) {
+			stamp += context[i];
+		}
+		if (current) {
+			// what the op saw is what is live
+			context = null;
+		}
+		int site = op.getSiteId();
+
+		Operation top = op.local ? op : op.copy();
+		switch (op.getType()) {
+		case INSERT:
+		case INSERT_RANGE:
+			top.position = seq.insert(op.position, context, stamp, site,
+					op.getSeqId(), op.getLength());
+			return top;
+		case DELETE:
+			int at = seq.seek(op.position, context);
+			if (at < 0 || at == seq.size) {
+				throw new OperationEngineException("delete position " +
+						op.position + " out of range");
+			}
+			top.position = seq.found;
+			return seq.delete(at, site, op.getSeqId()) ? top : null;
+		case DELETE_RANGE:
+			int[] ranges = seq.deleteRanges(op.getDeletedRanges(), context,
+					site, op.getSeqId());
+			if (ranges == null) {
+				return null;
+			}
+			((DeleteRangeOperation) top).setRanges(ranges);
+			return top;
+		case UPDATE:
+			at = seq.seek(op.position, context);
+			if (at < 0 || at == seq.size) {
+				throw new OperationEngineException("update position " +
+						op.position + " out of range");
+			}
+			top.position = seq.found;
+			return seq.update(at, stamp, site) ? top : null;
+		default:
+			throw new OperationEngineException("unknown operation type " +
+					op.getType());
+		}
+	}
+
+	/**
+	 * One replicated list, its elements in parallel arrays.
+	 */
+	private static final class Sequence {
+		int size = 0;
+		// elements not deleted
+		int live = 0;
+		// insert ID and the sequence number of the insert at its site
+		int[] stamps = new int[16];
+		int[] sites = new int[16];
+		int[] seqs = new int[16];
+		// ID of the update or insert the value came from
+		int[] ustamps = new int[16];
+		int[] usites = new int[16];
+		// site and sequence number pairs of the deletes, null while live
+		int[][] deletes = new int[16][];
+		// live elements before the element last found by seek
+		int found;
+
+		/**
+		 * Finds the element at a position among the elements visible in a
+		 * context, and the number of live elements before it.
+		 *
+		 * @param position Position in the context
+		 * @param context Context or null for the current list
+		 * @return Index of the element, size for the end of the list or -1
+		 *         if the position is past the end
+		 */
+		int seek(int position, int[] context) {
+			int visible = 0;
+			int before = 0;
+			for (int i = 0; i < this.size; i++) {
+				boolean isLive = this.deletes[i] == null;
+				if (context == null ? isLive : this.isVisible(i, context)) {
+					if (visible == position) {
+						this.found = before;
+						return i;
+					}
+					++visible;
+				}
+				if (isLive) {
+					++before;
+				}
+			}
+			this.found = before;
+			return visible == position ? this.size : -1;
+		}
+
+		/**
+		 * Inserts elements for an insert or insert range.
+		 *
+		 * @return Position of the first element in the current list
+		 */
+		int insert(int position, int[] context, int stamp, int site,
+				int seq, int length) throws OperationEngineException {
+			int at = 0;
+			int before = 0;
+			if (position > 0) {
+				// right after the element before the position
+				at = this.seek(position - 1, context);
+				if (at < 0 || at == this.size) {
+					throw new OperationEngineException("insert position " +
+							position + " out of range");
+				}
+				before = this.found + (this.deletes[at] == null ? 1 : 0);
+				++at;
+			}
+			// past later concurrent inserts at the same place
+			while (at < this.size && (this.stamps[at] > stamp ||
+					(this.stamps[at] == stamp && this.sites[at] > site))) {
+				if (this.deletes[at] == null) {
+					++before;
+				}
+				++at;
+			}
+			this.open(at, length);
+			for (int i = at; i < at + length; i++) {
+				this.stamps[i] = stamp;
+				this.sites[i] = site;
+				this.seqs[i] = seq;
+				this.ustamps[i] = stamp;
+				this.usites[i] = site;
+				this.deletes[i] = null;
+			}
+			this.live += length;
+			return before;
+		}
+
+		/**
+		 * Adds a delete to an element.
+		 *
+		 * @return True if the element was live
+		 */
+		boolean delete(int at, int site, int seq) {
+			int[] d = this.deletes[at];
+			if (d == null) {
+				int[] pair = { site, seq };
+				this.deletes[at] = pair;
+				--this.live;
+				return true;
+			}
+			d = Arrays.copyOf(d, d.length + 2);
+			d[d.length - 2] = site;
+			d[d.length - 1] = seq;
+			this.deletes[at] = d;
+			return false;
+		}
+
+		/**
+		 * Deletes the elements in runs of positions in a context.
+		 *
+		 * @param ranges Start (inclusive) and end (exclusive) pairs of
+		 *        positions in the context
+		 * @return Runs of the live elements deleted, as positions in the
+		 *         current list, or null if none were live
+		 */
+		int[] deleteRanges(int[] ranges, int[] context, int site, int seq)
+				throws OperationEngineException {
+			int[] out = new int[ranges.length + 2];
+			int n = 0;
+			int r = 0;
+			int visible = 0;
+			int before = 0;
+			for (int i = 0; i < this.size && r < ranges.length; i++) {
+				boolean isLive = this.deletes[i] == null;
+				if (context == null ? isLive : this.isVisible(i, context)) {
+					if (visible >= ranges[r]) {
+						if (this.delete(i, site, seq)) {
+							if (n > 0 && out[n-1] == before) {
+								out[n-1] = before + 1;
+							} else {
+								if (n == out.length) {
+									out = Arrays.copyOf(out, n * 2);
+								}
+								out[n++] = before;
+								out[n++] = before + 1;
+							}
+						}
+						if (visible + 1 == ranges[r+1]) {
+							r += 2;
+						}
+					}
+					++visible;
+				}
+				if (isLive) {
+					++before;
+				}
+			}
+			if (r < ranges.length) {
+				throw new OperationEngineException("delete range " +
+						Arrays.toString(ranges) + " out of range");
+			}
+			return n == 0 ? null : Arrays.copyOf(out, n);
+		}
+
+		/**
+		 * Takes an update of an element if its ID is larger than the one
+		 * the value came from.
+		 *
+		 * @return True if the element is live and takes the update
+		 */
+		boolean update(int at, int stamp, int site) {
+			if (this.ustamps[at] > stamp || (this.ustamps[at] == stamp &&
+					this.usites[at] >= site)) {
+				return false;
+			}
+			this.ustamps[at] = stamp;
+			this.usites[at] = site;
+			return this.deletes[at] == null;
+		}
+
+		private boolean isVisible(int i, int[] context) {
+			if (this.seqs[i] > seqAt(context, this.sites[i])) {
+				return false;
+			}
+			int[] d = this.deletes[i];
+			if (d != null) {
+				for (int j = 0; j < d.length; j += 2) {
+					if (d[j+1] <= seqAt(context, d[j])) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		private static int seqAt(int[] context, int site) {
+			return site < context.length ? context[site] : 0;
+		}
+
+		/**
+		 * Makes room for some elements at an index.
+		 */
+		private void open(int at, int length) {
+			int need = this.size + length;
+			if (need > this.stamps.length) {
+				int cap = Math.max(need, this.stamps.length * 2);
+				this.stamps = Arrays.copyOf(this.stamps, cap);
+				this.sites = Arrays.copyOf(this.sites, cap);
+				this.seqs = Arrays.copyOf(this.seqs, cap);
+				this.ustamps = Arrays.copyOf(this.ustamps, cap);
+				this.usites = Arrays.copyOf(this.usites, cap);
+				this.deletes = Arrays.copyOf(this.deletes, cap);
+			}
+			int tail = this.size - at;
+			System.arraycopy(this.stamps, at, this.stamps, at + length, tail);
+			System.arraycopy(this.sites, at, this.sites, at + length, tail);
+			System.arraycopy(this.seqs, at, this.seqs, at + length, tail);
+			System.arraycopy(this.ustamps, at, this.ustamps, at + length, tail);
+			System.arraycopy(this.usites, at, this.usites, at + length, tail);
+			System.arraycopy(this.deletes, at, this.deletes, at + length, tail);
+			this.size = need;
+		}
+
+		int[] toArray() {
+			int n = this.size * 6;
+			for (int i = 0; i < this.size; i++) {
+				if (this.deletes[i] != null) {
+					n += this.deletes[i].length;
+				}
+			}
+			int[] arr = new int[n];
+			int k = 0;
+			for (int i = 0; i < this.size; i++) {
+				arr[k++] = this.stamps[i];
+				arr[k++] = this.sites[i];
+				arr[k++] = this.seqs[i];
+				arr[k++] = this.ustamps[i];
+				arr[k++] = this.usites[i];
+				int[] d = this.deletes[i];
+				arr[k++] = d == null ? 0 : d.length / 2;
+				if (d != null) {
+					System.arraycopy(d, 0, arr, k, d.length);
+					k += d.length;
+				}
+			}
+			return arr;
+		}
+
+		static Sequence fromArray(int[] arr) throws OperationEngineException {
+			Sequence seq = new Sequence();
+			int k = 0;
+			while (k < arr.length) {
+				if (k + 6 > arr.length) {
+					throw new OperationEngineException("truncated sequence state");
+				}
+				int i = seq.size;
+				seq.open(i, 1);
+				seq.stamps[i] = arr[k++];
+				seq.sites[i] = arr[k++];
+				seq.seqs[i] = arr[k++];
+				seq.ustamps[i] = arr[k++];
+				seq.usites[i] = arr[k++];
+				int deletes = arr[k++] * 2;
+				if (deletes == 0) {
+					seq.deletes[i] = null;
+					++seq.live;
+				} else if (k + deletes > arr.length) {
+					throw new OperationEngineException("truncated sequence state");
+				} else {
+					seq.deletes[i] = Arrays.copyOfRange(arr, k, k + deletes);
+					k += deletes;
+				}
+			}
+			return seq;
+		}
+	}
+}
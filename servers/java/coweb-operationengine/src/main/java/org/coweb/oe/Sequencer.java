@@ -0,0 +1,350 @@
+package org.coweb.oe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Central sequencer in the style of Jupiter, for sessions where the server
+ * orders and transforms every op instead of the sites exchanging context
+ * vectors. The server gives every op its place in the total order on
+ * arrival. An op names its context by a single revision, the order of the
+ * last op its site had received. The sequencer transforms it against the
+ * ops sequenced after that revision, which makes it the sequenced form every
+ * site applies in order.
+ *
+ * A site must have one op in flight at a time, sending the next one only
+ * after the sequenced form of the last one came back, and must transform
+ * the ops it receives meanwhile against the op in flight, as in Jupiter
+ * clients. Local ops of the server are such a site too, but may have any
+ * number in flight, which the sequencer keeps pending and transforms
+ * against every op it sequences until they come back in order.
+ *
+ * The sequencer keeps the sequenced ops after the oldest revision any site
+ * still works from, and the last revision of each site, but no context
+ * vectors.
+ */
+public class Sequencer {
+
+	private int siteId;
+	// sequenced ops in order, after the ones every site has received
+	private ArrayList<Operation> log = new ArrayList<Operation>();
+	// order of the last op sequenced
+	private int revision = -1;
+	// local ops sent but not yet sequenced, transformed to include every op
+	// sequenced since; null for ones the transforms cancelled
+	private LinkedList<Operation> pending = new LinkedList<Operation>();
+	// last revision each remote site acknowledged
+	private Map<Integer, Integer> acked = new HashMap<Integer, Integer>();
+	// local ops created, for their sequence IDs
+	private int created = 0;
+	// highest revision the purges dropped ops up to
+	private int purged = -1;
+
+	/**
+	 * Creates a sequencer with an empty log.
+	 *
+	 * @param siteId Site ID of local ops
+	 */
+	public Sequencer(int siteId) {
+		this.siteId = siteId;
+	}
+
+	/**
+	 * Gets the order of the last op sequenced, which is the revision local
+	 * ops are made at.
+	 *
+	 * @return Integer order or -1 if none yet
+	 */
+	public int getRevision() {
+		return this.revision;
+	}
+
+	/**
+	 * Gets the number of sequenced ops kept for sites that have not
+	 * received them yet.
+	 *
+	 * @return Integer count
+	 */
+	public int getLogSize() {
+		return this.log.size();
+	}
+
+	/**
+	 * Creates a local op on the current state, keeping it pending until it
+	 * is sequenced.
+	 *
+	 * @param key Operation key
+	 * @param value Operation value
+	 * @param type Type of operation
+	 * @param position Operation integer position
+	 * @throws OperationEngineException
+	 * @return The local op
+	 */
+	public Operation pushLocal(String key, String value, String type,
+			int position) throws OperationEngineException {
+		Operation op = this.createOp(key, value, type, position, this.siteId,
+				++this.created, Operation.infinity);
+		this.pending.add(op.copy());
+		return op;
+	}
+
+	/**
+	 * Sequences the oldest pending local op, on its way back from the
+	 * server.
+	 *
+	 * @param order Place of the op in the total order
+	 * @throws OperationEngineException If no local op is pending
+	 * @return Sequenced form of the op, or null if the transforms cancelled
+	 *         it
+	 */
+	public Operation pushLocalEcho(int order) throws OperationEngineException {
+		if (this.pending.isEmpty()) {
+			throw new OperationEngineException("no local op pending");
+		}
+		Operation op = this.pending.removeFirst();
+		this.sequence(op, order);
+		return op;
+	}
+
+	/**
+	 * Sequences a remote op.
+	 *
+	 * @param key Operation key
+	 * @param value Operation value
+	 * @param type Type of operation
+	 * @param position Operation integer position at the revision
+	 * @param site Integer site ID of the sender
+	 * @param revision Order of the last op the sender had received when it
+	 *        made the op, or -1 if none
+	 * @param order Place of the op in the total order
+	 * @throws OperationEngineException If the sender already had an op in
+	 *         flight or the ops after the revision are no longer kept
+	 * @return Sequenced form of the op, or null if the transforms cancelled
+	 *         it
+	 */
+	public Operation push(String key, String value, String type, int position,
+			int site, int revision, int order) throws OperationEngineException {
+		String[] values = { value };
+		String[] types = { type };
+		int[] positions = { position };
+		return this.pushBatch(key, values, types, positions, site, revision,
+				order)[0];
+	}
+
+	/**
+	 * Sequences a batch of remote ops that the sender made one after the
+	 * other at the same revision. Each op after the first already includes
+	 * the ones before it, so every op sequenced after the revision is
+	 * transformed past each op of the batch in turn before it meets the
+	 * next one. The sender must not send more until the whole batch came
+	 * back.
+	 *
+	 * @param key Operation key of all the ops
+	 * @param values Operation values
+	 * @param types Types of the operations
+	 * @param positions Operation integer positions
+	 * @param site Integer site ID of the sender
+	 * @param revision Order of the last op the sender had received when it
+	 *        made the ops, or -1 if none
+	 * @param order Place of the first op in the total order, the others
+	 *        follow it
+	 * @throws OperationEngineException If the sender already had an op in
+	 *         flight or the ops after the revision are no longer kept
+	 * @return Sequenced forms of the ops, null for the ones the transforms
+	 *         cancelled
+	 */
+	public Operation[] pushBatch(String key, String[] values, String[] types,
+			int[] positions, int site, int revision, int order)
+			throws OperationEngineException {
+		if (revision < this.purged) {
+			throw new OperationEngineException("revision " + revision +
+					" of site " + site + " is no longer kept");
+		}
+		Operation[] ops = new Operation[types.length];
+		for (int k = 0; k < ops.length; k++) {
+			ops[k] = this.createOp(key, values[k], types[k], positions[k],
+					site, 0, order + k);
+		}
+		for (int i = this.firstAfter(revision); i < this.log.size(); i++) {
+			Operation seq = this.log.get(i);
+			if (seq.siteId == site) {
+				throw new OperationEngineException("site " + site +
+						" sent an op before its last one was sequenced");
+			}
+			for (int k = 0; seq != null && k < ops.length; k++) {
+				if (ops[k] == null) {
+					continue;
+				}
+				Operation before = ops[k].copy();
+				ops[k] = include(ops[k], seq);
+				seq = include(seq, before);
+			}
+		}
+		this.ack(site, revision);
+		for (int k = 0; k < ops.length; k++) {
+			this.sequence(ops[k], order + k);
+		}
+		return ops;
+	}
+
+	/**
+	 * Gets the form of a sequenced remote op to apply to the local state,
+	 * which already has the pending local ops.
+	 *
+	 * @param op Sequenced op from push
+	 * @throws OperationEngineException
+	 * @return Op to apply or null if the pending ops cancel it
+	 */
+	public Operation toLocal(Operation op) throws OperationEngineException {
+		if (op == null || this.pending.isEmpty()) {
+			return op;
+		}
+		Operation top = op.copy();
+		for (int i = 0; i < this.pending.size(); i++) {
+			Operation local = this.pending.get(i);
+			if (local == null) {
+				continue;
+			}
+			if (top == null) {
+				break;
+			}
+			Operation before = top.copy();
+			top = include(top, local);
+			this.pending.set(i, include(local, before));
+		}
+		return top;
+	}
+
+	/**
+	 * Notes the last revision a site received, such as from an engine sync.
+	 *
+	 * @param site Integer site ID
+	 * @param revision Order of the last op the site received
+	 */
+	public void ack(int site, int revision) {
+		Integer last = this.acked.get(Integer.valueOf(site));
+		if (last == null || last.intValue() < revision) {
+			this.acked.put(Integer.valueOf(site), Integer.valueOf(revision));
+		}
+	}
+
+	/**
+	 * Notes a site that joins at the current revision, such as a late joiner
+	 * that gets the current state.
+	 *
+	 * @param site Integer site ID
+	 */
+	public void siteJoin(int site) {
+		this.acked.put(Integer.valueOf(site), Integer.valueOf(this.revision));
+	}
+
+	/**
+	 * Stops keeping sequenced ops for a site that left.
+	 *
+	 * @param site Integer site ID
+	 */
+	public void siteLeave(int site) {
+		this.acked.remove(Integer.valueOf(site));
+	}
+
+	/**
+	 * Drops the sequenced ops every remote site has received.
+	 *
+	 * @return Integer number of ops dropped
+	 */
+	public int purge() {
+		int min = this.revision;
+		for (Integer r : this.acked.values()) {
+			min = Math.min(min, r.intValue());
+		}
+		int n = this.firstAfter(min);
+		this.log.subList(0, n).clear();
+		this.purged = Math.max(this.purged, min);
+		return n;
+	}
+
+	/**
+	 * Gets the state a late joiner starts from: the revision of the current
+	 * state and the pending local ops, which the late joiner treats as its
+	 * own ops in flight since the state already has them.
+	 *
+	 * @return Array of the revision and the serialized pending ops
+	 */
+	public Object[] getState() {
+		List<Object> ops = new ArrayList<Object>();
+		for (Operation op : this.pending) {
+			if (op != null) {
+				ops.add(op.getState());
+			}
+		}
+		Object[] ret = { Integer.valueOf(this.revision), ops.toArray() };
+		return ret;
+	}
+
+	/**
+	 * Gives an op its place in the total order and adds it to the log.
+	 */
+	private void sequence(Operation op, int order) {
+		this.revision = Math.max(this.revision, order);
+		if (op == null) {
+			return;
+		}
+		op.order = order;
+		op.immutable = true;
+		this.log.add(op);
+	}
+
+	/**
+	 * Index of the first op in the log after a revision.
+	 */
+	private int firstAfter(int revision) {
+		int lo = 0;
+		int hi = this.log.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.log.get(mid).order <= revision) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private Operation createOp(String key, String value, String type,
+			int position, int site, int seq, int order)
+			throws OperationEngineException {
+		return Operation.createOperation(OperationType.fromName(type), site,
+				seq, new ContextVector(0), key, value, position, order,
+				site == this.siteId);
+	}
+
+	/**
+	 * Transforms an op to include the effect of another one made on the same
+	 * state, in place unless the op is immutable. Unlike
+	 * {@link Operation#transformWith} this leaves the context alone, so it
+	 * also serves ops that are placed by their order instead of a context.
+	 *
+	 * @param op Operation to transform
+	 * @param other Operation to include
+	 * @throws OperationEngineException
+	 * @return Transformed op or null if the other op cancels it
+	 */
+	public static Operation include(Operation op, Operation other)
+			throws OperationEngineException {
+		Operation top = op.immutable ? op.copy() : op;
+		switch (other.type) {
+		case DELETE:
+		case DELETE_RANGE:
+			return top.transformWithDelete(other);
+		case INSERT:
+		case INSERT_RANGE:
+			return top.transformWithInsert(other);
+		default:
+			return top.transformWithUpdate(other);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.coweb.oe;
+
+/**
+ * Renumbering of the sites of a session that drops the context vector
+ * entries of sites that left, planned by
+ * {@link OperationEngine#planSiteCompaction} at the engine that sees the
+ * contexts of every site, such as the server's. Every engine in the session
+ * applies it with {@link OperationEngine#compactSites} at the same place in
+ * the total order, which moves it to the next site epoch. Sites keep their
+ * order, so only the IDs above a dropped site move down.
+ *
+ * A context or site ID made at an earlier epoch, such as that of an op that
+ * was on its way while the compaction went out, must be translated with
+ * remapSites and remapSite before an engine at the new epoch takes it.
+ */
+public final class SiteCompaction {
+
+	private final int epoch;
+	// new ID of each old site ID, -1 to drop it
+	private final int[] mapping;
+	// context every site had seen when the compaction was planned
+	private final int[] seen;
+
+	/**
+	 * Creates a compaction, such as from the state of one planned at
+	 * another engine.
+	 *
+	 * @param epoch Integer site epoch the compaction moves to
+	 * @param mapping New ID of each old site ID or -1 to drop it; IDs past
+	 *        its end move down by the number of sites it drops
+	 * @param seen Sequence number per site that every site had seen
+	 * @throws OperationEngineException If the mapping does not keep the
+	 *         order of the sites
+	 */
+	public SiteCompaction(int epoch, int[] mapping, int[] seen)
+			throws OperationEngineException {
+		int next = 0;
+		for (int site = 0; site < mapping.length; site++) {
+			if (mapping[site] >= 0 && mapping[site] != next++) {
+				throw new OperationEngineException("site mapping must keep " +
+						"the order of the sites");
+			}
+		}
+		this.epoch = epoch;
+		this.mapping = mapping.clone();
+		this.seen = seen.clone();
+	}
+
+	/**
+	 * Creates a compaction from the state of one, see getState.
+	 *
+	 * @param arr Array in the format returned by getState
+	 * @throws OperationEngineException If the state is not of a compaction
+	 */
+	public static SiteCompaction fromState(Object[] arr)
+			throws OperationEngineException {
+		if (arr.length != 3) {
+			throw new OperationEngineException("not a site compaction");
+		}
+		return new SiteCompaction(((Number) arr[0]).intValue(),
+				toInts((Object[]) arr[1]), toInts((Object[]) arr[2]));
+	}
+
+	/**
+	 * Gets the state of the compaction to send to the other sites.
+	 *
+	 * @return Array of the epoch, the mapping and the seen context
+	 */
+	public Object[] getState() {
+		Object[] arr = { Integer.valueOf(this.epoch), toIntegers(this.mapping),
+				toIntegers(this.seen) };
+		return arr;
+	}
+
+	/**
+	 * Gets the site epoch the compaction moves to.
+	 *
+	 * @return Integer epoch
+	 */
+	public int getEpoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * Gets the number of old site IDs the mapping lists; the ones past it
+	 * all move down by the same number.
+	 *
+	 * @return Integer width
+	 */
+	int getWidth() {
+		return this.mapping.length;
+	}
+
+	/**
+	 * Tells if the compaction drops a site.
+	 *
+	 * @param site Integer old site ID
+	 * @return True if dropped
+	 */
+	public boolean drops(int site) {
+		return site < this.mapping.length && this.mapping[site] < 0;
+	}
+
+	/**
+	 * Gets the context every site had seen when the compaction was planned,
+	 * by old site ID.
+	 *
+	 * @return Sequence number per site
+	 */
+	public int[] getSeen() {
+		return this.seen.clone();
+	}
+
+	/**
+	 * Translates a site ID, or a context width, from before the compaction.
+	 *
+	 * @param site Integer old site ID
+	 * @return Integer new site ID, or -1 if dropped
+	 */
+	public int remapSite(int site) {
+		if (site < this.mapping.length) {
+			return this.mapping[site];
+		}
+		int kept = 0;
+		for (int i = 0; i < this.mapping.length; i++) {
+			if (this.mapping[i] >= 0) {
+				++kept;
+			}
+		}
+		return site - this.mapping.length + kept;
+	}
+
+	/**
+	 * Translates a context from before the compaction. The entries of the
+	 * dropped sites are left out; they were the same in every context.
+	 *
+	 * @param sites Sequence numbers by old site ID
+	 * @return Sequence numbers by new site ID
+	 */
+	public int[] remapSites(int[] sites) {
+		int[] to = new int[this.remapSite(sites.length)];
+		for (int site = 0; site < sites.length; site++) {
+			int i = this.remapSite(site);
+			if (i >= 0) {
+				to[i] = sites[site];
+			}
+		}
+		return to;
+	}
+
+	private static int[] toInts(Object[] arr) {
+		int[] ints = new int[arr.length];
+		for (int i = 0; i < arr.length; i++) {
+			ints[i] = ((Number) arr[i]).intValue();
+		}
+		return ints;
+	}
+
+	private static Integer[] toIntegers(int[] ints) {
+		Integer[] arr = new Integer[ints.length];
+		for (int i = 0; i < ints.length; i++) {
+			arr[i] = Integer.valueOf(ints[i]);
+		}
+		return arr;
+	}
+}
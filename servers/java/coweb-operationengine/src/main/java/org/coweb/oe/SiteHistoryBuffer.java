@@ -0,0 +1,510 @@
+package org.coweb.oe;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * History buffer keeping one ring buffer per site, indexed by sequence
+ * number. Operations from a site arrive with contiguous sequence IDs and
+ * are purged oldest first, so lookups and removals at either end of a ring
+ * are constant time array accesses without any hashing.
+ *
+ * Snapshots share the rings copy-on-write: appends land outside the span a
+ * snapshot covers, so only a removal copies a shared ring first, once.
+ *
+ * A purge only moves the oldest end of each ring past the purged ops,
+ * without reading them when it is told how many there are. The slots they
+ * leave behind are cleared by reclaim, which may run on another thread
+ * without the engine lock; a ring does not reuse them until then.
+ */
+public class SiteHistoryBuffer extends HistoryBuffer {
+
+	private SiteLog[] logs = null;
+	// slots cut off by purges, waiting for reclaim
+	private final Queue<SiteLog.Retired> retired =
+		new ConcurrentLinkedQueue<SiteLog.Retired>();
+
+	public SiteHistoryBuffer() {
+		this.logs = new SiteLog[0];
+		this.size = 0;
+	}
+
+	@Override
+	public Operation get(int site, int seq) {
+		if(site >= this.logs.length || this.logs[site] == null) {
+			return null;
+		}
+		return this.logs[site].get(seq);
+	}
+
+	@Override
+	protected void put(Operation op) {
+		this.getLog(op.siteId).put(op.seqId, op);
+	}
+
+	@Override
+	protected Operation delete(int site, int seq) {
+		if(site >= this.logs.length || this.logs[site] == null) {
+			return null;
+		}
+		return this.logs[site].remove(seq);
+	}
+
+	@Override
+	public Operation getOldest(int site, int seq) {
+		if(site >= this.logs.length || this.logs[site] == null) {
+			return null;
+		}
+		return this.logs[site].first(seq);
+	}
+
+	@Override
+	protected int deleteThrough(int site, int seq) {
+		if(site >= this.logs.length || this.logs[site] == null) {
+			return 0;
+		}
+		return this.logs[site].removeThrough(seq, this.retired);
+	}
+
+	@Override
+	protected int deleteThrough(int site, int seq, int count) {
+		if(site >= this.logs.length || this.logs[site] == null) {
+			return 0;
+		}
+		return this.logs[site].removeThrough(seq, count, this.retired);
+	}
+
+	@Override
+	public void reclaim() {
+		SiteLog.Retired r;
+		while((r = this.retired.poll()) != null) {
+			r.clear();
+		}
+	}
+
+	@Override
+	protected Collection<Operation> getOperations() {
+		ArrayList<Operation> list = new ArrayList<Operation>(this.size);
+		for(int i=0; i < this.logs.length; i++) {
+			if(this.logs[i] != null) {
+				this.logs[i].addTo(list);
+			}
+		}
+		return list;
+	}
+
+	@Override
+	protected void clear() {
+		this.logs = new SiteLog[0];
+	}
+
+	@Override
+	public Collection<Operation> snapshot() {
+		final ArrayList<SiteLog.View> views = new ArrayList<SiteLog.View>();
+		for(int i=0; i < this.logs.length; i++) {
+			if(this.logs[i] != null && this.logs[i].count > 0) {
+				views.add(this.logs[i].share());
+			}
+		}
+		return SiteHistoryBuffer.collection(views, this.size);
+	}
+
+	/**
+	 * Reads the spans of the rings as they are, without sharing them. Only
+	 * a purge clears or reuses slots in a span; adding ops touches slots
+	 * past it or fills empty ones, and removals of single ops are fine for
+	 * a view to miss.
+	 */
+	@Override
+	public Collection<Operation> view() {
+		ArrayList<SiteLog.View> views = new ArrayList<SiteLog.View>();
+		for(int i=0; i < this.logs.length; i++) {
+			if(this.logs[i] != null && this.logs[i].count > 0) {
+				views.add(this.logs[i].peek());
+			}
+		}
+		return SiteHistoryBuffer.collection(views, this.size);
+	}
+
+	private static Collection<Operation> collection(
+			final ArrayList<SiteLog.View> views, final int size) {
+		return new AbstractCollection<Operation>() {
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public Iterator<Operation> iterator() {
+				return new ViewIterator(views);
+			}
+		};
+	}
+
+	/**
+     * Retrieves all of the operations represented by the given context
+     * difference, reading each range of sequence numbers for a site straight
+     * out of that site's ring. Sorts them by total order.
+     *
+     * @param cd  Context difference object
+	 * @throws OperationEngineException
+     * @return Sorted operations
+     */
+	@Override
+	public Stack<Operation> getOpsForDifference(ContextDifference cd) throws OperationEngineException {
+		Operation[] arr = new Operation[cd.size()];
+
+		int k = 0;
+		for(int r=0, rl=cd.getRangeCount(); r < rl; r++) {
+			int site = cd.getRangeSite(r);
+			int end = cd.getRangeEnd(r);
+			// locate the ring for the range's site once
+			SiteLog log = (site < this.logs.length) ? this.logs[site] : null;
+			for(int seq=cd.getRangeStart(r); seq < end; seq++, k++) {
+				arr[k] = (log == null) ? null : log.get(seq);
+				if(arr[k] == null) {
+					throw new OperationEngineException("missing op for context diff: i=" + k +
+						" key=" + site + "," + seq + " keys=" + cd);
+				}
+			}
+		}
+
+		return HistoryBuffer.sortByOrder(arr);
+	}
+
+	/**
+	 * Walks the ops in the spans of a snapshot, skipping empty slots.
+	 */
+	private static class ViewIterator implements Iterator<Operation> {
+		private final Iterator<SiteLog.View> views;
+		private SiteLog.View view = null;
+		private int i = 0;
+		private Operation next = null;
+
+		ViewIterator(Collection<SiteLog.View> views) {
+			this.views = views.iterator();
+			this.advance();
+		}
+
+		private void advance() {
+			this.next = null;
+			while(this.next == null) {
+				if(this.view == null || this.i >= this.view.span) {
+					if(!this.views.hasNext()) {
+						return;
+					}
+					this.view = this.views.next();
+					this.i = 0;
+					continue;
+				}
+				int mask = this.view.ring.length - 1;
+				this.next = this.view.ring[(this.view.head + this.i++) & mask];
+			}
+		}
+
+		public boolean hasNext() {
+			return this.next != null;
+		}
+
+		public Operation next() {
+			if(this.next == null) {
+				throw new NoSuchElementException();
+			}
+			Operation op = this.next;
+			this.advance();
+			return op;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private SiteLog getLog(int site) {
+		if(site >= this.logs.length) {
+			SiteLog[] logs = new SiteLog[Math.max(site + 1, this.logs.length * 2)];
+			System.arraycopy(this.logs, 0, logs, 0, this.logs.length);
+			this.logs = logs;
+		}
+		if(this.logs[site] == null) {
+			this.logs[site] = new SiteLog();
+		}
+		return this.logs[site];
+	}
+
+	/**
+	 * Ring of operations from one site. Slot i of the live span holds the
+	 * op with sequence number base + i, or null if that op is not in the
+	 * history.
+	 */
+	static class SiteLog {
+
+		private static final int MIN_CAPACITY = 8;
+
+		private Operation[] ring = new Operation[MIN_CAPACITY];
+		// index in ring of the slot holding seq base
+		private int head = 0;
+		// sequence number held by the head slot
+		private int base = 0;
+		// number of slots from head up to and including the newest op
+		private int span = 0;
+		// number of non-null slots in the span
+		private int count = 0;
+		// set while a snapshot may read the span of this ring
+		private boolean shared = false;
+		// slots just before head cut off by purges and not reusable until
+		// reclaimed, and the cuts themselves oldest first
+		private int retired = 0;
+		private final ArrayDeque<Retired> pending = new ArrayDeque<Retired>();
+
+		/**
+		 * Slots at the oldest end of a ring cut off by a purge. Clearing
+		 * them is left to whichever thread reclaims the history.
+		 */
+		static class Retired {
+			final Operation[] ring;
+			final int from;
+			final int slots;
+			volatile boolean done = false;
+
+			Retired(Operation[] ring, int from, int slots) {
+				this.ring = ring;
+				this.from = from;
+				this.slots = slots;
+			}
+
+			void clear() {
+				int mask = this.ring.length - 1;
+				for(int i=0; i < this.slots; i++) {
+					int j = (this.from + i) & mask;
+					if(this.ring[j] != null) {
+						this.ring[j].immutable = false;
+						this.ring[j] = null;
+					}
+				}
+				this.done = true;
+			}
+		}
+
+		/**
+		 * Spans of a ring as they were when a snapshot was taken.
+		 */
+		static class View {
+			final Operation[] ring;
+			final int head;
+			final int span;
+
+			View(Operation[] ring, int head, int span) {
+				this.ring = ring;
+				this.head = head;
+				this.span = span;
+			}
+		}
+
+		View share() {
+			this.shared = true;
+			return this.peek();
+		}
+
+		// the span as it is, for a reader done with it before the next purge
+		View peek() {
+			return new View(this.ring, this.head, this.span);
+		}
+
+		// gives this log a ring of its own before a slot in the span changes
+		private void unshare() {
+			if(this.shared) {
+				this.resize(this.ring.length);
+			}
+		}
+
+		// makes the slots before head free to use again
+		private void own() {
+			this.unshare();
+			this.collect();
+			if(this.retired > 0) {
+				this.resize(this.ring.length);
+			}
+		}
+
+		// frees the retired slots that have been reclaimed, oldest first
+		private void collect() {
+			while(!this.pending.isEmpty() && this.pending.peek().done) {
+				this.retired -= this.pending.poll().slots;
+			}
+		}
+
+		Operation get(int seq) {
+			int offset = seq - this.base;
+			if(offset < 0 || offset >= this.span) {
+				return null;
+			}
+			return this.ring[(this.head + offset) & (this.ring.length - 1)];
+		}
+
+		void put(int seq, Operation op) {
+			if(this.span == 0) {
+				if(this.retired == 0) {
+					this.head = 0;
+				}
+				this.base = seq;
+			}
+			int offset = seq - this.base;
+			if(offset < 0) {
+				// op older than the oldest one stored, extend the span back
+				this.own();
+				this.ensureCapacity(this.span - offset);
+				this.head = (this.head + offset) & (this.ring.length - 1);
+				this.base = seq;
+				this.span -= offset;
+				offset = 0;
+			} else if(offset >= this.span) {
+				this.ensureCapacity(offset + 1);
+				this.span = offset + 1;
+			} else if(this.shared) {
+				// filling a slot inside the span
+				this.unshare();
+			}
+			int i = (this.head + offset) & (this.ring.length - 1);
+			if(this.ring[i] == null) {
+				++this.count;
+			}
+			this.ring[i] = op;
+		}
+
+		Operation remove(int seq) {
+			int offset = seq - this.base;
+			if(offset < 0 || offset >= this.span) {
+				return null;
+			}
+			if(this.get(seq) == null) {
+				return null;
+			}
+			this.own();
+			int mask = this.ring.length - 1;
+			int i = (this.head + offset) & mask;
+			Operation op = this.ring[i];
+			this.ring[i] = null;
+			--this.count;
+
+			// drop empty slots from the oldest end
+			while(this.span > 0 && this.ring[this.head] == null) {
+				this.head = (this.head + 1) & mask;
+				++this.base;
+				--this.span;
+			}
+			// and from the newest end
+			while(this.span > 0 &&
+				this.ring[(this.head + this.span - 1) & mask] == null) {
+				--this.span;
+			}
+			// give memory back once most of the ring is unused
+			if(this.ring.length > MIN_CAPACITY && this.span < this.ring.length / 4) {
+				this.resize(Math.max(MIN_CAPACITY, this.ring.length / 2));
+			}
+			return op;
+		}
+
+		Operation first(int seq) {
+			int mask = this.ring.length - 1;
+			for(int i=Math.max(seq + 1 - this.base, 0); i < this.span; i++) {
+				Operation op = this.ring[(this.head + i) & mask];
+				if(op != null) {
+					return op;
+				}
+			}
+			return null;
+		}
+
+		int removeThrough(int seq, Queue<Retired> reclaim) {
+			int n = Math.min(seq + 1 - this.base, this.span);
+			if(n <= 0) {
+				return 0;
+			}
+			int mask = this.ring.length - 1;
+			int removed = 0;
+			for(int i=0; i < n; i++) {
+				if(this.ring[(this.head + i) & mask] != null) {
+					++removed;
+				}
+			}
+			return this.cut(n, removed, reclaim);
+		}
+
+		// like removeThrough, trusting the caller's count of the removed ops
+		int removeThrough(int seq, int removed, Queue<Retired> reclaim) {
+			int n = Math.min(seq + 1 - this.base, this.span);
+			if(n <= 0) {
+				return 0;
+			}
+			return this.cut(n, removed, reclaim);
+		}
+
+		// cuts off the n oldest slots of the span holding removed ops
+		private int cut(int n, int removed, Queue<Retired> reclaim) {
+			this.unshare();
+			int mask = this.ring.length - 1;
+			// drop empty slots left at the oldest end as well
+			while(n < this.span && this.ring[(this.head + n) & mask] == null) {
+				++n;
+			}
+			// cut the slots off without clearing them
+			Retired r = new Retired(this.ring, this.head, n);
+			this.pending.add(r);
+			reclaim.add(r);
+			this.retired += n;
+			this.head = (this.head + n) & mask;
+			this.base += n;
+			this.span -= n;
+			this.count -= removed;
+			if(this.ring.length > MIN_CAPACITY && this.span < this.ring.length / 4) {
+				this.resize(Math.max(MIN_CAPACITY, this.ring.length / 2));
+			}
+			return removed;
+		}
+
+		void addTo(Collection<Operation> list) {
+			int mask = this.ring.length - 1;
+			for(int i=0; i < this.span; i++) {
+				Operation op = this.ring[(this.head + i) & mask];
+				if(op != null) {
+					list.add(op);
+				}
+			}
+		}
+
+		private void ensureCapacity(int capacity) {
+			if(capacity + this.retired > this.ring.length) {
+				this.collect();
+			}
+			if(capacity + this.retired > this.ring.length) {
+				int size = this.ring.length;
+				while(size < capacity) {
+					size *= 2;
+				}
+				this.resize(size);
+			}
+		}
+
+		private void resize(int capacity) {
+			Operation[] ring = new Operation[capacity];
+			int mask = this.ring.length - 1;
+			for(int i=0; i < this.span; i++) {
+				ring[i] = this.ring[(this.head + i) & mask];
+			}
+			// the old ring is left to snapshots and the reclaiming thread
+			this.ring = ring;
+			this.head = 0;
+			this.shared = false;
+			this.retired = 0;
+			this.pending.clear();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.coweb.oe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Index of the operations in a history buffer by key (collab topic). For
+ * each key it keeps the sequence numbers of the ops from each site in
+ * ascending order, so a context difference can be narrowed to the ops that
+ * share a key without touching the others.
+ */
+class TopicIndex {
+
+	private HashMap<String, SeqList[]> keys = new HashMap<String, SeqList[]>();
+
+	/**
+	 * Adds an operation to the index. Ops from a site must be added in
+	 * sequence order.
+	 *
+	 * @param op Operation to index
+	 */
+	public void add(Operation op) {
+		SeqList[] lists = this.keys.get(op.key);
+		if(lists == null) {
+			lists = new SeqList[op.siteId + 1];
+			this.keys.put(op.key, lists);
+		} else if(lists.length <= op.siteId) {
+			lists = Arrays.copyOf(lists, op.siteId + 1);
+			this.keys.put(op.key, lists);
+		}
+		if(lists[op.siteId] == null) {
+			lists[op.siteId] = new SeqList();
+		}
+		lists[op.siteId].add(op.seqId);
+	}
+
+	/**
+	 * Narrows a context difference to the operations with the given key.
+	 *
+	 * @param cd Context difference to narrow
+	 * @param key Key of the ops to keep
+	 * @return New context difference with only ops for the key
+	 */
+	public ContextDifference filter(ContextDifference cd, String key) {
+		ContextDifference fcd = new ContextDifference();
+		SeqList[] lists = this.keys.get(key);
+		if(lists == null) {
+			return fcd;
+		}
+		for(int r=0, rl=cd.getRangeCount(); r < rl; r++) {
+			int site = cd.getRangeSite(r);
+			if(site >= lists.length || lists[site] == null) {
+				continue;
+			}
+			lists[site].addTo(fcd, site, cd.getRangeStart(r), cd.getRangeEnd(r));
+		}
+		return fcd;
+	}
+
+	/**
+	 * Drops all entries from a site up to and including the given sequence
+	 * number.
+	 *
+	 * @param site Integer site ID
+	 * @param seq Integer sequence number
+	 */
+	public void removeThrough(int site, int seq) {
+		Iterator<SeqList[]> iter = this.keys.values().iterator();
+		while(iter.hasNext()) {
+			SeqList[] lists = iter.next();
+			if(site >= lists.length || lists[site] == null) {
+				continue;
+			}
+			lists[site].removeThrough(seq);
+			if(lists[site].isEmpty()) {
+				lists[site] = null;
+				if(TopicIndex.isEmpty(lists)) {
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		this.keys.clear();
+	}
+
+	private static boolean isEmpty(SeqList[] lists) {
+		for(int i=0; i < lists.length; i++) {
+			if(lists[i] != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ascending sequence numbers of the ops from one site with one key.
+	 */
+	static class SeqList {
+		private int[] seqs = new int[4];
+		private int head = 0;
+		private int tail = 0;
+
+		void add(int seq) {
+			if(this.tail == this.seqs.length) {
+				if(this.head > this.seqs.length / 2) {
+					// reuse the space freed at the front
+					System.arraycopy(this.seqs, this.head, this.seqs, 0,
+						this.tail - this.head);
+				} else {
+					int[] seqs = new int[this.seqs.length * 2];
+					System.arraycopy(this.seqs, this.head, seqs, 0,
+						this.tail - this.head);
+					this.seqs = seqs;
+				}
+				this.tail -= this.head;
+				this.head = 0;
+			}
+			this.seqs[this.tail++] = seq;
+		}
+
+		void addTo(ContextDifference cd, int site, int start, int end) {
+			int i = Arrays.binarySearch(this.seqs, this.head, this.tail, start);
+			if(i < 0) {
+				i = -i - 1;
+			}
+			for(; i < this.tail && this.seqs[i] < end; i++) {
+				cd.addSiteSeq(site, this.seqs[i]);
+			}
+		}
+
+		void removeThrough(int seq) {
+			while(this.head < this.tail && this.seqs[this.head] <= seq) {
+				++this.head;
+			}
+		}
+
+		boolean isEmpty() {
+			return this.head == this.tail;
+		}
+	}
+}
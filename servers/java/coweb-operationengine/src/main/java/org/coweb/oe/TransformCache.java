@@ -0,0 +1,70 @@
+package org.coweb.oe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of transformed copies of one original operation, keyed by
+ * the context vector each copy was transformed into. Lookups hash the
+ * context vector instead of comparing it against every entry, and the least
+ * recently used copy is evicted once the cache is full. Shared by all copies
+ * of the same original operation.
+ */
+class TransformCache {
+
+	// never shrink below this many entries, even with few known sites
+	static final int MIN_CAPACITY = 32;
+
+	// entries kept per participating site; an op gets transformed into
+	// several contexts per concurrent site during deep transforms
+	static final int ENTRIES_PER_SITE = 8;
+
+	private int capacity = MIN_CAPACITY;
+
+	private LinkedHashMap<ContextVector, Operation> entries =
+		new LinkedHashMap<ContextVector, Operation>(8, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ContextVector, Operation> eldest) {
+				return this.size() > TransformCache.this.capacity;
+			}
+		};
+
+	/**
+	 * Gets the transformed op cached for the given context and marks it as
+	 * recently used.
+	 *
+	 * @param cv Context of the transformed op to seek
+	 * @return Cached immutable op or null if not in the cache
+	 */
+	public Operation get(ContextVector cv) {
+		return this.entries.get(cv);
+	}
+
+	/**
+	 * Caches an immutable transformed op under its context vector, evicting
+	 * the least recently used entries beyond the capacity for the given
+	 * number of sites.
+	 *
+	 * @param op Immutable transformed op
+	 * @param siteCount Integer count of active sites, including the local one
+	 */
+	public void put(Operation op, int siteCount) {
+		this.capacity = Math.max(siteCount * ENTRIES_PER_SITE, MIN_CAPACITY);
+		this.entries.put(op.contextVector, op);
+		// trim in case the capacity shrank since the last put
+		while(this.entries.size() > this.capacity) {
+			this.entries.remove(this.entries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Gets the number of cached ops.
+	 *
+	 * @return Integer count
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+}
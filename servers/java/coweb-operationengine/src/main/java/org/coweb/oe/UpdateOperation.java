@@ -5,8 +5,22 @@ import java.util.Map;
 public class UpdateOperation extends Operation {
 
 	protected UpdateOperation(Map<String, Object> args) throws OperationEngineException {
-		super(args);
-		this.type = "update";
+		super(OperationType.UPDATE, args);
+	}
+	
+	protected UpdateOperation(int siteId, int seqId, ContextVector contextVector,
+			String key, String value, int position, int order, boolean local) {
+		super(OperationType.UPDATE, siteId, seqId, contextVector, key, value,
+				position, order, local);
+	}
+	
+	protected UpdateOperation(UpdateOperation op) {
+		super(op);
+	}
+	
+	@Override
+	public Operation copy() {
+		return new UpdateOperation(this);
 	}
 	
 	/**
@@ -39,7 +53,7 @@ public class UpdateOperation extends Operation {
             return this;
         }
         if(this.position >= op.position) {
-            ++this.position;
+            this.position += op.getLength();
         }
         return this;
 	}
@@ -54,11 +68,10 @@ public class UpdateOperation extends Operation {
 		if (!this.key.equals(op.key)) {
 			return this;
 		}
-		if (this.position > op.position) {
-			--this.position;
-		} else if (this.position == op.position) {
+		if (op.deletes(this.position)) {
 			return null;
 		}
+		this.position -= op.deletedBelow(this.position);
 		return this;
 	}
 }
@@ -7,6 +7,7 @@ import java.util.logging.Logger;
 import org.cometd.bayeux.Message;
 import org.cometd.bayeux.server.ServerSession;
 
+import org.eclipse.jetty.util.B64Code;
 import org.eclipse.jetty.util.ajax.JSON;
 
 public class ModeratorLateJoinHandler extends LateJoinHandler {
@@ -14,9 +15,21 @@ public class ModeratorLateJoinHandler extends LateJoinHandler {
 			.getLogger(ModeratorLateJoinHandler.class.getName());
 
 
+	// send the engine state as a base64 binary snapshot
+	private boolean compactEngineState = false;
+
+	// last snapshot sent and its base64 text, reused while the engine
+	// hands out the same snapshot
+	private byte[] lastSnapshot = null;
+	private String lastSnapshotText = null;
+
 	public ModeratorLateJoinHandler(SessionHandler sessionHandler,
 			Map<String, Object> config) {
 		super(sessionHandler, config);	
+		if (config.containsKey("compactEngineState")) {
+			this.compactEngineState =
+				((Boolean) config.get("compactEngineState")).booleanValue();
+		}
 	}
 
 	@Override
@@ -46,8 +59,17 @@ public class ModeratorLateJoinHandler extends LateJoinHandler {
 
 		// 2) Engine state.
 		HashMap<String, Object> engState = new HashMap<String, Object>();
-		engState.put("topic", "coweb.engine.state");
-		engState.put("value", this.sessionHandler.getEngineState());
+		byte[] snapshot = null;
+		if (this.compactEngineState) {
+			snapshot = this.sessionHandler.getEngineSnapshot();
+		}
+		if (snapshot != null) {
+			engState.put("topic", "coweb.engine.snapshot");
+			engState.put("value", this.encodeSnapshot(snapshot));
+		} else {
+			engState.put("topic", "coweb.engine.state");
+			engState.put("value", this.sessionHandler.getEngineState());
+		}
 		data[cnt++] = engState;
 
 		/* 3) Paused sync buffer. Since the moderator never pauses itself from
@@ -71,6 +93,14 @@ public class ModeratorLateJoinHandler extends LateJoinHandler {
 		return first;
 	}
 
+	private synchronized String encodeSnapshot(byte[] snapshot) {
+		if (snapshot != this.lastSnapshot) {
+			this.lastSnapshotText = new String(B64Code.encode(snapshot));
+			this.lastSnapshot = snapshot;
+		}
+		return this.lastSnapshotText;
+	}
+
 	public void onUpdaterSendState(ServerSession client, Message message) {
 		// should never get here.
 		return;
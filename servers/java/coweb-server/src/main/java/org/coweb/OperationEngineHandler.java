@@ -1,59 +1,550 @@
 
 package org.coweb;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import org.coweb.oe.ContextVector;
+import org.coweb.oe.DeleteRangeOperation;
+import org.coweb.oe.EngineState;
+import org.coweb.oe.EngineStateCodec;
+import org.coweb.oe.MergeEngine;
 import org.coweb.oe.Operation;
 import org.coweb.oe.OperationEngine;
 import org.coweb.oe.OperationEngineException;
+import org.coweb.oe.PurgePlan;
+import org.coweb.oe.SequenceEngine;
+import org.coweb.oe.Sequencer;
 import org.eclipse.jetty.util.ajax.JSON;
 
 public class OperationEngineHandler {
 	
 	private static final Logger log = Logger.getLogger(OperationEngineHandler.class.getName());
 
-	// reference to operation engine.
-	private OperationEngine engine = null;
+	// runs the engine syncs and purges of all sessions, while any handler
+	// that has not been shut down uses it
+	private static ScheduledExecutorService scheduler = null;
+	// carries out the purges the scheduler hands over, waiting for the locks
+	// of the sessions in its place
+	private static ExecutorService purger = null;
+	private static int schedulerUsers = 0;
+
+	// reference to the merge engine, unless topics have engines of their own
+	private MergeEngine engine = null;
+
+	// one partitioned engine per collab topic when syncs on different topics
+	// are transformed in parallel, else null
+	private ConcurrentHashMap<String, OperationEngine> topicEngines = null;
+
+	// central sequencer when sites send the revision they are at instead of
+	// a context vector, else null; guarded by this handler
+	private Sequencer sequencer = null;
+
+	// ops of the batch being delivered that the moderator has not taken
+	// yet, and their topic; guarded by this handler
+	private LinkedList<Operation> batchRest = null;
+	private String batchTopic = null;
+
+	// context of everything processed by the topic engines, as seen by the
+	// other sites; also hands out sequence numbers to local ops
+	private ContextVector sessionContext = null;
+
+	// latest context vector received from each remote site, for seeding
+	// topic engines created later
+	private Map<Integer, int[]> remoteContexts = null;
+
+	// sites that left the session, frozen in topic engines created later;
+	// guarded by remoteContexts
+	private Set<Integer> departed = null;
+
+	// held shared while the topic engines change, exclusively to snapshot
+	// all of them at once
+	private ReadWriteLock stateLock = null;
+
+	private int siteId;
+
+	// engine state and snapshot for late joiners with the engine version
+	// they were taken at, so a burst of joiners shares one of each; guarded
+	// by stateCacheLock, which syncs never take
+	private final Object stateCacheLock = new Object();
+	private long stateVersion = -1;
+	private Object[] cachedState = null;
+	private long snapshotVersion = -1;
+	private byte[] cachedSnapshot = null;
+	// whether the cached state has a binary snapshot form
+	private boolean stateEncodable = true;
 	
 	// reference to session handler.
 	private SessionHandler sessionHandler = null;
 
 	// should purge if we've received a sync
-	private boolean shouldPurge = false;
+	private volatile boolean shouldPurge = false;
+
+	// set while a purge is handed to the purger until it is done, so a
+	// purge plan is carried out before the next one is taken
+	private final AtomicBoolean purgeQueued = new AtomicBoolean(false);
+
+	// set once shutdown let go of the scheduler
+	private boolean stopped = false;
 
 	// should sync if we've received a sync and have been quiet
-	private boolean shouldSync = false;
-	
-	private Timer purgeTimer = null;
-	private Timer syncTimer = null;
+	private volatile boolean shouldSync = false;
+
+	// history size at which to purge without waiting for the purge
+	// interval, or 0 to only purge on the interval
+	private int purgeThreshold = 1000;
+	private volatile int purgeAt = 1000;
+
+	// engine syncs list only the context vector entries that changed since
+	// the last context the other sites learned from us
+	private boolean deltaEngineSync = false;
+
+	// last context the other sites learned from us, by an engine sync or as
+	// the context of a local op; replaced whole, never modified
+	private volatile int[] sentContext = null;
+
+	// context of the engine as of the last sync it processed, for the sync
+	// task to send without the engine locks; replaced whole, never modified
+	private volatile int[] engineContext = null;
+
+	// topics whose updates are last-writer-wins registers kept out of the
+	// engines; a name ending in * matches by prefix
+	private List<String> registerTopics = null;
+
+	// update each register position holds, by topic; each map is guarded by
+	// the lock of its topic
+	private ConcurrentHashMap<String, Map<Integer, Register>> registers = null;
+
+	// register updates taken in parallel mode, which change the session
+	// context but no topic engine
+	private final AtomicInteger registerUpdates = new AtomicInteger(0);
 
 	// Keep these around incase we need to stop the events from firing.
 	private PurgeTask purgeTask = null;
 	private SyncTask syncTask = null;
 
-	public OperationEngineHandler(SessionHandler sessionHandler, int siteId) throws OperationEngineException {
+	public OperationEngineHandler(SessionHandler sessionHandler, int siteId,
+			Map<String, Object> config) throws OperationEngineException {
 		
 		this.sessionHandler = sessionHandler;
 		
-		//create the op engine.
-		this.engine = new OperationEngine(siteId);
-		this.engine.freezeSite(0);
-		
-		//schedule the purge thread.
-		this.purgeTimer = new Timer();
-		this.purgeTask = new PurgeTask();
-		this.purgeTimer.scheduleAtFixedRate(this.purgeTask, new Date(), 10000);
+		this.siteId = siteId;
+
+		if (config.containsKey("registerTopics")) {
+			this.registerTopics = new ArrayList<String>();
+			for (Object name : (Object[]) config.get("registerTopics")) {
+				this.registerTopics.add((String) name);
+			}
+			this.registers =
+				new ConcurrentHashMap<String, Map<Integer, Register>>();
+		}
+
+		String kind = "transform";
+		if (config.containsKey("mergeEngine")) {
+			kind = (String) config.get("mergeEngine");
+			if (!"sequence".equals(kind) && !"sequencer".equals(kind) &&
+					!"transform".equals(kind)) {
+				log.warning("unknown mergeEngine " + kind +
+						", using transform");
+				kind = "transform";
+			}
+		}
+		boolean parallel = config.containsKey("parallelTopicSync") &&
+				((Boolean) config.get("parallelTopicSync")).booleanValue();
+		if (parallel && !"transform".equals(kind)) {
+			log.warning("parallelTopicSync needs the transform engine, " +
+					"ignoring it");
+			parallel = false;
+		}
+
+		if ("sequencer".equals(kind)) {
+			log.info("sequencing syncs on the server");
+			if (this.registerTopics != null) {
+				// the server orders every update already
+				log.warning("registerTopics need a merge engine, ignoring " +
+						"them");
+				this.registerTopics = null;
+				this.registers = null;
+			}
+			this.sequencer = new Sequencer(siteId);
+		} else if ("sequence".equals(kind)) {
+			log.info("merging syncs with the sequence engine");
+			this.engine = new SequenceEngine(siteId);
+		} else if (parallel) {
+			// topic engines are created as their topics first appear
+			log.info("transforming syncs on different topics in parallel");
+			this.topicEngines = new ConcurrentHashMap<String, OperationEngine>();
+			this.sessionContext = new ContextVector(siteId + 1);
+			this.remoteContexts = new HashMap<Integer, int[]>();
+			this.departed = new HashSet<Integer>();
+			this.stateLock = new ReentrantReadWriteLock();
+		} else {
+			//create the op engine.
+			OperationEngine engine = new OperationEngine(siteId);
+			engine.setDeferredReclaim(true);
+			if (config.containsKey("partitionEngineByTopic") &&
+					((Boolean) config.get("partitionEngineByTopic")).booleanValue()) {
+				log.info("partitioning operation engine transforms by topic");
+				engine.setPartitioned(true);
+			} else if (this.registerTopics != null) {
+				// only a partitioned engine can leave register updates out
+				// of its history
+				log.info("partitioning operation engine for register topics");
+				engine.setPartitioned(true);
+			}
+			engine.freezeSite(0);
+			this.engine = engine;
+		}
 		
-		//schedule the engine sync thread.
-		this.syncTimer = new Timer();
-		this.syncTask = new SyncTask();
-		this.syncTimer.scheduleAtFixedRate(this.syncTask, new Date(), 10000);
+		// purges and engine syncs run on the shared scheduler once there is
+		// something to do
+		this.purgeTask = new PurgeTask(getMillis(config,
+				"enginePurgeInterval", 10000));
+		this.syncTask = new SyncTask(getMillis(config,
+				"engineSyncInterval", 10000));
+		if (config.containsKey("enginePurgeThreshold")) {
+			this.purgeThreshold = ((Number) config.get(
+					"enginePurgeThreshold")).intValue();
+			this.purgeAt = this.purgeThreshold;
+		}
+		if (config.containsKey("engineSyncMode")) {
+			String mode = (String) config.get("engineSyncMode");
+			if ("delta".equals(mode)) {
+				log.info("sending delta engine syncs");
+				this.deltaEngineSync = true;
+			} else if (!"full".equals(mode)) {
+				log.warning("unknown engineSyncMode " + mode +
+						", using full");
+			}
+		}
+		retainScheduler();
+	}
+
+	private static long getMillis(Map<String, Object> config, String key,
+			long defaultValue) {
+		if (!config.containsKey(key)) {
+			return defaultValue;
+		}
+		return Math.max(1, ((Number) config.get(key)).longValue());
+	}
+
+	/**
+	 * Gets the scheduler shared by the handlers of all sessions. It has a
+	 * daemon thread per processor, so the number of sessions does not add
+	 * threads. Its tasks never wait for the locks of a session.
+	 */
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			final AtomicInteger count = new AtomicInteger();
+			scheduler = Executors.newScheduledThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "coweb-engine-" +
+									count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Gets the executor shared by the handlers of all sessions that purges
+	 * the engines. Unlike the scheduler its threads wait for the locks of
+	 * the sessions they purge. It has a daemon thread per processor.
+	 */
+	private static synchronized ExecutorService getPurger() {
+		if (purger == null) {
+			final AtomicInteger count = new AtomicInteger();
+			purger = Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "coweb-purge-" +
+									count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return purger;
+	}
+
+	/**
+	 * Counts a handler that uses the shared scheduler.
+	 */
+	private static synchronized void retainScheduler() {
+		++schedulerUsers;
+	}
+
+	/**
+	 * Lets go of the shared scheduler for a handler that was shut down. The
+	 * last one shuts the scheduler and the purger down, so their threads do
+	 * not outlive the web application and pin its class loader on a
+	 * redeploy.
+	 */
+	private static synchronized void releaseScheduler() {
+		if (--schedulerUsers > 0) {
+			return;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (purger != null) {
+			purger.shutdownNow();
+			purger = null;
+		}
+	}
+
+	/**
+	 * Gets the number of ops held in the history of the engine, or of all
+	 * the topic engines.
+	 *
+	 * @return Integer count
+	 */
+	public int getHistorySize() {
+		if (this.sequencer != null) {
+			return this.sequencer.getLogSize();
+		}
+		if (this.topicEngines == null) {
+			return this.engine.getBufferSize();
+		}
+		int size = 0;
+		for (OperationEngine engine : this.topicEngines.values()) {
+			size += engine.getBufferSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Notes that a sync went through the engine, so the engine syncs and
+	 * purges must resume if the session was idle, and purges right away if
+	 * the history outgrew the purge threshold.
+	 */
+	private void activity(boolean sync) {
+		if (sync) {
+			if (this.engine != null && this.topicEngines == null) {
+				// the caller holds this lock, which remote ops are pushed
+				// under; local ops are pushed under the engine lock
+				synchronized (this.engine) {
+					try {
+						this.engineContext = this.engine.copyContextVector()
+							.copySites();
+					} catch (OperationEngineException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			this.shouldSync = true;
+			this.syncTask.wake();
+		}
+		this.shouldPurge = true;
+		if (this.purgeThreshold > 0 &&
+				this.getHistorySize() >= this.purgeAt) {
+			this.purgeTask.wake(0);
+		} else {
+			this.purgeTask.wake();
+		}
+	}
+
+	/**
+	 * Called when a site joins the session, before any of its syncs. A site
+	 * ID that was given up by a site that left is thawed again, so the engine
+	 * waits for the new site before purging ops it may not have.
+	 *
+	 * @param site Integer site ID of the joining site
+	 */
+	public void siteJoin(int site) {
+		if (this.sequencer != null) {
+			synchronized (this) {
+				this.sequencer.siteJoin(site);
+			}
+			return;
+		}
+		try {
+			if (this.topicEngines == null) {
+				synchronized (this) {
+					synchronized (this.engine) {
+						if (this.engine.isFrozen(site)) {
+							this.engine.thawSite(site);
+						}
+					}
+				}
+				return;
+			}
+			synchronized (this.remoteContexts) {
+				this.departed.remove(Integer.valueOf(site));
+			}
+			this.stateLock.readLock().lock();
+			try {
+				for (OperationEngine engine : this.topicEngines.values()) {
+					synchronized (engine) {
+						if (engine.isFrozen(site)) {
+							engine.thawSite(site);
+						}
+					}
+				}
+			} finally {
+				this.stateLock.readLock().unlock();
+			}
+		} catch (OperationEngineException e) {
+			log.warning("failed to thaw site " + site + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Called when a site leaves the session. The site is frozen so its last
+	 * context no longer holds back purges, and trailing sites that left
+	 * without sending an op are dropped from the context vectors.
+	 *
+	 * @param site Integer site ID of the leaving site
+	 */
+	public void siteLeave(int site) {
+		if (site == this.siteId) {
+			return;
+		}
+		if (this.sequencer != null) {
+			synchronized (this) {
+				this.sequencer.siteLeave(site);
+			}
+			return;
+		}
+		try {
+			// only unused columns go; compactSites needs clients that
+			// follow site epochs
+			if (this.topicEngines == null) {
+				synchronized (this) {
+					synchronized (this.engine) {
+						this.engine.freezeSite(site);
+						this.engine.retireSites();
+					}
+				}
+				return;
+			}
+			synchronized (this.remoteContexts) {
+				this.remoteContexts.remove(Integer.valueOf(site));
+				this.departed.add(Integer.valueOf(site));
+			}
+			this.stateLock.readLock().lock();
+			try {
+				for (OperationEngine engine : this.topicEngines.values()) {
+					synchronized (engine) {
+						engine.freezeSite(site);
+						engine.retireSites();
+					}
+				}
+			} finally {
+				this.stateLock.readLock().unlock();
+			}
+		} catch (OperationEngineException e) {
+			log.warning("failed to freeze site " + site + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tells whether syncs on different topics are transformed in parallel,
+	 * each by an engine of its own. Callers then lock with
+	 * {@link OperationEngineHandler#getTopicLock} instead of this handler.
+	 *
+	 * @return True if each topic has its own engine
+	 */
+	public boolean isParallel() {
+		return this.topicEngines != null;
+	}
+
+	/**
+	 * Tells whether syncs are sequenced centrally, in which case the server
+	 * rewrites them and every site must get them in the order they were
+	 * processed, even ones that have no effect on the moderator.
+	 *
+	 * @return True if the server runs a {@link org.coweb.oe.Sequencer}
+	 */
+	public boolean isSequenced() {
+		return this.sequencer != null;
+	}
+
+	/**
+	 * Gets the object to hold while processing a sync on a topic and
+	 * delivering the result in order with the other syncs on that topic.
+	 *
+	 * @param topic Collab topic of the sync
+	 * @return Lock object for the topic
+	 */
+	public Object getTopicLock(String topic) {
+		if (this.topicEngines == null) {
+			return this;
+		}
+		if (this.isRegisterTopic(topic)) {
+			// register topics have no engine to lock
+			return this.getRegisters(topic);
+		}
+		try {
+			return this.getTopicEngine(topic);
+		} catch (OperationEngineException e) {
+			e.printStackTrace();
+			return this;
+		}
+	}
+
+	/**
+	 * Gets the engine for a topic, creating it on first use. New engines
+	 * learn the latest context of each remote site so they do not hold back
+	 * purges until the next engine syncs arrive.
+	 */
+	private OperationEngine getTopicEngine(String topic)
+			throws OperationEngineException {
+		OperationEngine engine = this.topicEngines.get(topic);
+		if (engine != null) {
+			return engine;
+		}
+		synchronized (this.topicEngines) {
+			engine = this.topicEngines.get(topic);
+			if (engine == null) {
+				engine = new OperationEngine(this.siteId);
+				engine.setPartitioned(true);
+				engine.setDeferredReclaim(true);
+				engine.freezeSite(0);
+				synchronized (this.remoteContexts) {
+					for (Map.Entry<Integer, int[]> e :
+							this.remoteContexts.entrySet()) {
+						engine.pushSyncWithSites(e.getKey().intValue(),
+								e.getValue());
+					}
+					for (Integer site : this.departed) {
+						engine.freezeSite(site.intValue());
+					}
+					// published while still locked, so a site leaving now
+					// either is in departed or finds this engine
+					this.topicEngines.put(topic, engine);
+				}
+			}
+		}
+		return engine;
 	}
 
 	/**
@@ -63,6 +554,15 @@ public class OperationEngineHandler {
 	public void localSync(String topic, Object value,
 			String type, int position) {
 
+		if (this.topicEngines != null) {
+			this.parallelLocalSync(topic, value, type, position);
+			return;
+		}
+		if (this.sequencer != null) {
+			this.sequencerLocalSync(topic, value, type, position);
+			return;
+		}
+
 		/* Construct op, send it, then process it in the op engine. */
 		String jsonValue = JSON.toString(value);
 		ContextVector cv = null;
@@ -71,7 +571,17 @@ public class OperationEngineHandler {
 			try {
 				op = this.engine.createOp(true, topic, jsonValue, type,
 						position, -1, null, -1);
-				cv = op.getContextVector();
+				if (this.batchRest != null && topic.equals(this.batchTopic)) {
+					op = this.bridgeBatch(op);
+				}
+				if (op != null) {
+					jsonValue = op.getValue();
+					position = op.getPosition();
+					cv = op.getContextVector();
+				} else {
+					// the rest of the batch does the same
+					type = null;
+				}
 			} catch (OperationEngineException e) {
 				log.warning("Bad type: " + type + ", using null type instead.");
 				type = null;
@@ -100,9 +610,158 @@ public class OperationEngineHandler {
 		this.sessionHandler.sendModeratorSync(message);
 
 		if (null != type) {
+			this.sentLocalOp(cv.getSites(), op.getSeqId());
 			synchronized(this.engine) {
-				this.engine.pushLocalOp(op);
+				try {
+					if ("update".equals(type) && this.isRegisterTopic(topic)) {
+						this.engine.skipOp(op);
+					} else {
+						this.engine.pushLocalOp(op);
+					}
+				} catch (OperationEngineException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves a local op that the moderator made while it was taking the ops
+	 * of a batch past the ops it has not taken yet, which the engine already
+	 * processed, and those ops past the local op, so they fit the state of
+	 * the moderator.
+	 *
+	 * @return Local op in the context of the engine, or null if the rest of
+	 *         the batch cancels it
+	 */
+	private Operation bridgeBatch(Operation op)
+			throws OperationEngineException {
+		ListIterator<Operation> it = this.batchRest.listIterator();
+		while (op != null && it.hasNext()) {
+			Operation rest = it.next();
+			if (rest != null) {
+				Operation before = op.copy();
+				op = Sequencer.include(op, rest);
+				it.set(Sequencer.include(rest, before));
+			}
+		}
+		return op;
+	}
+
+	/**
+	 * Local sync with an engine per topic. The op is stamped with the session
+	 * context and the next sequence number for this site across all topics,
+	 * and it goes into the engine before it is sent so that the echo from the
+	 * server is recognized as already processed. Sending while the session
+	 * context is held keeps the local ops in sequence order on the wire.
+	 */
+	private void parallelLocalSync(String topic, Object value,
+			String type, int position) {
+		String jsonValue = JSON.toString(value);
+		Map<String, Object> message = new HashMap<String, Object>();
+		message.put("topic", topic);
+		message.put("value", jsonValue);
+		message.put("position", position);
+
+		if (null == type) {
+			message.put("type", null);
+			message.put("context", null);
+			this.sessionHandler.sendModeratorSync(message);
+			return;
+		}
+
+		if ("update".equals(type) && this.isRegisterTopic(topic)) {
+			this.parallelRegisterSync(message);
+			return;
+		}
+
+		this.stateLock.readLock().lock();
+		try {
+			OperationEngine engine = this.getTopicEngine(topic);
+			synchronized (engine) {
+				synchronized (this.sessionContext) {
+					Operation op = null;
+					try {
+						op = engine.createOpInContext(topic, jsonValue, type,
+								position, this.sessionContext);
+					} catch (OperationEngineException e) {
+						log.warning("Bad type: " + type +
+								", using null type instead.");
+					}
+					if (null != op) {
+						engine.pushLocalOp(op);
+						this.sessionContext.setSeqForSite(this.siteId,
+								op.getSeqId());
+						message.put("type", type);
+						message.put("context", toIntegers(
+								op.getContextVector().getSites()));
+						this.sentLocalOp(op.getContextVector().getSites(),
+								op.getSeqId());
+					} else {
+						message.put("type", null);
+						message.put("context", null);
+					}
+					this.sessionHandler.sendModeratorSync(message);
+				}
+			}
+		} catch (OperationEngineException e) {
+			e.printStackTrace();
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Local sync with the central sequencer. The op waits in the sequencer
+	 * until its echo from the server gives it a place in the total order,
+	 * and tells the server the revision it was made at instead of a context.
+	 * It is sent while the sequencer is held, so the local ops reach the
+	 * server in the order they wait in.
+	 */
+	private void sequencerLocalSync(String topic, Object value,
+			String type, int position) {
+		String jsonValue = JSON.toString(value);
+		Map<String, Object> message = new HashMap<String, Object>();
+		message.put("topic", topic);
+		message.put("value", jsonValue);
+		message.put("position", position);
+		message.put("context", null);
+		synchronized (this) {
+			if (null != type) {
+				try {
+					this.sequencer.pushLocal(topic, jsonValue, type, position);
+					message.put("revision", this.sequencer.getRevision());
+				} catch (OperationEngineException e) {
+					log.warning("Bad type: " + type +
+							", using null type instead.");
+					type = null;
+				}
+			}
+			message.put("type", type);
+			this.sessionHandler.sendModeratorSync(message);
+		}
+	}
+
+	/**
+	 * Local update on a register topic with an engine per topic. It takes the
+	 * next sequence number for this site like any local op, but goes into no
+	 * engine.
+	 */
+	private void parallelRegisterSync(Map<String, Object> message) {
+		this.stateLock.readLock().lock();
+		try {
+			synchronized (this.sessionContext) {
+				int[] sites = this.sessionContext.copySites();
+				int seq = this.sessionContext.getSeqForSite(this.siteId) + 1;
+				this.sessionContext.setSeqForSite(this.siteId, seq);
+				this.registerUpdates.incrementAndGet();
+				message.put("type", "update");
+				message.put("context", toIntegers(sites));
+				this.sentLocalOp(sites, seq);
+				this.sessionHandler.sendModeratorSync(message);
 			}
+		} finally {
+			this.stateLock.readLock().unlock();
 		}
 	}
 
@@ -118,23 +777,19 @@ public class OperationEngineHandler {
 	 *        <li>Integer position Operation linear position
 	 *        <li>Integer site Unique integer ID of the sending site
 	 *        <li>Integer[] sites Context vector as an array of integers (use {@link OperationEngineHandler#getSites} to convert from Integer[] to int[])
+	 *        <li>Integer revision Or with a central sequencer, the order of
+	 *        the last sync the sending site received
 	 */
 	public Map<String, Object> syncInbound(Map<String, Object> data) {
+
+		// a batch the moderator did not take to the end is over
+		this.batchRest = null;
 			
 		//get the topic
 		String topic = (String) data.get("topic");
 		
 		//get the value
-		String value = null;
-		if(data.get("value") instanceof String) 
-			value = (String)data.get("value");
-		else {
-			@SuppressWarnings("unchecked")
-			Map<String, Object> val = (Map<String, Object>) data.get("value");
-			if (val != null) {
-				value = JSON.toString(val);
-			}
-		}
+		String value = encodeValue(data.get("value"));
 		
 
 		//get the type
@@ -164,10 +819,44 @@ public class OperationEngineHandler {
 
 		//push the operation onto the op engine.
 		Operation op = null;
-		if (sites != null && type != null) {
+		Integer[] ranges = null;
+		if (this.sequencer != null) {
+			if (type != null) {
+				try {
+					op = this.sequencerPush(data, topic, value, type,
+							position, site, order);
+				} catch (OperationEngineException e) {
+					e.printStackTrace();
+					return null;
+				}
+				if (op == null) {
+					// still lets the sequencer purge
+					this.activity(false);
+					return null;
+				}
+			} else if (site == this.siteId) {
+				return null;
+			}
+		} else if (sites != null && "update".equals(type) &&
+				this.isRegisterTopic(topic)) {
 			try {
-				op = this.engine.push(false, topic, value, type, position,
-						site, sites, order);
+				if (!this.registerPush(topic, value, position, site, sites,
+						order)) {
+					return null;
+				}
+			} catch (OperationEngineException e) {
+				e.printStackTrace();
+				return null;
+			}
+		} else if (sites != null && type != null) {
+			try {
+				if (this.topicEngines != null) {
+					op = this.parallelPush(topic, value, type, position,
+							site, sites, order);
+				} else {
+					op = this.engine.push(false, topic, value, type, position,
+							site, sites, order);
+				}
 			} catch (OperationEngineException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -176,43 +865,492 @@ public class OperationEngineHandler {
 
 			if (op == null)
 				return null;
-
-			value = op.getValue();
-			position = op.getPosition();
-		} else if (site == this.engine.getSiteId()) {
+		} else if (site == this.siteId) {
 			// op was echo'ed from server for op engine, but type null means
 			// op engine doesn't care about this message anyway so drop it
 			return null;
 		}
+
+		if (op != null) {
+			value = op.getValue();
+			position = op.getPosition();
+			if (op instanceof DeleteRangeOperation) {
+				// concurrent inserts may have split the deleted run
+				ranges = toIntegers(((DeleteRangeOperation) op).getRanges());
+			}
+		}
 		
+		this.activity(true);
+
+		return toHubEvent(topic, type, value, position, site, ranges);
+	}
+
+	/**
+	 * Gets the JSON-encoded form of the value of a sync.
+	 */
+	private static String encodeValue(Object value) {
+		if (value instanceof String)
+			return (String) value;
+		if (value == null)
+			return null;
+		return JSON.toString(value);
+	}
+
+	/**
+	 * Packs an op into a hub event for the moderator.
+	 */
+	private static Map<String, Object> toHubEvent(String topic, String type,
+			String value, int position, int site, Integer[] ranges) {
 		// value is always json-encoded to avoid ref sharing problems with ops
-		// stored inside the op engine history buffer, so decode it and
-		// pack it into a hub event
+		// stored inside the op engine history buffer, so decode it
 		HashMap<String, Object> hashMap = new HashMap<String, Object>();
 		hashMap.put("position", new Integer(position));
 		hashMap.put("type", type);
 		hashMap.put("value", JSON.parse(value));
 		hashMap.put("site", site);
 		hashMap.put("topic", topic);
-		
-		this.shouldPurge = true;
-		this.shouldSync = true;
-
+		if (ranges != null) {
+			hashMap.put("ranges", ranges);
+		}
 		return hashMap;
 	}
-	
+
+	private static Map<String, Object> toHubEvent(String topic, int site,
+			Operation op) {
+		Integer[] ranges = null;
+		if (op instanceof DeleteRangeOperation) {
+			ranges = toIntegers(((DeleteRangeOperation) op).getRanges());
+		}
+		return toHubEvent(topic, op.getType().getName(), op.getValue(),
+				op.getPosition(), site, ranges);
+	}
+
 	/**
-	 * Called when the listener receives a context vector from a remote op
-	 * engine (topics.ENGINE_SYNC). Integrates the context vector into context
-	 * vector table of the local engine. Sets a flag saying the local op engine
-	 * should run garbage collection over its history. 
-	 * 
-	 * @param data Map containing the following.
+	 * Called by the session for an app sync carrying a batch of ops that a
+	 * remote site made on one topic one after the other, with nothing
+	 * received in between. The whole batch goes through the engine at once.
+	 * With a central sequencer each op of the batch is rewritten in place
+	 * like a single sync.
+	 *
+	 * @param data Map like for syncInbound, but with the ops in
+	 *        <li>Object[] batch Maps with the value, type and position of
+	 *        each op, in the order the site made them
+	 *        <p>The context or revision is the one of the first op, and the
+	 *        order its place in the total order; the other ops follow it.
+	 * @return Hub events for the ops with an effect, for the moderator to
+	 *         take one at a time while this handler is held, or null if the
+	 *         batch failed
+	 */
+	public Iterator<Map<String, Object>> syncInboundBatch(
+			Map<String, Object> data) {
+		this.batchRest = null;
+		String topic = (String) data.get("topic");
+		Object[] batch = (Object[]) data.get("batch");
+		Number ste = (Number) data.get("siteId");
+		int site = ste == null ? 0 : ste.intValue();
+		Number ord = (Number) data.get("order");
+		int order = ord == null ? 0 : ord.intValue();
+		int[] sites = this.getSites(data);
+
+		String[] values = new String[batch.length];
+		String[] types = new String[batch.length];
+		int[] positions = new int[batch.length];
+		for (int i = 0; i < batch.length; i++) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> op = (Map<String, Object>) batch[i];
+			values[i] = encodeValue(op.get("value"));
+			types[i] = (String) op.get("type");
+			Number pos = (Number) op.get("position");
+			positions[i] = pos == null ? 0 : pos.intValue();
+		}
+
+		Operation[] ops;
+		try {
+			if (this.sequencer != null) {
+				ops = this.sequencerBatch(data, batch, topic, values, types,
+						positions, site, order);
+			} else if (sites == null) {
+				throw new OperationEngineException("batch from site " + site +
+						" has no context");
+			} else if (this.isRegisterTopic(topic)) {
+				ops = null;
+				List<Map<String, Object>> events =
+					new ArrayList<Map<String, Object>>();
+				int[] context = Arrays.copyOf(sites, Math.max(sites.length,
+						site + 1));
+				for (int i = 0; i < types.length; i++) {
+					if (!"update".equals(types[i])) {
+						throw new OperationEngineException("batch on " +
+								"register topic " + topic + " has a " +
+								types[i]);
+					}
+					if (this.registerPush(topic, values[i], positions[i],
+							site, context, order + i)) {
+						events.add(toHubEvent(topic, types[i], values[i],
+								positions[i], site, null));
+					}
+					++context[site];
+				}
+				this.activity(true);
+				return events.iterator();
+			} else if (this.topicEngines != null) {
+				ops = this.parallelPushBatch(topic, values, types, positions,
+						site, sites, order);
+			} else {
+				ops = this.engine.pushBatch(topic, values, types, positions,
+						site, sites, order);
+			}
+		} catch (OperationEngineException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		this.activity(true);
+		if (this.topicEngines != null) {
+			// the moderator takes them after the topic is released anyway
+			List<Map<String, Object>> events =
+				new ArrayList<Map<String, Object>>();
+			for (Operation op : ops) {
+				if (op != null) {
+					events.add(toHubEvent(topic, site, op));
+				}
+			}
+			return events.iterator();
+		}
+		this.batchRest = new LinkedList<Operation>(Arrays.asList(ops));
+		this.batchTopic = topic;
+		return new BatchEvents(topic, site);
+	}
+
+	/**
+	 * Hub events for the ops of a batch, packed as the moderator takes them
+	 * so they reflect the syncs it sent in the meantime. With a central
+	 * sequencer those syncs are still pending in the sequencer; otherwise
+	 * localSync bridges them past the rest of the batch.
+	 */
+	private class BatchEvents implements Iterator<Map<String, Object>> {
+		private final String topic;
+		private final int site;
+		private Operation next = null;
+
+		BatchEvents(String topic, int site) {
+			this.topic = topic;
+			this.site = site;
+		}
+
+		public boolean hasNext() {
+			while (this.next == null && batchRest != null &&
+					!batchRest.isEmpty()) {
+				Operation op = batchRest.removeFirst();
+				if (op != null && sequencer != null) {
+					try {
+						op = sequencer.toLocal(op);
+					} catch (OperationEngineException e) {
+						e.printStackTrace();
+						op = null;
+					}
+				}
+				this.next = op;
+			}
+			if (this.next == null) {
+				batchRest = null;
+				return false;
+			}
+			return true;
+		}
+
+		public Map<String, Object> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Operation op = this.next;
+			this.next = null;
+			return toHubEvent(this.topic, this.site, op);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Sequences a remote op, or the echo of a local one, and rewrites the
+	 * sync in place so the other sites get the op as sequenced. A sync the
+	 * transforms cancelled still goes out, marked noop, so its sender knows
+	 * it went through.
+	 *
+	 * @return Op to apply to the local state, or null if it has no effect
+	 *         here
+	 */
+	private Operation sequencerPush(Map<String, Object> data, String topic,
+			String value, String type, int position, int site, int order)
+			throws OperationEngineException {
+		Operation op;
+		Operation local = null;
+		if (site == this.siteId) {
+			op = this.sequencer.pushLocalEcho(order);
+		} else {
+			Number rev = (Number) data.get("revision");
+			if (rev == null) {
+				throw new OperationEngineException("sync from site " + site +
+						" has no revision");
+			}
+			op = this.sequencer.push(topic, value, type, position, site,
+					rev.intValue(), order);
+			local = this.sequencer.toLocal(op);
+		}
+		data.remove("revision");
+		data.remove("context");
+		putSequenced(data, op, value);
+		return local;
+	}
+
+	/**
+	 * Sequences a remote batch and rewrites each op of it in place, see
+	 * sequencerPush.
+	 *
+	 * @return Sequenced ops, null for the ones the transforms cancelled
+	 */
+	private Operation[] sequencerBatch(Map<String, Object> data,
+			Object[] batch, String topic, String[] values, String[] types,
+			int[] positions, int site, int order)
+			throws OperationEngineException {
+		Number rev = (Number) data.get("revision");
+		if (rev == null || site == this.siteId) {
+			throw new OperationEngineException("batch from site " + site +
+					" has no revision");
+		}
+		Operation[] ops = this.sequencer.pushBatch(topic, values, types,
+				positions, site, rev.intValue(), order);
+		data.remove("revision");
+		data.remove("context");
+		for (int i = 0; i < batch.length; i++) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> sync = (Map<String, Object>) batch[i];
+			putSequenced(sync, ops[i], values[i]);
+		}
+		return ops;
+	}
+
+	/**
+	 * Rewrites a sync or an op of a batch to carry the op as sequenced.
+	 */
+	private static void putSequenced(Map<String, Object> sync, Operation op,
+			String value) {
+		if (op == null) {
+			sync.put("noop", Boolean.TRUE);
+			return;
+		}
+		sync.put("position", Integer.valueOf(op.getPosition()));
+		if (op.getValue() != null && !op.getValue().equals(value)) {
+			// keep the encoding the sync came with
+			sync.put("value", sync.get("value") instanceof String ?
+					op.getValue() : JSON.parse(op.getValue()));
+		}
+		if (op instanceof DeleteRangeOperation) {
+			sync.put("ranges", toIntegers(
+					((DeleteRangeOperation) op).getRanges()));
+		}
+	}
+
+	/**
+	 * Pushes a remote op through the engine for its topic and adds it to the
+	 * session context once processed.
+	 */
+	private Operation parallelPush(String topic, String value, String type,
+			int position, int site, int[] sites, int order)
+			throws OperationEngineException {
+		this.stateLock.readLock().lock();
+		try {
+			OperationEngine engine = this.getTopicEngine(topic);
+			Operation op;
+			synchronized (engine) {
+				op = engine.push(false, topic, value, type, position, site,
+						sites, order);
+				this.raiseSessionContext(site, sites);
+			}
+			return op;
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Pushes a remote batch through the engine for its topic and adds the
+	 * context of its last op to the session context.
+	 */
+	private Operation[] parallelPushBatch(String topic, String[] values,
+			String[] types, int[] positions, int site, int[] sites, int order)
+			throws OperationEngineException {
+		int[] last = Arrays.copyOf(sites, Math.max(sites.length, site + 1));
+		last[site] += types.length - 1;
+		this.stateLock.readLock().lock();
+		try {
+			OperationEngine engine = this.getTopicEngine(topic);
+			Operation[] ops;
+			synchronized (engine) {
+				ops = engine.pushBatch(topic, values, types, positions, site,
+						sites, order);
+				this.raiseSessionContext(site, last);
+			}
+			return ops;
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a remote op and its context to the session context.
+	 */
+	private void raiseSessionContext(int site, int[] sites) {
+		synchronized (this.sessionContext) {
+			for (int i = 0; i < sites.length; i++) {
+				if (sites[i] > this.sessionContext.getSeqForSite(i)) {
+					this.sessionContext.setSeqForSite(i, sites[i]);
+				}
+			}
+			int seq = sites.length > site ? sites[site] + 1 : 1;
+			if (seq > this.sessionContext.getSeqForSite(site)) {
+				this.sessionContext.setSeqForSite(site, seq);
+			}
+		}
+	}
+
+	/**
+	 * Update a register position holds: its site, sequence number and
+	 * context, which tell whether a later update saw it.
+	 */
+	private static class Register {
+		final int site;
+		final int seq;
+		final int[] sites;
+
+		Register(int site, int[] sites) {
+			this.site = site;
+			this.seq = seqForSite(sites, site) + 1;
+			this.sites = sites.clone();
+		}
+
+		/**
+		 * Tells whether this update replaces the one held. It does if its
+		 * context includes the held one, and loses if the held one's context
+		 * includes it. Concurrent updates go to the lower site ID, which is
+		 * how UpdateOperation.transformWithUpdate resolves them on clients.
+		 */
+		boolean beats(Register held) {
+			if (seqForSite(this.sites, held.site) >= held.seq) {
+				return true;
+			}
+			if (seqForSite(held.sites, this.site) >= this.seq) {
+				return false;
+			}
+			return this.site < held.site;
+		}
+
+		private static int seqForSite(int[] sites, int site) {
+			return site < sites.length ? sites[site] : 0;
+		}
+	}
+
+	/**
+	 * Takes a remote update on a register topic without transforming it or
+	 * keeping it in any history. The update replaces the value at its
+	 * position only if it would win over the update the position holds on
+	 * the clients, so updates processed out of order are dropped instead of
+	 * overwriting newer ones. The engines still count the update in their
+	 * context so the sequence numbers of the sender stay in step.
+	 *
+	 * @return True if the update should be applied
+	 */
+	private boolean registerPush(String topic, String value, int position,
+			int site, int[] sites, int order) throws OperationEngineException {
+		boolean fresh;
+		if (this.topicEngines != null) {
+			this.stateLock.readLock().lock();
+			try {
+				this.raiseSessionContext(site, sites);
+				this.registerUpdates.incrementAndGet();
+			} finally {
+				this.stateLock.readLock().unlock();
+			}
+			// the moderator applied its own updates when it sent them
+			fresh = site != this.siteId;
+		} else {
+			Operation op = this.engine.createOp(false, topic, value,
+					"update", position, site, sites, order);
+			fresh = this.engine.skipOp(op);
+		}
+
+		Map<Integer, Register> held = this.getRegisters(topic);
+		Integer key = Integer.valueOf(position);
+		Register update = new Register(site, sites);
+		Register last = held.get(key);
+		if (last != null && !update.beats(last)) {
+			return false;
+		}
+		held.put(key, update);
+		return fresh;
+	}
+
+	/**
+	 * Tells whether updates on a topic are last-writer-wins registers.
+	 */
+	private boolean isRegisterTopic(String topic) {
+		if (this.registerTopics == null || topic == null) {
+			return false;
+		}
+		for (String name : this.registerTopics) {
+			if (name.endsWith("*") ? topic.startsWith(name.substring(0,
+					name.length() - 1)) : topic.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the registers of a topic, creating them on first use.
+	 */
+	private Map<Integer, Register> getRegisters(String topic) {
+		Map<Integer, Register> held = this.registers.get(topic);
+		if (held == null) {
+			this.registers.putIfAbsent(topic,
+					new HashMap<Integer, Register>());
+			held = this.registers.get(topic);
+		}
+		return held;
+	}
+
+	/**
+	 * Called when the listener receives a context vector from a remote op
+	 * engine (topics.ENGINE_SYNC). Integrates the context vector into context
+	 * vector table of the local engine. Sets a flag saying the local op engine
+	 * should run garbage collection over its history. 
+	 * 
+	 * @param data Map containing the following.
 	 *        <li>Integer site Unique integer ID of the sending site
 	 *        <li>int[] sites Context vector as an array of integers
+	 *        <li>int[] delta Or only the changed entries, as site ID and
+	 *        sequence number pairs
+	 *        <li>Integer revision Or with a central sequencer, the order of
+	 *        the last sync the site received
 	 */
 	public void engineSyncInbound(Map<String, Object> data) {
+		if (this.sequencer != null) {
+			Number ste = (Number) data.get("siteId");
+			Number rev = (Number) data.get("revision");
+			if (ste != null && rev != null &&
+					ste.intValue() != this.siteId) {
+				this.sequencer.ack(ste.intValue(), rev.intValue());
+				this.activity(false);
+			}
+			return;
+		}
 		int[] sites = this.getSites(data);
+		int[] changes = null;
+		if (sites == null && data.get("delta") != null) {
+			changes = this.getInts((Object[]) data.get("delta"));
+		}
 		
 		Integer ste = (Integer) data.get("siteId");
 		int site = -1;
@@ -221,24 +1359,95 @@ public class OperationEngineHandler {
 		}
 		
 		// ignore our own engine syncs
-		if(site == this.engine.getSiteId()) {
+		if(site == this.siteId) {
 			return;
 		}
 		
 		// give the engine the data
 		try {
-			this.engine.pushSyncWithSites(site, sites);
+			if (changes != null) {
+				if (this.topicEngines != null) {
+					this.parallelEngineSync(site, this.applyDelta(site, changes));
+				} else {
+					this.engine.pushSyncDelta(site, changes);
+				}
+			} else if (this.topicEngines != null) {
+				this.parallelEngineSync(site, sites);
+			} else {
+				this.engine.pushSyncWithSites(site, sites);
+			}
 		} catch(OperationEngineException e) {
 			log.info("UnmanagedHubListener: failed to recv engine sync " + 
 				site + " " + sites + " " + e.getMessage());
 		}
 		// we've received remote info, allow purge
-		this.shouldPurge = true;
+		this.activity(false);
 	}
 	
+	/**
+	 * Gives a remote context vector to every topic engine, since it bounds
+	 * what each of them can purge.
+	 */
+	private void parallelEngineSync(int site, int[] sites)
+			throws OperationEngineException {
+		synchronized (this.remoteContexts) {
+			this.remoteContexts.put(Integer.valueOf(site),
+					Arrays.copyOf(sites, sites.length));
+		}
+		this.stateLock.readLock().lock();
+		try {
+			for (OperationEngine engine : this.topicEngines.values()) {
+				synchronized (engine) {
+					engine.pushSyncWithSites(site, sites);
+				}
+			}
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Raises the latest context vector of a remote site by a delta engine
+	 * sync and gets the result, which the topic engines take as a full sync.
+	 */
+	private int[] applyDelta(int site, int[] changes) {
+		synchronized (this.remoteContexts) {
+			int[] sites = this.remoteContexts.get(Integer.valueOf(site));
+			int l = sites == null ? 0 : sites.length;
+			for (int i = 0; i < changes.length; i += 2) {
+				l = Math.max(l, changes[i] + 1);
+			}
+			sites = sites == null ? new int[l] : Arrays.copyOf(sites, l);
+			for (int i = 0; i < changes.length; i += 2) {
+				sites[changes[i]] = Math.max(sites[changes[i]], changes[i+1]);
+			}
+			return sites;
+		}
+	}
+
+	/**
+	 * Notes that a local op told the other sites its context and itself.
+	 */
+	private void sentLocalOp(int[] sites, int seq) {
+		int[] sent = Arrays.copyOf(sites, Math.max(sites.length,
+				this.siteId + 1));
+		sent[this.siteId] = seq;
+		this.sentContext = sent;
+	}
+
+	private static Integer[] toIntegers(int[] sites) {
+		Integer[] arr = new Integer[sites.length];
+		for (int i = 0; i < sites.length; ++i)
+			arr[i] = sites[i];
+		return arr;
+	}
+
 	private int[] getSites(Map<String, Object> data) {
+		return this.getInts((Object[])data.get("context"));
+	}
+
+	private int[] getInts(Object[] objArr) {
 		int[] sites = null;
-		Object[] objArr = (Object[])data.get("context");
 		if(objArr != null) {
 			sites = new int[objArr.length];
 			for(int i=0; i<objArr.length; i++)
@@ -249,76 +1458,465 @@ public class OperationEngineHandler {
 	}
 
 	/**
-	  * Wrapper for access to {@link org.coweb.oe.OperationEngine#getState}.
+	  * Wrapper for access to {@link org.coweb.oe.MergeEngine#getState}.
+	  * The state is built again only when the engine version moved since
+	  * the last call, so it must not be modified by callers. The engine lock
+	  * is held just long enough to take a
+	  * {@link org.coweb.oe.EngineState} snapshot; the state is built from it
+	  * while syncs go on. Callers need not hold any lock.
 	  * 
 	  * @return engine state
 	  */
 	public Object[] getEngineState() {
-		return this.engine.getState();
+		synchronized (this.stateCacheLock) {
+			if (this.topicEngines != null) {
+				return this.getMergedEngineState();
+			}
+			if (this.sequencer != null) {
+				// small, and changes with every sync
+				synchronized (this) {
+					return this.sequencer.getState();
+				}
+			}
+			EngineState snapshot;
+			// the lock syncs are processed under, then the one local ops are
+			// pushed under
+			synchronized (this) {
+				synchronized (this.engine) {
+					if (this.cachedState != null &&
+							this.stateVersion == this.engine.getVersion()) {
+						return this.cachedState;
+					}
+					snapshot = this.engine.getStateSnapshot();
+				}
+			}
+			this.cachedState = snapshot.toArray();
+			this.stateVersion = snapshot.getVersion();
+			this.stateEncodable = snapshot.isEncodable();
+			return this.cachedState;
+		}
+	}
+
+	/**
+	  * Gets the engine state as a compact binary snapshot. Like the state, it
+	  * is encoded again only when the engine version moved.
+	  * 
+	  * @return snapshot bytes or null if the state could not be encoded or
+	  *         the engine state has no binary form
+	  */
+	public byte[] getEngineSnapshot() {
+		synchronized (this.stateCacheLock) {
+			Object[] state = this.getEngineState();
+			if (this.sequencer != null ||
+					(this.topicEngines == null && !this.stateEncodable)) {
+				return null;
+			}
+			if (this.cachedSnapshot != null &&
+					this.snapshotVersion == this.stateVersion) {
+				return this.cachedSnapshot;
+			}
+			try {
+				this.cachedSnapshot = EngineStateCodec.encode(state);
+				this.snapshotVersion = this.stateVersion;
+				return this.cachedSnapshot;
+			} catch (OperationEngineException e) {
+				log.warning("failed to encode engine snapshot: " +
+						e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Version of the state of all topic engines, see
+	 * {@link org.coweb.oe.OperationEngine#getVersion}. Engines are only
+	 * ever added, so the sum only grows too.
+	 */
+	private long sumTopicVersions() {
+		long version = this.topicEngines.size() + this.registerUpdates.get();
+		for (OperationEngine engine : this.topicEngines.values()) {
+			version += engine.getVersion();
+		}
+		return version;
+	}
+
+	/**
+	 * Merges the state of all topic engines into the state of one engine
+	 * that processed every op in the session, for a late joiner. The
+	 * histories are disjoint so they are simply joined, and each context
+	 * vector table row takes the highest sequence number any engine knows
+	 * for a site. Purges use one bound for all engines, so the joined
+	 * history has no gaps a single engine would trip over.
+	 *
+	 * The syncs are held off only while every engine takes a snapshot; the
+	 * merge runs after they resume.
+	 */
+	private Object[] getMergedEngineState() {
+		long version;
+		int[] context;
+		List<EngineState> snapshots = new ArrayList<EngineState>();
+		this.stateLock.writeLock().lock();
+		try {
+			version = this.sumTopicVersions();
+			if (this.cachedState != null && this.stateVersion == version) {
+				return this.cachedState;
+			}
+			context = this.sessionContext.copySites();
+			for (OperationEngine engine : this.topicEngines.values()) {
+				snapshots.add(engine.getStateSnapshot());
+			}
+		} finally {
+			this.stateLock.writeLock().unlock();
+		}
+
+		int[][] rows = new int[this.siteId + 1][];
+		List<Object> ops = new ArrayList<Object>();
+		int[] frozen = new int[0];
+		for (EngineState snapshot : snapshots) {
+			Object[] state = snapshot.toArray();
+			int[][] cvt = (int[][]) state[0];
+			if (cvt.length > rows.length) {
+				rows = Arrays.copyOf(rows, cvt.length);
+			}
+			for (int i = 0; i < cvt.length; i++) {
+				rows[i] = maxSites(rows[i], cvt[i]);
+			}
+			ops.addAll(Arrays.asList((Object[]) state[1]));
+			frozen = (int[]) state[3];
+		}
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = maxSites(rows[i], new int[0]);
+		}
+		// this site and the ones frozen to it are as current as the
+		// session
+		rows[this.siteId] = context;
+		for (int i : frozen) {
+			if (i < rows.length) {
+				rows[i] = Arrays.copyOf(context, context.length);
+			}
+		}
+		Object[] ret = { rows, ops.toArray(), Integer.valueOf(this.siteId),
+				frozen };
+		this.cachedState = ret;
+		this.stateVersion = version;
+		return ret;
+	}
+
+	private static int[] maxSites(int[] a, int[] b) {
+		if (a == null) {
+			return Arrays.copyOf(b, b.length);
+		}
+		int[] max = Arrays.copyOf(a, Math.max(a.length, b.length));
+		for (int i = 0; i < b.length; i++) {
+			max[i] = Math.max(max[i], b[i]);
+		}
+		return max;
+	}
+
+	/**
+	 * Purges the topic engines through one bound. It starts at the session
+	 * context and drops to the minimum context of the remote sites known to
+	 * any engine. Then the purge plans of the engines lower it in turn to
+	 * the contexts of the ops they keep, until none of them lowers it any
+	 * more, and each engine is cut through it. The engines are only locked
+	 * to take their plans and to cut them.
+	 */
+	private void parallelPurge() throws OperationEngineException {
+		List<OperationEngine> engines;
+		List<PurgePlan> plans = new ArrayList<PurgePlan>();
+		this.stateLock.readLock().lock();
+		try {
+			engines = new ArrayList<OperationEngine>(
+					this.topicEngines.values());
+			int[] bound;
+			synchronized (this.sessionContext) {
+				bound = this.sessionContext.copySites();
+			}
+			for (OperationEngine engine : engines) {
+				PurgePlan plan;
+				synchronized (engine) {
+					plan = engine.planPurge();
+				}
+				plans.add(plan);
+				int[] mcv = plan.getMinimumRemoteContext();
+				if (mcv == null) {
+					continue;
+				}
+				for (int i = 0; i < bound.length; i++) {
+					bound[i] = Math.min(bound[i],
+							i < mcv.length ? mcv[i] : 0);
+				}
+			}
+			boolean lowered = true;
+			while (lowered) {
+				lowered = false;
+				for (PurgePlan plan : plans) {
+					lowered |= plan.lowerBound(bound);
+				}
+			}
+			for (int i = 0; i < engines.size(); i++) {
+				PurgePlan plan = plans.get(i);
+				plan.settle(bound);
+				OperationEngine engine = engines.get(i);
+				synchronized (engine) {
+					engine.purgeThrough(plan);
+				}
+			}
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+		for (OperationEngine engine : engines) {
+			engine.reclaim();
+		}
 	}
 
 	/**
 	  * Called whenever the SessionHandler that owns this OperationEngineHandler is ending. All
-	  * TimerTasks are stopped from repeating.
+	  * tasks are stopped from repeating.
 	  *
 	  * Only package level access.
 	  */
 	void shutdown() {
 		this.purgeTask.cancel();
 		this.syncTask.cancel();
+		synchronized (this) {
+			if (this.stopped) {
+				return;
+			}
+			this.stopped = true;
+		}
+		releaseScheduler();
 	}
-	
+
 	/**
-	 * Called on a timer to purge the local op engine history buffer if the
-	 * op engine received a remote event or context vector since the last time
-	 * the timer fired.
+	 * Purges on the purger, as handed over by the purge task, so the wait
+	 * for the locks falls on a thread of the purger and not on the
+	 * scheduler shared by all sessions.
 	 */
-	class PurgeTask extends TimerTask {
-		
+	private void runPurge() {
+		try {
+			if (this.sequencer != null) {
+				synchronized (this) {
+					this.sequencer.purge();
+				}
+			} else if (this.topicEngines != null) {
+				this.parallelPurge();
+			} else if (this.engine instanceof OperationEngine) {
+				this.planPurge((OperationEngine) this.engine);
+			} else {
+				synchronized (this) {
+					synchronized (this.engine) {
+						this.engine.purge();
+					}
+				}
+			}
+		} catch (OperationEngineException e) {
+			e.printStackTrace();
+		} finally {
+			// what is left counts against the threshold for next time
+			this.purgeAt = this.getHistorySize() + this.purgeThreshold;
+			this.purgeQueued.set(false);
+		}
+	}
+
+	/**
+	 * Purges the engine with a purge plan. The locks syncs and local ops
+	 * are processed under are held to take the plan and to cut the purged
+	 * ops off, but not while the plan finds the bound, nor while the purged
+	 * ops are released. An engine that holds no ops has nothing to plan.
+	 */
+	private void planPurge(OperationEngine engine)
+			throws OperationEngineException {
+		if (engine.getBufferSize() == 0) {
+			return;
+		}
+		PurgePlan plan;
+		synchronized (this) {
+			synchronized (engine) {
+				plan = engine.planPurge();
+			}
+		}
+		plan.settle();
+		synchronized (this) {
+			synchronized (engine) {
+				engine.purgeThrough(plan);
+			}
+		}
+		engine.reclaim();
+	}
+
+	/**
+	 * Task on the shared scheduler that runs at most once per interval
+	 * while its session is busy. It is not scheduled at all while the
+	 * session is idle; the next sync wakes it again.
+	 */
+	abstract class EngineTask implements Runnable {
+		private final long interval;
+		// next run, guarded by this
+		private ScheduledFuture<?> next = null;
+		private boolean cancelled = false;
+		// held while the task runs, so runs never overlap
+		private final Object running = new Object();
+
+		EngineTask(long interval) {
+			this.interval = interval;
+		}
+
+		/**
+		 * Makes sure the task runs within the interval.
+		 */
+		void wake() {
+			this.wake(this.interval);
+		}
+
+		/**
+		 * Makes sure the task runs within the given delay.
+		 */
+		synchronized void wake(long delay) {
+			if (this.cancelled) {
+				return;
+			}
+			if (this.next != null && !this.next.isDone()) {
+				if (this.next.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+					return;
+				}
+				this.next.cancel(false);
+			}
+			this.next = getScheduler().schedule(this, delay,
+					TimeUnit.MILLISECONDS);
+		}
+
+		synchronized void cancel() {
+			this.cancelled = true;
+			if (this.next != null) {
+				this.next.cancel(false);
+			}
+		}
+
 		public void run() {
-			if(engine == null)
+			synchronized (this) {
+				this.next = null;
+			}
+			synchronized (this.running) {
+				this.tick();
+			}
+			// work that came in during the run waits for the next one
+			if (this.pending()) {
+				this.wake();
+			}
+		}
+
+		/**
+		 * Does the work of the task.
+		 */
+		abstract void tick();
+
+		/**
+		 * Tells if there is work left for another run.
+		 */
+		abstract boolean pending();
+	}
+	
+	/**
+	 * Hands a purge of the local op engine history buffer to the purger if
+	 * the op engine received a remote event or context vector since the last
+	 * purge. The purge needs the locks the syncs hold, which the shared
+	 * scheduler must not wait for. While a purge is still queued or running
+	 * the task leaves the work for its next run.
+	 */
+	class PurgeTask extends EngineTask {
+
+		PurgeTask(long interval) {
+			super(interval);
+		}
+
+		boolean pending() {
+			return shouldPurge;
+		}
+
+		void tick() {
+			if(engine == null && topicEngines == null && sequencer == null)
 				return;
 			
-			if(shouldPurge) {
+			if(shouldPurge && purgeQueued.compareAndSet(false, true)) {
+				shouldPurge = false;
 				try {
-					engine.purge();
-				} catch (OperationEngineException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					getPurger().execute(new Runnable() {
+						public void run() {
+							runPurge();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// shut down along with the scheduler
+					purgeQueued.set(false);
 				}
 			}
-			
-			shouldPurge = false;	
 		}
 	}
 	
 	/**
-	 * Called on a timer to send the local op engine context vector to other
-	 * participants (topics.ENGINE_SYNC) if the local op engine processed
-	 * received events since since the last time the timer fired.
+	 * Sends the local op engine context vector to other participants
+	 * (topics.ENGINE_SYNC) if the local op engine processed received events
+	 * since the last engine sync. Nothing is sent when the other sites
+	 * already know the context, such as from the last local op. In delta
+	 * mode only the entries that changed since are sent, as site ID and
+	 * sequence number pairs.
 	 */
-	class SyncTask extends TimerTask {
-		public void run() {
-			if(!shouldSync || engine == null)
+	class SyncTask extends EngineTask {
+
+		SyncTask(long interval) {
+			super(interval);
+		}
+
+		boolean pending() {
+			return shouldSync;
+		}
+
+		/**
+		 * Site ID and sequence number pairs for the entries of sites that
+		 * differ from sent.
+		 */
+		private int[] delta(int[] sent, int[] sites) {
+			int n = 0;
+			int[] changes = new int[sites.length * 2];
+			for (int i = 0; i < sites.length; i++) {
+				if (i >= sent.length || sites[i] != sent[i]) {
+					changes[n++] = i;
+					changes[n++] = sites[i];
+				}
+			}
+			return Arrays.copyOf(changes, n);
+		}
+
+		void tick() {
+			if(!shouldSync || (engine == null && topicEngines == null))
 				return;
+			shouldSync = false;
 			
-			try {
-				ContextVector cv = engine.copyContextVector();
-				/* Must convert to Integer[] from int[], because the receiver of this
-				   message expects Integer[]. */
-				int cnt = 0;
-				int[] sites = cv.getSites();
-				Integer[] arr = new Integer[sites.length];
-				for (int i: sites) {
-					arr[cnt] = i;
-					++cnt;
-				}
-				sessionHandler.postEngineSync(arr);
-			} catch (OperationEngineException e) {
-				e.printStackTrace();
+			int[] sites;
+			if (topicEngines != null) {
+				synchronized (sessionContext) {
+					sites = sessionContext.copySites();
+				}
+			} else {
+				sites = engineContext;
 			}
-			
-			shouldSync = false;
+			if (sites == null) {
+				return;
+			}
+			int[] sent = sentContext;
+			if (sent != null && Arrays.equals(sites, sent)) {
+				return;
+			}
+			/* Must convert to Integer[] from int[], because the receiver of this
+			   message expects Integer[]. */
+			if (deltaEngineSync && sent != null) {
+				sessionHandler.postEngineSyncDelta(
+						toIntegers(delta(sent, sites)));
+			} else {
+				sessionHandler.postEngineSync(toIntegers(sites));
+			}
+			sentContext = sites;
 		}
 	}
 
@@ -4,9 +4,12 @@
  */
 package org.coweb;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -53,6 +56,10 @@ public class SessionHandler implements ServerChannel.MessageListener {
 
 	private Semaphore modSyncSem = new Semaphore(1);
 	private AtomicInteger order = new AtomicInteger(0);
+	/* Syncs transformed in parallel, waiting to go to the moderator and the
+	 * other clients in the order they were transformed. */
+	private ConcurrentLinkedQueue<PendingSync> pendingSyncs =
+		new ConcurrentLinkedQueue<PendingSync>();
 
 	private String syncAppChannel = null;
 	private String syncEngineChannel = null;
@@ -161,7 +168,7 @@ public class SessionHandler implements ServerChannel.MessageListener {
 			try {
 				log.info("creating operation engine with siteId = " + siteId);
 				this.operationEngine = new OperationEngineHandler(this,
-						siteId.intValue());
+						siteId.intValue(), config);
 			} catch (OperationEngineException e) {
 				e.printStackTrace();
 			}
@@ -273,18 +280,36 @@ public class SessionHandler implements ServerChannel.MessageListener {
 		 * OperationEngine must only be accessed by one client at a time. */
 		String channelName = message.getChannel();
 		if (channelName.equals(this.syncAppChannel)) {
-			// put total order on message
-			data.put("order", this.order.getAndIncrement());
-
-			if (this.operationEngine != null) {
+			/* A batch of ops takes one place in the order for each op. */
+			boolean batch = data.get("batch") instanceof Object[];
+			int count = batch ?
+				Math.max(1, ((Object[]) data.get("batch")).length) : 1;
+			if (this.operationEngine == null) {
+				// put total order on message
+				data.put("order", this.order.getAndAdd(count));
+			} else if (this.operationEngine.isParallel()) {
+				return this.doParallelAppSync(from, channel, message, data,
+						batch, count);
+			} else {
 				synchronized (this.operationEngine) {
+					// taken under the lock, so the order is the one the
+					// engine processes the syncs in
+					data.put("order", this.order.getAndAdd(count));
+					if (batch) {
+						return this.doAppSyncBatch(from, channel, message,
+								data);
+					}
 					return this.doAppSync(from, channel, message, data);
 				}
 			}
 		} else if (channelName.equals(this.syncEngineChannel)) {
 			if (operationEngine != null) {
-				synchronized (this.operationEngine) {
+				if (this.operationEngine.isParallel()) {
 					this.operationEngine.engineSyncInbound(data);
+				} else {
+					synchronized (this.operationEngine) {
+						this.operationEngine.engineSyncInbound(data);
+					}
 				}
 			}
 		} else {
@@ -320,9 +345,127 @@ public class SessionHandler implements ServerChannel.MessageListener {
 			this.modSyncSem.release();
 			return false;
 		}
+		if (this.operationEngine.isSequenced()) {
+			return this.publishSequenced(from, channel, message, data);
+		}
 		return true;
 	}
 
+	/**
+	 * Publishes a sync that has nothing for the moderator right away. Sites
+	 * take the syncs in the order the sequencer saw them, so it cannot wait
+	 * until onMessage() returns.
+	 */
+	private boolean publishSequenced(ServerSession from, ServerChannel channel,
+			ServerMessage.Mutable message, Map<String, Object> data) {
+		data.put("__alreadySent", SessionHandler.sendOnceKey);
+		channel.publish(from, message);
+		return false;
+	}
+
+	/**
+	 * Like doAppSync, for a sync carrying a batch of ops. The moderator takes
+	 * the ops one at a time, and the batch goes on to the other clients as
+	 * one message before any syncs the moderator sent meanwhile.
+	 */
+	private boolean doAppSyncBatch(ServerSession from, ServerChannel channel,
+			ServerMessage.Mutable message, Map<String, Object> data) {
+		Iterator<Map<String, Object>> syncEvents =
+			this.operationEngine.syncInboundBatch(data);
+		if (syncEvents == null) {
+			if (this.operationEngine.isSequenced()) {
+				return this.publishSequenced(from, channel, message, data);
+			}
+			return true;
+		}
+		try {
+			this.modSyncSem.acquire();
+		} catch (InterruptedException ie) {
+			log.warning("onMessage interrupted, won't deliver sync to" +
+					" moderator or other listeners");
+			return false;
+		}
+		while (syncEvents.hasNext()) {
+			this.sessionModerator.onSync(from.getId(), syncEvents.next());
+		}
+		data.put("__alreadySent", SessionHandler.sendOnceKey);
+		channel.publish(from, message);
+		this.flushModeratorQueue();
+		this.modSyncSem.release();
+		return false;
+	}
+
+	/**
+	 * Like doAppSync, but only syncs on the same topic are transformed one at
+	 * a time. The order is taken under the topic lock, so the syncs on a
+	 * topic are transformed in their total order; the counter keeps it unique
+	 * across topics. The result is queued while the topic is still locked,
+	 * so each topic's syncs stay in order, and the queue is drained under
+	 * modSyncSem after the topic lock is released. Holding a topic lock while
+	 * waiting for modSyncSem could deadlock with a moderator that syncs on
+	 * another topic from onSync().
+	 */
+	private boolean doParallelAppSync(ServerSession from,
+			ServerChannel channel, ServerMessage.Mutable message,
+			Map<String, Object> data, boolean batch, int count) {
+		String topic = (String) data.get("topic");
+		synchronized (this.operationEngine.getTopicLock(topic)) {
+			data.put("order", this.order.getAndAdd(count));
+			Iterator<Map<String, Object>> syncEvents;
+			if (batch) {
+				syncEvents = this.operationEngine.syncInboundBatch(data);
+			} else {
+				Map<String, Object> syncEvent =
+					this.operationEngine.syncInbound(data);
+				syncEvents = syncEvent == null ? null :
+					Collections.singletonList(syncEvent).iterator();
+			}
+			if (syncEvents == null) {
+				return true;
+			}
+			data.put("__alreadySent", SessionHandler.sendOnceKey);
+			this.pendingSyncs.add(new PendingSync(from, channel, message,
+						syncEvents));
+		}
+		try {
+			this.modSyncSem.acquire();
+		} catch (InterruptedException ie) {
+			/* Another thread still delivers the sync from the queue. */
+			log.warning("onMessage interrupted while delivering syncs");
+			return false;
+		}
+		PendingSync sync;
+		while ((sync = this.pendingSyncs.poll()) != null) {
+			while (sync.syncEvents.hasNext()) {
+				this.sessionModerator.onSync(sync.from.getId(),
+						sync.syncEvents.next());
+			}
+			sync.channel.publish(sync.from, sync.message);
+			this.flushModeratorQueue();
+		}
+		this.modSyncSem.release();
+		return false;
+	}
+
+	/**
+	 * A transformed sync, or batch of them, waiting for delivery.
+	 */
+	private static class PendingSync {
+		final ServerSession from;
+		final ServerChannel channel;
+		final ServerMessage.Mutable message;
+		final Iterator<Map<String, Object>> syncEvents;
+
+		PendingSync(ServerSession from, ServerChannel channel,
+				ServerMessage.Mutable message,
+				Iterator<Map<String, Object>> syncEvents) {
+			this.from = from;
+			this.channel = channel;
+			this.message = message;
+			this.syncEvents = syncEvents;
+		}
+	}
+
 	/**
 	 * Handles bayeux messaegs on the channels below.
 	 *   <li> /session/roster/*
@@ -382,6 +525,10 @@ public class SessionHandler implements ServerChannel.MessageListener {
 				if (this.lateJoinHandler.onClientJoin(serverSession, message)) {
 					this.sessionModerator.onSessionReady();
 				}
+				Integer site = (Integer) serverSession.getAttribute("siteid");
+				if (this.operationEngine != null && site != null) {
+					this.operationEngine.siteJoin(site.intValue());
+				}
 			} else {
 				this.sendError(serverSession, "join-disallowed");
 			}
@@ -453,6 +600,10 @@ public class SessionHandler implements ServerChannel.MessageListener {
 		this.attendees.remove(client);
 		this.sessionModerator.onClientLeaveSession(client.getId());
 		boolean last = this.lateJoinHandler.onClientRemove(client);
+		Integer site = (Integer) client.getAttribute("siteid");
+		if (this.operationEngine != null && site != null) {
+			this.operationEngine.siteLeave(site.intValue());
+		}
 		if (last) {
 			this.endSession();
 		}
@@ -536,16 +687,39 @@ public class SessionHandler implements ServerChannel.MessageListener {
 		sync.publish(this.sessionModerator.getLocalSession(), data, null);
 	}
 
+	/**
+	 * Publishes a local op engine sync event listing only the context vector
+	 * entries that changed since the last one.
+	 * @param changes site ID and sequence number pairs
+	 */
+	public void postEngineSyncDelta(Integer[] changes) {
+		ServerChannel sync = this.server.getChannel(this.syncEngineChannel);
+		
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		data.put("delta", changes);
+		
+		// We publish *from* the LocalSession.
+		sync.publish(this.sessionModerator.getLocalSession(), data, null);
+	}
+
 	/**
 	  * Retreives the four element Object engine state array and returns it.
+	  * The operation engine lock is only held while the engine state is
+	  * snapshotted, so syncs are not stalled while the array is built.
 	  * @return engine state array
 	  */
 	public Object[] getEngineState() {
-		Object[] ret;
-		synchronized (this.operationEngine) {
-			ret = this.operationEngine.getEngineState();
-		}
-		return ret;
+		return this.operationEngine.getEngineState();
+	}
+
+	/**
+	  * Gets the engine state as a compact binary snapshot, see
+	  * {@link org.coweb.oe.EngineStateCodec}. Like getEngineState, it is
+	  * encoded without holding the operation engine lock.
+	  * @return snapshot bytes or null if the snapshot could not be made
+	  */
+	public byte[] getEngineSnapshot() {
+		return this.operationEngine.getEngineSnapshot();
 	}
 
 	/**
@@ -555,7 +729,8 @@ public class SessionHandler implements ServerChannel.MessageListener {
 	 * local operation engine.
 	 * @param name Collab topic (includes ^coweb.sync. and collabId$).
 	 * @param value Application value.
-	 * @param type One of {"insert", "delete", "update", null}.
+	 * @param type One of {"insert", "delete", "update", "insertRange",
+	 *        "deleteRange", null}.
 	 * @param position Position where sync event is to be applied.
 	 */
 	public void publishModeratorSync(String name, Object value, String type,
@@ -585,7 +760,7 @@ public class SessionHandler implements ServerChannel.MessageListener {
 		 * Thus, we try to acquire the semaphore, and if we fail, we wait until
 		 * onSync() returns to flush the queue. */
 		synchronized(this.modSyncQueue) {
-			this.modSyncQueue.push(message);
+			this.modSyncQueue.add(message);
 		}
 		/* TODO Memory fence? */
 		if (this.modSyncSem.tryAcquire()) {
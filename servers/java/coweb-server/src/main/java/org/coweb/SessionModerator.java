@@ -209,17 +209,27 @@ public abstract class SessionModerator {
 	 * <p>This method should return whether or not the sync event should be
 	 * forwarded to bots.
 	 *
-	 * <p>The parameter data has the five keys specified below.
+	 * <p>The parameter data has the five keys specified below, and a sixth
+	 * for delete ranges.
 	 * 	  <li> topic - A string specifying the coweb topic for which the message
 	 * 	  was sent. This is useful to distinguish browser collab objects and
 	 * 	  sendSync topic names that operations are sent on.
 	 * 	  <li> type - String specifying the type of sync. This can be one of
-	 * 	  {insert, delete, update, null}.
+	 * 	  {insert, delete, update, insertRange, deleteRange, null}. Range
+	 * 	  values are a JSON string whose characters or a JSON array whose
+	 * 	  elements make up the range; a deleteRange value may also be the
+	 * 	  number of positions.
 	 * 	  <li> site - Integer site ID where the event originated.
 	 * 	  <li> value - JSON object value representing the new value. See
 	 * 	  org.eclipse.jetty.util.ajax.JSON for how to read this object.
 	 * 	  <li> position - Integer position specifying where in the
 	 * 	  one-dimensional array the operation should be applied.
+	 * 	  <li> ranges - For deleteRange, Integer[] of start (inclusive) and end
+	 * 	  (exclusive) position pairs to delete, since concurrent inserts may
+	 * 	  split the deleted run.
+	 *
+	 * <p>The ops of a sync carrying a batch come in one call each, while
+	 * the session is held.
 	 * 
 	 * @param clientId string identifier of client
 	 * @param data Map with sync data as described above.
@@ -422,7 +432,8 @@ public abstract class SessionModerator {
 		 * Send an application sync event.
 		 * @param name Which application property changed.
 		 * @param value New property value, JSON encodable.
-		 * @param type One of {"insert", "delete", "update", null}
+		 * @param type One of {"insert", "delete", "update", "insertRange",
+		 *        "deleteRange", null}
 		 * @param position Position of the value change.
 		 */
 		public void sendSync(String name, Object value, String type,